@@ -18,6 +18,7 @@ import android.widget.Toast;
 
 import com.android.grafika.baidu.recorder.api.*;
 import com.android.grafika.baidu.recorder.hw.device.VideoCaptureDevice;
+import com.android.grafika.baidu.recorder.hw.encoder.CodecRegistry;
 import com.android.grafika.baidu.recorder.hw.encoder.VideoEncoder;
 
 import java.io.File;
@@ -80,9 +81,29 @@ public class NewActivity extends Activity  {
         mCameraStateButton = (Button) findViewById(R.id.camera_ctl);
     }
 
-    private void initRTMPSession(SurfaceHolder sh) {
+    private void initRTMPSession(final SurfaceHolder sh) {
         Log.d(TAG, "Calling initRTMPSession...");
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+        // the codec list is enumerated on the first run, the session is created once it's read
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final CodecRegistry.Entry encoder = CodecRegistry.getInstance(NewActivity.this).findHardwareEncoder(
+                        CodecRegistry.MIME_AVC, mVideoWidth, mVideoHeight, mFrameRate);
+                Log.d(TAG, "hardware encoder: " + (encoder == null ? "none" : encoder.getName()));
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            createRTMPSession(sh, encoder != null);
+                        }
+                    }
+                });
+            }
+        }, "CodecRegistry").start();
+    }
+
+    private void createRTMPSession(SurfaceHolder sh, boolean hasHardwareEncoder) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && hasHardwareEncoder)
             mLiveSession = new LiveSessionHW(this, mVideoWidth, mVideoHeight, mFrameRate, mBitrate, mCurrentCamera);
         else
             mLiveSession = new LiveSessionSW(this, mVideoWidth, mVideoHeight, mFrameRate, mBitrate, mCurrentCamera);
@@ -96,6 +117,9 @@ public class NewActivity extends Activity  {
     View.OnClickListener saveListener=new View.OnClickListener() {
         @Override
         public void onClick(View view) {
+            if (mVideoCaptureDevice == null) {
+                return;
+            }
             mRecorderButton.setEnabled(false);
             if(mVideoCaptureDevice.isRecording){
                 mVideoCaptureDevice.stopRecording();
@@ -112,6 +136,9 @@ public class NewActivity extends Activity  {
     View.OnClickListener flashListener=new View.OnClickListener() {
         @Override
         public void onClick(View view) {
+            if (mLiveSession == null) {
+                return;
+            }
             mCameraStateButton.setEnabled(false);
             if (mCurrentCamera == Camera.CameraInfo.CAMERA_FACING_BACK) {
                 mLiveSession.toggleFlash(!isFlashOn);
@@ -132,6 +159,9 @@ public class NewActivity extends Activity  {
     View.OnClickListener switchlistener=new View.OnClickListener() {
         @Override
         public void onClick(View view) {
+            if (mLiveSession == null) {
+                return;
+            }
             mCameraStateButton.setEnabled(false);
             if (mLiveSession.canSwitchCamera()) {
                 if (mCurrentCamera == Camera.CameraInfo.CAMERA_FACING_BACK) {
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.view.SurfaceHolder;
 
 import com.android.grafika.baidu.recorder.hw.device.VideoCaptureDevice;
+import com.android.grafika.baidu.recorder.util.LatencyTracker;
 
 public abstract class LiveSession {
     
@@ -152,6 +153,45 @@ public abstract class LiveSession {
      */
     public abstract double getCurrentUploadBandwidthKbps();
 
+    /**
+     * 获取视频帧在采集、编码、封装、发送各阶段的延时统计，不支持时返回null
+     * @return
+     */
+    public LatencyTracker getLatencyTracker() {
+        return null;
+    }
+
+    /**
+     * 获取推流Session当前的帧率、码率、发送队列、丢帧等运行状态，不支持时返回null
+     * @return
+     */
+    public SessionStats getSessionStats() {
+        return null;
+    }
+
+    /**
+     * 断网时丢弃数据
+     */
+    public static final int SPILL_MODE_OFF = 0;
+    /**
+     * 断网时数据暂存到本地，重连后以不超过drainSpeed倍的速度补发全部数据，适用于录制、DVR
+     */
+    public static final int SPILL_MODE_CATCH_UP = 1;
+    /**
+     * 断网时数据暂存到本地，重连后只补发最近一个GOP，适用于直播
+     */
+    public static final int SPILL_MODE_LIVE_EDGE = 2;
+
+    /**
+     * 设置断网时的数据暂存方式，需在startRtmpSession前调用，不支持时无效
+     * @param mode SPILL_MODE_*
+     * @param maxDiskBytes 暂存数据占用的最大磁盘空间，超出时丢弃最早的数据
+     * @param drainSpeed SPILL_MODE_CATCH_UP时补发速度相对实时的倍数，须大于1，否则补发永远追不上实时数据
+     * @throws IllegalArgumentException SPILL_MODE_CATCH_UP时drainSpeed不大于1
+     */
+    public void setSpillMode(int mode, long maxDiskBytes, double drainSpeed) {
+    }
+
     /**
      * 该接口完成音视频采集设备的初始化
      */
@@ -1,5 +1,6 @@
 package com.android.grafika.baidu.recorder.api;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -7,10 +8,19 @@ import android.media.MediaCodec;
 import com.android.grafika.baidu.recorder.hw.device.AudioCaptureDevice;
 import com.android.grafika.baidu.recorder.hw.device.VideoCaptureDevice;
 import com.android.grafika.baidu.recorder.hw.encoder.AudioEncoder;
+import com.android.grafika.baidu.recorder.hw.encoder.EncoderPool;
 import com.android.grafika.baidu.recorder.hw.encoder.VideoEncoder;
 import com.android.grafika.baidu.recorder.hw.muxer.FlvMuxer;
+import com.android.grafika.baidu.recorder.hw.muxer.FlvOutput;
+import com.android.grafika.baidu.recorder.hw.muxer.HttpFlvOutput;
+import com.android.grafika.baidu.recorder.hw.muxer.SpillQueue;
+import com.android.grafika.baidu.recorder.hw.rtmp.BandwidthProbe;
+import com.android.grafika.baidu.recorder.hw.rtmp.ReconnectSupervisor;
 import com.android.grafika.baidu.recorder.hw.rtmp.RtmpSocket;
 import com.android.grafika.baidu.recorder.util.ScreenUtils;
+import com.android.grafika.baidu.recorder.util.LatencyTracker;
+import com.android.grafika.baidu.recorder.util.RateMeter;
+import com.android.grafika.baidu.recorder.util.TaskGraph;
 import com.visionin.gpu.Visionin;
 
 import android.content.Context;
@@ -37,15 +47,24 @@ public class LiveSessionHW extends LiveSession {
     private static final String TAG = "LiveSession";
     private static final int MIN_VIDEO_BITRATE_BY_BITS_PER_SEC = 100000;
     private RtmpSocket mRtmpSocket = null;
+    // an http:// url publishes over HTTP FLV instead, the connection is kept between sessions
+    private HttpFlvOutput mHttpFlvOutput = null;
     private FlvMuxer mFlvMuxer = null;
     private AudioEncoder mAudioEncoder = null;
     private VideoEncoder mVideoEncoder = null;
+    private final EncoderPool mEncoderPool = new EncoderPool();
+    private String mAudioEncoderKey = null;
+    private String mVideoEncoderKey = null;
+    private final LatencyTracker mLatencyTracker = new LatencyTracker();
     private AudioCaptureDevice mAudioDevice = null;
     private VideoCaptureDevice mVideoDevice = null;
     private Context mContext = null;
     private SessionStateListener mStateListener = null;
+    private SessionReconnectListener mReconnectListener = null;
     private boolean isSessionPrepared = false;
     private boolean isSessionStarted = false;
+    // the thread of the last stopRtmpSession, destroyRtmpSession waits for it
+    private Thread mStopThread = null;
     private int mZoomFactor = 0;
     private static final String NAME_OF_LIB_RTMP = "librtmp_jni.so";
     private static boolean isLibRtmpLoaded = false;
@@ -56,10 +75,37 @@ public class LiveSessionHW extends LiveSession {
     private int mVideoGop = 2;
     private int mCameraId = Camera.CameraInfo.CAMERA_FACING_BACK;
     private int mAudioBitrate = 64000;
+    private long mStartTimeMs = 0;
+    private long mConnectTimeMs = 0;
+    private volatile int mRttMs = 0;
+    // the bitrate the probe started the encoder at, mVideoBitrate is the most it may use
+    private volatile int mCurrentVideoBitrate = 0;
+    // the share of the probed throughput given to the stream, the rest absorbs the jitter
+    private static final double PROBED_THROUGHPUT_SHARE = 0.75;
+    private volatile int mReconnectCount = 0;
+    private ReconnectSupervisor mReconnectSupervisor = null;
+    private int mSpillMode = SPILL_MODE_OFF;
+    private long mSpillMaxDiskBytes = 0;
+    private double mSpillDrainSpeed = 1;
+    private SpillQueue mSpillQueue = null;
+
+    // totals sampled by the stats, in the order of the STATS_* indexes
+    private static final int STATS_CAPTURED_FRAMES = 0;
+    private static final int STATS_RENDERED_FRAMES = 1;
+    private static final int STATS_ENCODED_FRAMES = 2;
+    private static final int STATS_SENT_FRAMES = 3;
+    private static final int STATS_SENT_BITS = 4;
+    private static final int STATS_FRAMING_BITS = 5;
+    private static final int STATS_SOCKET_WRITES = 6;
+    private static final int STATS_DELIVERED_BITS = 7;
+    private static final int STATS_COUNT = 8;
+    private final RateMeter mStatsRates = new RateMeter(STATS_COUNT, 1000);
+    private final long[] mStatsTotals = new long[STATS_COUNT];
 
     // http://developer.android.com/reference/android/media/MediaCodec.html#createByCodecName(java.lang.String)
     private static final String VCODEC = "video/avc";
     private static final String ACODEC = "audio/mp4a-latm";
+    private static final String SPILL_DIR = "spill";
 
     /**
      * 手动加载库文件接口，满足客户动态加载库文件需求，以减小apk体积
@@ -106,6 +152,7 @@ public class LiveSessionHW extends LiveSession {
         mZoomFactor = 0;
         mAudioDevice = new AudioCaptureDevice(null);
         mVideoDevice = new VideoCaptureDevice(null,mVideoWidth,mVideoHeight);
+        mVideoDevice.setLatencyTracker(mLatencyTracker);
         Visionin.initialize(cxt, "293cd8f2fd5cdf0e403f535f2563b5b4", "44ce96297a8bcc10eaf095d216d045ec");
         mVideoDevice.openCamera(mVideoWidth,mVideoHeight,mVideoFps,0,true);
 
@@ -220,6 +267,15 @@ public class LiveSessionHW extends LiveSession {
         mStateListener = listener;
         if (mFlvMuxer != null) mFlvMuxer.setStateListener(listener);
     }
+
+    /**
+     * 设置断线自动重连订阅接口，可选
+     * 
+     * @param listener
+     */
+    public void setReconnectListener(SessionReconnectListener listener) {
+        mReconnectListener = listener;
+    }
     
     /**
      * 判断是否支持动态切换摄像头
@@ -359,8 +415,73 @@ public class LiveSessionHW extends LiveSession {
         return 0;
     }
 
+    @Override
+    public void setSpillMode(int mode, long maxDiskBytes, double drainSpeed) {
+        if (mode == SPILL_MODE_CATCH_UP && !(drainSpeed > 1)) {
+            throw new IllegalArgumentException("the catch up drain speed must be more than 1, was " + drainSpeed);
+        }
+        mSpillMode = mode;
+        mSpillMaxDiskBytes = maxDiskBytes;
+        mSpillDrainSpeed = drainSpeed;
+    }
+
+    @Override
+    public LatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    @Override
+    public synchronized SessionStats getSessionStats() {
+        FlvMuxer muxer = mFlvMuxer;
+        VideoEncoder videoEncoder = mVideoEncoder;
+        RtmpSocket socket = mRtmpSocket;
+        long now = System.currentTimeMillis();
+
+        mStatsTotals[STATS_CAPTURED_FRAMES] = mLatencyTracker.getFrameCount(LatencyTracker.STAGE_CAMERA_LATCH);
+        mStatsTotals[STATS_RENDERED_FRAMES] = mLatencyTracker.getFrameCount(LatencyTracker.STAGE_ENCODER_INPUT);
+        mStatsTotals[STATS_ENCODED_FRAMES] = mLatencyTracker.getFrameCount(LatencyTracker.STAGE_ENCODER_OUTPUT);
+        mStatsTotals[STATS_SENT_FRAMES] = muxer != null ? muxer.getSentVideoFrames() : 0;
+        mStatsTotals[STATS_SENT_BITS] = muxer != null ? muxer.getSentBytes() * 8 : 0;
+        mStatsTotals[STATS_FRAMING_BITS] = socket != null ? socket.getFramingBytes() * 8 : 0;
+        mStatsTotals[STATS_SOCKET_WRITES] = socket != null ? socket.getChunks() : 0;
+        mStatsTotals[STATS_DELIVERED_BITS] = muxer != null ? muxer.getDeliveredBytes() * 8 : 0;
+        mStatsRates.sample(now, mStatsTotals);
+
+        SessionStats stats = new SessionStats();
+        stats.timestampMs = now;
+        stats.capturedFps = mStatsRates.getRate(STATS_CAPTURED_FRAMES);
+        stats.renderedFps = mStatsRates.getRate(STATS_RENDERED_FRAMES);
+        stats.encodedFps = mStatsRates.getRate(STATS_ENCODED_FRAMES);
+        stats.sentFps = mStatsRates.getRate(STATS_SENT_FRAMES);
+        stats.targetBitrateBps = mCurrentVideoBitrate + mAudioBitrate;
+        stats.actualBitrateBps = (int) mStatsRates.getRate(STATS_SENT_BITS);
+        if (stats.actualBitrateBps > 0) {
+            stats.framingOverhead = mStatsRates.getRate(STATS_FRAMING_BITS) / stats.actualBitrateBps;
+        }
+        stats.socketWritesPerSec = mStatsRates.getRate(STATS_SOCKET_WRITES);
+        stats.deliveredBitrateBps = (int) mStatsRates.getRate(STATS_DELIVERED_BITS);
+        stats.rttMs = mRttMs;
+        if (muxer != null) {
+            stats.queuedBytes = muxer.getQueuedBytes();
+            stats.queuedMs = muxer.getQueuedMs();
+            stats.pacingDelayMs = muxer.getLastVideoPacingDelayMs();
+            stats.spilledBytes = muxer.getSpilledBytes();
+            stats.inFlightBytes = muxer.getInFlightBytes();
+            for (int i = 0; i < SessionStats.DROP_REASON_COUNT; i++) {
+                stats.droppedFrames[i] = muxer.getDroppedFrames(i);
+            }
+        }
+        if (videoEncoder != null) {
+            stats.encodeLatencyUs = videoEncoder.getLastEncodeLatencyUs();
+            stats.averageEncodeLatencyUs = videoEncoder.getAverageEncodeLatencyUs();
+        }
+        stats.reconnectCount = mReconnectCount;
+        return stats;
+    }
+
     /**
      * 该接口完成音视频采集设备的初始化，调用该接口后，用户可对拍摄画面进行预览
+     * 麦克风、相机和视频编码器同时初始化，音频编码器在麦克风打开后初始化
      */
     public void prepareSessionAsync() {
         if (isSessionPrepared) {
@@ -369,43 +490,83 @@ public class LiveSessionHW extends LiveSession {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                if (!mAudioDevice.openRecorder()
-                        || !mVideoDevice.openCamera(mVideoWidth,
-                            mVideoHeight, mVideoFps, mCameraId,
-                            !ScreenUtils.screenIsLanscape(mContext))) {
+                TaskGraph graph = new TaskGraph("prepare");
+                graph.add("mic", new TaskGraph.Task() {
+                    @Override
+                    public boolean run() {
+                        return mAudioDevice.openRecorder();
+                    }
+                });
+                graph.add("camera", new TaskGraph.Task() {
+                    @Override
+                    public boolean run() {
+                        return mVideoDevice.openCamera(mVideoWidth, mVideoHeight, mVideoFps, mCameraId,
+                                !ScreenUtils.screenIsLanscape(mContext));
+                    }
+                });
+                graph.add("videoEncoder", new TaskGraph.Task() {
+                    @Override
+                    public boolean run() {
+                        return setupVideoEncoder();
+                    }
+                });
+                // the audio encoder takes the sample rate the mic was opened with
+                graph.add("audioEncoder", new TaskGraph.Task() {
+                    @Override
+                    public boolean run() {
+                        return setupAudioEncoder();
+                    }
+                }, "mic");
+                if (!graph.run()) {
                     if (mStateListener != null) {
                         mStateListener.onSessionError(SessionStateListener.ERROR_CODE_OF_PREPARE_SESSION_FAILED);
                     }
                     return;
                 }
 
+                // the encoder was configured with the asked size while the camera opened, the
+                // stream must have the size the camera gave, or the frames don't fit it
                 mVideoWidth = mVideoDevice.getAdaptedVideoWidth();
                 mVideoHeight = mVideoDevice.getAdaptedVideoHeight();
+                if (!videoEncoderKey().equals(mVideoEncoderKey)) {
+                    Log.i(TAG, String.format("The camera adapted the size to %dx%d, set up the encoder again",
+                            mVideoWidth, mVideoHeight));
+                    mVideoEncoder.stop();
+                    mVideoEncoder.release();
+                    mVideoEncoder = null;
+                    if (!setupVideoEncoder()) {
+                        if (mStateListener != null) {
+                            mStateListener.onSessionError(SessionStateListener.ERROR_CODE_OF_PREPARE_SESSION_FAILED);
+                        }
+                        return;
+                    }
+                }
+                mVideoDevice.setOutputSurface(mVideoEncoder.getInputSurface());
                 isSessionPrepared = true;
                 if (mStateListener != null) {
                     mStateListener.onSessionPrepared(SessionStateListener.RESULT_CODE_OF_OPERATION_SUCCEEDED);
                 }
             }
         }).start();
-        setupEncoders();
-        mVideoDevice.setOutputSurface(mVideoEncoder.getInputSurface());
     }
-    
+
     private boolean setupEncoders() {
-        // Setup encoders
+        return setupVideoEncoder() && setupAudioEncoder();
+    }
+
+    private boolean setupVideoEncoder() {
         try {
-            mAudioEncoder = new AudioEncoder(ACODEC, null);
-            mVideoEncoder = new VideoEncoder(VCODEC, null);
-
-            mAudioEncoder.setupEncoder(mAudioDevice.getSampleRate(), mAudioDevice.getChannelCount(), mAudioBitrate/1000);
-            if (ScreenUtils.screenIsLanscape(mContext)) {
-                mVideoEncoder.setupEncoder(mVideoWidth, mVideoHeight, mVideoBitrate / 1000, mVideoFps, mVideoGop);
-            } else {
-                mVideoEncoder.setupEncoder(mVideoHeight, mVideoWidth, mVideoBitrate / 1000, mVideoFps, mVideoGop);
+            int width = getEncodedWidth();
+            int height = getEncodedHeight();
+            String key = videoEncoderKey();
+            mVideoEncoder = mEncoderPool.takeVideoEncoder(key);
+            if (mVideoEncoder == null) {
+                mVideoEncoder = new VideoEncoder(VCODEC, width, height, mVideoFps, null);
+                mVideoEncoder.setupEncoder(width, height, mVideoBitrate / 1000, mVideoFps, mVideoGop);
             }
-            mAudioEncoder.start();
+            mVideoEncoderKey = key;
+            mVideoEncoder.setLatencyTracker(mLatencyTracker);
             mVideoEncoder.start();
-            mAudioDevice.setEncoder(mAudioEncoder);
             mVideoDevice.setEncoder(mVideoEncoder);
         } catch (Exception e) {
             e.printStackTrace();
@@ -414,20 +575,53 @@ public class LiveSessionHW extends LiveSession {
         return true;
     }
 
+    // the encoded frames are portrait when the screen is
+    private int getEncodedWidth() {
+        return ScreenUtils.screenIsLanscape(mContext) ? mVideoWidth : mVideoHeight;
+    }
+
+    private int getEncodedHeight() {
+        return ScreenUtils.screenIsLanscape(mContext) ? mVideoHeight : mVideoWidth;
+    }
+
+    private String videoEncoderKey() {
+        return EncoderPool.videoKey(VCODEC, getEncodedWidth(), getEncodedHeight(), mVideoBitrate, mVideoFps, mVideoGop);
+    }
+
+    private boolean setupAudioEncoder() {
+        try {
+            String key = EncoderPool.audioKey(ACODEC, mAudioDevice.getSampleRate(),
+                    mAudioDevice.getChannelCount(), mAudioBitrate);
+            mAudioEncoder = mEncoderPool.takeAudioEncoder(key);
+            if (mAudioEncoder == null) {
+                mAudioEncoder = new AudioEncoder(ACODEC, null);
+                mAudioEncoder.setupEncoder(mAudioDevice.getSampleRate(), mAudioDevice.getChannelCount(), mAudioBitrate/1000);
+            }
+            mAudioEncoderKey = key;
+            mAudioEncoder.start();
+            mAudioDevice.setEncoder(mAudioEncoder);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 停止编码器并放回编码器池，下次推流时直接复用，无需重新创建
+     */
     private void destroyEncoders() {
         mAudioDevice.setEncoder(null);
         mVideoDevice.setEncoder(null);
         if (mAudioEncoder != null) {
-            Log.i(TAG, "stop audio encoder");
-            mAudioEncoder.stop();
-            mAudioEncoder.release();
+            Log.i(TAG, "park audio encoder");
+            mEncoderPool.putAudioEncoder(mAudioEncoderKey, mAudioEncoder);
             mAudioEncoder = null;
         }
 
         if (mVideoEncoder != null) {
-            Log.i(TAG, "stop video encoder");
-            mVideoEncoder.stop();
-            mVideoEncoder.release();
+            Log.i(TAG, "park video encoder");
+            mEncoderPool.putVideoEncoder(mVideoEncoderKey, mVideoEncoder);
             mVideoEncoder = null;
         }
     }
@@ -444,10 +638,37 @@ public class LiveSessionHW extends LiveSession {
             return false;
         }
         Log.d(TAG, "Starting RtmpSession...");
+        mStartTimeMs = System.currentTimeMillis();
         new Thread(new Runnable() {
             @Override
             public void run() {
-                boolean ret = setupEncoders() && setupStreamer(url);
+                // the encoders made in prepareSessionAsync are kept, only a stopped session makes new ones
+                TaskGraph graph = new TaskGraph("start");
+                graph.add("encoders", new TaskGraph.Task() {
+                    @Override
+                    public boolean run() {
+                        return (mVideoEncoder != null && mAudioEncoder != null) || setupEncoders();
+                    }
+                });
+                graph.add("connect", new TaskGraph.Task() {
+                    @Override
+                    public boolean run() {
+                        return connectToServer(url);
+                    }
+                });
+                graph.add("probe", new TaskGraph.Task() {
+                    @Override
+                    public boolean run() {
+                        return probeBandwidth();
+                    }
+                }, "encoders", "connect");
+                graph.add("muxer", new TaskGraph.Task() {
+                    @Override
+                    public boolean run() {
+                        return setupStreamer(url);
+                    }
+                }, "probe");
+                boolean ret = graph.run();
                 if (!ret) {
                     if (mStateListener != null) {
                         mStateListener.onSessionError(SessionStateListener.ERROR_CODE_OF_CONNECT_TO_SERVER_FAILED);
@@ -468,22 +689,114 @@ public class LiveSessionHW extends LiveSession {
         return true;
     }
 
-    private boolean setupStreamer(String url) {
-        mRtmpSocket = new RtmpSocket();
+    /**
+     * 获取从调用startRtmpSession到第一帧视频发送到服务器的时间，单位：毫秒，尚未发送时返回-1
+     * @return
+     */
+    public long getTimeToFirstFrameMs() {
+        FlvMuxer muxer = mFlvMuxer;
+        long sentTime = muxer == null ? 0 : muxer.getFirstVideoFrameSentTimeMs();
+        return sentTime > 0 ? sentTime - mStartTimeMs : -1;
+    }
+
+    private boolean connectToServer(String url) {
+        long startMs = System.currentTimeMillis();
+        if (mRtmpSocket != null) {
+            // left from a start which failed
+            mRtmpSocket.release();
+            mRtmpSocket = null;
+        }
+        if (isHttpFlvUrl(url)) {
+            if (mHttpFlvOutput == null) {
+                mHttpFlvOutput = new HttpFlvOutput(true, true);
+            }
+            if (mHttpFlvOutput.connect(url) < 0) return false;
+            mConnectTimeMs = System.currentTimeMillis() - startMs;
+            return true;
+        }
+        try {
+            mRtmpSocket = new RtmpSocket();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Another session is streaming over rtmp", e);
+            return false;
+        }
         if (!mRtmpSocket.isConnected()) {
             int ret = mRtmpSocket.connect(url);
             if (ret < 0) return false;
         }
-        mFlvMuxer = new FlvMuxer(url, FlvMuxer.OutputFormat.MUXER_OUTPUT_RTMP);
-        mFlvMuxer.setRtmpSocket(mRtmpSocket);
-        if (ScreenUtils.screenIsLanscape(mContext)) {
-            mFlvMuxer.sendMetaData(mVideoWidth, mVideoHeight, mVideoFps, mVideoBitrate / 1000,
-                                   mAudioDevice.getSampleRate(), mAudioBitrate / 1000);
+        mConnectTimeMs = System.currentTimeMillis() - startMs;
+        return true;
+    }
+
+    private static boolean isHttpFlvUrl(String url) {
+        return url.regionMatches(true, 0, "http://", 0, 7);
+    }
+
+    private FlvOutput getOutput() {
+        HttpFlvOutput httpFlvOutput = mHttpFlvOutput;
+        return httpFlvOutput != null && httpFlvOutput.isConnected() ? httpFlvOutput : mRtmpSocket;
+    }
+
+    /**
+     * measures the uplink before the first frame and starts the video at a bitrate it takes,
+     * instead of stalling at the configured one on a weak link. http flv starts at the
+     * configured bitrate, the server would store the probe.
+     */
+    private boolean probeBandwidth() {
+        FlvOutput output = getOutput();
+        int bitrate = mVideoBitrate;
+        int rttMs;
+        if (output == mHttpFlvOutput) {
+            // the padding would be stored as the start of the flv, the connect was one round trip
+            rttMs = (int) mConnectTimeMs;
+            Log.i(TAG, String.format("No probe over http flv, rtt %dms", rttMs));
         } else {
-            mFlvMuxer.sendMetaData(mVideoHeight, mVideoWidth, mVideoFps, mVideoBitrate / 1000,
-                                   mAudioDevice.getSampleRate(), mAudioBitrate / 1000);
+            BandwidthProbe.Result result = BandwidthProbe.probe(output, mConnectTimeMs);
+            if (result == null) {
+                return false;
+            }
+            if (result.throughputBps > 0) {
+                bitrate = (int) (result.throughputBps * PROBED_THROUGHPUT_SHARE) - mAudioBitrate;
+                bitrate = Math.max(MIN_VIDEO_BITRATE_BY_BITS_PER_SEC, Math.min(mVideoBitrate, bitrate));
+            }
+            rttMs = result.rttMs;
+            Log.i(TAG, "Probed " + result);
+        }
+        // a parked encoder may still run at the bitrate of the last session
+        if (!mVideoEncoder.setBitrate(bitrate)) {
+            bitrate = mVideoBitrate;
         }
-        Log.i(TAG, String.format("start muxer to SRS over rtmp, url=%s", url));
+        mCurrentVideoBitrate = bitrate;
+        mRttMs = rttMs;
+        Log.i(TAG, String.format("Start video at %dkbps", bitrate / 1000));
+        return true;
+    }
+
+    private boolean setupStreamer(String url) {
+        if (isHttpFlvUrl(url)) {
+            mFlvMuxer = new FlvMuxer(url, FlvMuxer.OutputFormat.MUXER_OUTPUT_HTTP_FLV);
+            mFlvMuxer.setOutput(mHttpFlvOutput);
+        } else {
+            mFlvMuxer = new FlvMuxer(url, FlvMuxer.OutputFormat.MUXER_OUTPUT_RTMP);
+            mFlvMuxer.setRtmpSocket(mRtmpSocket);
+            mReconnectSupervisor = new ReconnectSupervisor(mRtmpSocket, url, mReconnectCallback);
+            mFlvMuxer.setReconnectSupervisor(mReconnectSupervisor);
+        }
+        mFlvMuxer.setLatencyTracker(mLatencyTracker);
+        mFlvMuxer.setPacingBitrate(mCurrentVideoBitrate + mAudioBitrate);
+        // only the rtmp output comes back after a loss, an http flv stream would spill forever
+        if (mSpillMode != SPILL_MODE_OFF && mReconnectSupervisor == null) {
+            Log.w(TAG, "No reconnecting for this url, the tags are dropped while it's down");
+        } else if (mSpillMode != SPILL_MODE_OFF) {
+            if (mSpillQueue == null) {
+                mSpillQueue = new SpillQueue(new File(mContext.getCacheDir(), SPILL_DIR), mSpillMaxDiskBytes);
+            }
+            mFlvMuxer.setSpillQueue(mSpillQueue, mSpillMode == SPILL_MODE_LIVE_EDGE
+                    ? FlvMuxer.SPILL_DRAIN_LIVE_EDGE : FlvMuxer.SPILL_DRAIN_CATCH_UP, mSpillDrainSpeed);
+        }
+        mFlvMuxer.sendMetaData(getEncodedWidth(), getEncodedHeight(), mVideoFps, mCurrentVideoBitrate / 1000,
+                               mAudioDevice.getSampleRate(), mAudioBitrate / 1000);
+        Log.i(TAG, String.format("start muxer to SRS, url=%s", url));
         try {
             mFlvMuxer.start();
         } catch (IOException e) {
@@ -498,7 +811,46 @@ public class LiveSessionHW extends LiveSession {
         return true;
     }
 
+    private final ReconnectSupervisor.Callback mReconnectCallback = new ReconnectSupervisor.Callback() {
+        @Override
+        public void onReconnecting(int retryCount) {
+            SessionReconnectListener listener = mReconnectListener;
+            if (listener != null) {
+                listener.onSessionReconnecting(retryCount);
+            }
+        }
+
+        @Override
+        public void onReconnected(long outageMs, int retryCount) {
+            mReconnectCount++;
+            FlvMuxer muxer = mFlvMuxer;
+            if (muxer != null) {
+                muxer.onOutputReconnected();
+            }
+            // the new connection waits for a key frame, don't make it wait for the gop
+            VideoEncoder videoEncoder = mVideoEncoder;
+            if (videoEncoder != null) {
+                videoEncoder.requestSyncFrame();
+            }
+            SessionReconnectListener listener = mReconnectListener;
+            if (listener != null) {
+                listener.onSessionReconnected(outageMs, retryCount);
+            }
+        }
+
+        @Override
+        public void onGaveUp(int errorCode, int retryCount) {
+            if (mStateListener != null) {
+                mStateListener.onSessionError(errorCode);
+            }
+        }
+    };
+
     private void destroyStreamer() {
+        if (mReconnectSupervisor != null) {
+            mReconnectSupervisor.release();
+            mReconnectSupervisor = null;
+        }
         mAudioEncoder.setFlvMuxer(null);
         mVideoEncoder.setFlvMuxer(null);
         if (mFlvMuxer != null) {
@@ -507,10 +859,20 @@ public class LiveSessionHW extends LiveSession {
             mFlvMuxer.release();
             mFlvMuxer = null;
         }
+        if (mSpillQueue != null) {
+            mSpillQueue.release();
+            mSpillQueue = null;
+        }
         if (mRtmpSocket != null) {
             mRtmpSocket.release();
             mRtmpSocket = null;
         }
+        // the connection is kept for the next session, destroyRtmpSession releases it
+        HttpFlvOutput httpFlvOutput = mHttpFlvOutput;
+        if (httpFlvOutput != null) {
+            int status = httpFlvOutput.finish();
+            Log.i(TAG, "http flv stream finished, status=" + status);
+        }
     }
 
     /**
@@ -527,20 +889,25 @@ public class LiveSessionHW extends LiveSession {
             @Override
             public void run() {
                 Log.d(TAG, "Stopping rtmp socket...");
-                mVideoDevice.setOutputSurface(null);
-                destroyStreamer();
-                destroyEncoders();
+                stopStreaming();
                 Log.d(TAG, "The rtmp socket was stopped...");
-                isSessionStarted = false;
                 if (mStateListener != null) {
                     mStateListener.onSessionStopped(SessionStateListener.RESULT_CODE_OF_OPERATION_SUCCEEDED);
                 }
             }
         });
+        mStopThread = tmpThread;
         tmpThread.start();
         return true;
     }
 
+    private void stopStreaming() {
+        mVideoDevice.setOutputSurface(null);
+        destroyStreamer();
+        destroyEncoders();
+        isSessionStarted = false;
+    }
+
     /**
      * 停止音视频采集模块
      */
@@ -550,6 +917,29 @@ public class LiveSessionHW extends LiveSession {
         }
         Log.d(TAG, "Destroying RtmpSession...");
         isSessionPrepared = false;
+        // the devices and the pool must outlive a pending stop
+        if (mStopThread != null) {
+            try {
+                mStopThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mStopThread = null;
+        }
+        if (isSessionStarted) {
+            Log.d(TAG, "Destroying a started session, stop it first");
+            stopStreaming();
+        } else {
+            destroyEncoders();
+        }
+        // the parked encoders are freed with the pool
+        mEncoderPool.release();
+        // no stop is running any more, nothing finishes the stream meanwhile
+        HttpFlvOutput httpFlvOutput = mHttpFlvOutput;
+        mHttpFlvOutput = null;
+        if (httpFlvOutput != null) {
+            httpFlvOutput.release();
+        }
         if (mVideoDevice != null) {
             mVideoDevice.closeCamera();
             mVideoDevice.release();
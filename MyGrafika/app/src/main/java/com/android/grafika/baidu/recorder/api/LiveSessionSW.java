@@ -8,9 +8,12 @@ import com.android.grafika.baidu.recorder.sw.bean.VideoParams;
 import com.android.grafika.baidu.recorder.sw.controller.AudioRecordDevice;
 import com.android.grafika.baidu.recorder.sw.controller.BRecorderJNIWrapper;
 import com.android.grafika.baidu.recorder.sw.controller.IRecorder;
+import com.android.grafika.baidu.recorder.sw.controller.JavaFlvRecorder;
 import com.android.grafika.baidu.recorder.sw.controller.VideoRecordDevice;
 import com.android.grafika.baidu.recorder.util.ScreenUtils;
 import com.android.grafika.baidu.recorder.util.VideoUtil;
+import com.android.grafika.baidu.recorder.util.YuvFrame;
+import com.android.grafika.baidu.recorder.util.YuvWorkerPool;
 
 import android.content.Context;
 import android.hardware.Camera;
@@ -37,6 +40,11 @@ public class LiveSessionSW extends LiveSession {
     private AudioRecordDevice mAudioRecordDevice = null;
     private VideoRecordDevice mVideoRecordDevice = null;
     private VideoUtil mVideoKit = null;
+    // frame preparation threads, at most this many
+    private static final int MAX_FRAME_THREADS = 4;
+    private YuvWorkerPool mFrameWorkers = null;
+    // the layout the native recorder has always been fed
+    private static final int ENCODER_INPUT_FORMAT = YuvFrame.FORMAT_NV21;
     private AudioParams mAudioParams = null;
     private VideoParams mVideoParams = null;
     private Context mContext = null;
@@ -353,6 +361,9 @@ public class LiveSessionSW extends LiveSession {
             if (mRecorder instanceof BRecorderJNIWrapper) {
                 return ((BRecorderJNIWrapper)mRecorder).getCurrentUploadBandwidthKbps();
             }
+            if (mRecorder instanceof JavaFlvRecorder) {
+                return ((JavaFlvRecorder)mRecorder).getCurrentUploadBandwidthKbps();
+            }
         }
         return 0;
     }
@@ -392,21 +403,56 @@ public class LiveSessionSW extends LiveSession {
         boolean isPortrait = !ScreenUtils.screenIsLanscape(mContext);
         mVideoKit.setIsOrientationPortrait(isPortrait);
         mVideoKit.setVideoSize(mVideoParams.getWidth(), mVideoParams.getHeight());
+        mVideoKit.setOutputFormat(ENCODER_INPUT_FORMAT);
+        mFrameWorkers = YuvWorkerPool.create(MAX_FRAME_THREADS);
+        mVideoKit.setWorkerPool(mFrameWorkers);
     }
     
+    private static VideoFrameFormat getVideoFrameFormat(int yuvFormat) {
+        switch (yuvFormat) {
+            case YuvFrame.FORMAT_I420:
+                return VideoFrameFormat.VideoFrameFormatYUV420P;
+            case YuvFrame.FORMAT_NV12:
+                return VideoFrameFormat.VideoFrameFormatNV12;
+            case YuvFrame.FORMAT_NV21:
+                return VideoFrameFormat.VideoFrameFormatNV21;
+            default:
+                throw new IllegalArgumentException("no encoder input format for yuv format " + yuvFormat);
+        }
+    }
+
+    /**
+     * 使用指定的recorder代替默认的native recorder，需在prepareSessionAsync之前调用
+     * 
+     * @param recorder
+     *            e.g. a JavaFlvRecorder to run the session without the native encoder
+     */
+    public void setRecorder(IRecorder recorder) {
+        mRecorder = recorder;
+    }
+
     private void initRecorder() {
-        mRecorder = new BRecorderJNIWrapper();
+        if (mRecorder == null) {
+            mRecorder = new BRecorderJNIWrapper();
+        }
         mRecorder.setStateListener(mStateListener);
         mRecorder.setAudioParams(AudioSampleFormat.AudioSampleFormatS16.ordinal(),
                                  mAudioParams.getnChannels(),
                                  mAudioParams.getSampleRateInHz(),
                                  64 * 1000);
-        mRecorder.setVideoParams(VideoFrameFormat.VideoFrameFormatNV21.ordinal(),
+        mRecorder.setVideoParams(getVideoFrameFormat(mVideoKit.getOutputFormat()).ordinal(),
                                  mVideoKit.getTargetVideoWidth(),
                                  mVideoKit.getTargetVideoHeight(),
+                                 getFrameRate(),
                                  mVideoParams.getBitrate());
     }
 
+    private int getFrameRate() {
+        // the default is in the camera's 1/1000 fps, the one set by the app in fps
+        int fps = mVideoParams.getDefaultFps();
+        return fps >= 1000 ? fps / 1000 : fps;
+    }
+
     /**
      * 该接口将建立与服务器连接并开始推流，该接口会使用到网络，在子线程中执行，注意回调参数值，小于0表示失败，否则表示成功
      * 
@@ -491,6 +537,10 @@ public class LiveSessionSW extends LiveSession {
             mVideoRecordDevice.release();
             mVideoRecordDevice = null;
         }
+        if (mFrameWorkers != null) {
+            mFrameWorkers.release();
+            mFrameWorkers = null;
+        }
         if (mAudioRecordDevice != null) {
             mAudioRecordDevice.close();
             mAudioRecordDevice.release();
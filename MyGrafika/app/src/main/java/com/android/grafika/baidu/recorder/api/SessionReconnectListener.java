@@ -0,0 +1,20 @@
+package com.android.grafika.baidu.recorder.api;
+
+/**
+ * 断线自动重连回调监听，可选，不设置时重连照常进行
+ * 重连次数用完仍未成功时，SessionStateListener将收到onSessionError回调，错误码为断线时的错误
+ */
+public interface SessionReconnectListener {
+    /**
+     * 推流过程中与服务器的连接断开，SDK自动重连前的回调，重连期间采集和编码不会停止
+     * @param retryCount 本次断线后的第几次重连，从1开始
+     */
+    void onSessionReconnecting(int retryCount);
+
+    /**
+     * 自动重连成功后的回调，推流从最新的关键帧继续，时间戳保持连续
+     * @param outageMs 本次断线的时长，单位：毫秒
+     * @param retryCount 本次断线的重连次数
+     */
+    void onSessionReconnected(long outageMs, int retryCount);
+}
@@ -0,0 +1,197 @@
+package com.android.grafika.baidu.recorder.api;
+
+/**
+ * 推流Session运行状态的快照，各项数据在取快照时统计，可频繁调用（如每秒10次）用于界面显示
+ *
+ * 帧率和码率为最近约1秒内的平均值
+ */
+public class SessionStats {
+    /**
+     * 发送队列积压过多，清空队列时丢弃
+     */
+    public static final int DROP_REASON_LATENCY = 0;
+    /**
+     * 发送时连接尚未建立或已断开
+     */
+    public static final int DROP_REASON_NOT_CONNECTED = 1;
+    /**
+     * 发送失败
+     */
+    public static final int DROP_REASON_SEND_FAILED = 2;
+    public static final int DROP_REASON_COUNT = 3;
+
+    long timestampMs;
+    double capturedFps;
+    double renderedFps;
+    double encodedFps;
+    double sentFps;
+    int targetBitrateBps;
+    int actualBitrateBps;
+    int deliveredBitrateBps;
+    long inFlightBytes;
+    int rttMs;
+    double framingOverhead;
+    double socketWritesPerSec;
+    long queuedBytes;
+    long queuedMs;
+    long pacingDelayMs;
+    long spilledBytes;
+    final long[] droppedFrames = new long[DROP_REASON_COUNT];
+    long encodeLatencyUs;
+    long averageEncodeLatencyUs;
+    int reconnectCount;
+
+    SessionStats() {
+    }
+
+    /**
+     * 快照时间，System.currentTimeMillis()
+     */
+    public long getTimestampMs() {
+        return timestampMs;
+    }
+
+    /**
+     * 相机采集帧率
+     */
+    public double getCapturedFps() {
+        return capturedFps;
+    }
+
+    /**
+     * 送入编码器的帧率
+     */
+    public double getRenderedFps() {
+        return renderedFps;
+    }
+
+    /**
+     * 编码器输出帧率
+     */
+    public double getEncodedFps() {
+        return encodedFps;
+    }
+
+    /**
+     * 发送到服务器的视频帧率
+     */
+    public double getSentFps() {
+        return sentFps;
+    }
+
+    public int getTargetBitrateBps() {
+        return targetBitrateBps;
+    }
+
+    /**
+     * 实际发送码率，包含音视频
+     */
+    public int getActualBitrateBps() {
+        return actualBitrateBps;
+    }
+
+    /**
+     * 估算的网络实际送达码率，不含仍在socket发送缓冲区中的数据
+     */
+    public int getDeliveredBitrateBps() {
+        return deliveredBitrateBps;
+    }
+
+    /**
+     * 已写入socket但估算尚未送出的数据量，单位：字节
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    /**
+     * 由建立连接的耗时估算的往返时间，单位：毫秒
+     */
+    public int getRttMs() {
+        return rttMs;
+    }
+
+    /**
+     * rtmp分块头部占实际发送码率的比例
+     */
+    public double getFramingOverhead() {
+        return framingOverhead;
+    }
+
+    /**
+     * 每秒写socket的次数，每个rtmp分块写一次
+     */
+    public double getSocketWritesPerSec() {
+        return socketWritesPerSec;
+    }
+
+    /**
+     * 等待发送的数据量，单位：字节
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * 等待发送的数据时长，单位：毫秒
+     */
+    public long getQueuedMs() {
+        return queuedMs;
+    }
+
+    /**
+     * 断网时暂存到本地、尚未发送的数据量，单位：字节
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * 最近一帧视频为平滑发送码率而等待的时长，单位：毫秒
+     */
+    public long getPacingDelayMs() {
+        return pacingDelayMs;
+    }
+
+    /**
+     * 因reason丢弃的视频帧数，reason为DROP_REASON_*
+     */
+    public long getDroppedFrames(int reason) {
+        return droppedFrames[reason];
+    }
+
+    public long getTotalDroppedFrames() {
+        long total = 0;
+        for (long dropped : droppedFrames) {
+            total += dropped;
+        }
+        return total;
+    }
+
+    /**
+     * 最近一帧的编码耗时，单位：微秒
+     */
+    public long getEncodeLatencyUs() {
+        return encodeLatencyUs;
+    }
+
+    public long getAverageEncodeLatencyUs() {
+        return averageEncodeLatencyUs;
+    }
+
+    /**
+     * 推流过程中重连服务器的次数
+     */
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fps %.1f/%.1f/%.1f/%.1f, bitrate %d/%dkbps, delivered %dkbps, in flight %dKB, rtt %dms, framing %.2f%% %.0f writes/s, queue %dKB %dms, spilled %dKB, pacing %dms, dropped %d, encode %.1fms, reconnects %d",
+                capturedFps, renderedFps, encodedFps, sentFps, actualBitrateBps / 1000, targetBitrateBps / 1000,
+                deliveredBitrateBps / 1000, inFlightBytes / 1024, rttMs,
+                framingOverhead * 100, socketWritesPerSec,
+                queuedBytes / 1024, queuedMs, spilledBytes / 1024, pacingDelayMs, getTotalDroppedFrames(), encodeLatencyUs / 1000.0, reconnectCount);
+    }
+}
@@ -10,6 +10,7 @@ import android.view.SurfaceHolder;
 import com.android.grafika.baidu.recorder.hw.encoder.VideoEncoder;
 import com.android.grafika.baidu.recorder.hw.graghic.*;
 import com.android.grafika.baidu.recorder.hw.muxer.FlvMuxer;
+import com.android.grafika.baidu.recorder.util.LatencyTracker;
 
 import java.io.IOException;
 
@@ -34,6 +35,7 @@ public class VideoCaptureDevice implements AutoFocusCallback, SurfaceHolder.Call
     private Surface mOutputNativeSurface;
 
     private long mPresentationTimeNs = 0;
+    private LatencyTracker mLatencyTracker = null;
     private volatile boolean isSendingVideo = true;
 
     private int targetVideoWidth = 0, targetVideoHeight = 0;
@@ -69,6 +71,10 @@ public class VideoCaptureDevice implements AutoFocusCallback, SurfaceHolder.Call
         mEncoder = encoder;
     }
 
+    public void setLatencyTracker(LatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
     public void save(){
         mEncoder.saveFile();
         isRecording=true;
@@ -460,6 +466,8 @@ public class VideoCaptureDevice implements AutoFocusCallback, SurfaceHolder.Call
 
         // Latch the next frame from the camera.
         mCameraTexture.updateTexImage();
+        LatencyTracker tracker = mLatencyTracker;
+        long captureNs = tracker == null ? 0 : tracker.onCameraLatch(mCameraTexture.getTimestamp());
         mCameraTexture.getTransformMatrix(mTmpMatrix);
         mDisplaySurface.makeCurrent();
 
@@ -498,9 +506,10 @@ public class VideoCaptureDevice implements AutoFocusCallback, SurfaceHolder.Call
 //            }
 //            mFullFrameBlit.drawFrame(testureId, mTmpMatrix);
 
-            mEncoder.frameAvailableSoon();
+            mEncoder.frameAvailableSoon(ptsInNs);
             mEncoderSurface.setPresentationTime(ptsInNs);
             mEncoderSurface.swapBuffers();
+            if (tracker != null) tracker.onEncoderInput(ptsInNs / 1000000, captureNs);
 
     }
 }
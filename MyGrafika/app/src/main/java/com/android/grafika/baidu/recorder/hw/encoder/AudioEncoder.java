@@ -6,6 +6,7 @@ import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.util.Log;
 import com.android.grafika.baidu.recorder.hw.muxer.FlvMuxer;
+import com.android.grafika.baidu.recorder.util.LatencyHistogram;
 
 import java.nio.ByteBuffer;
 
@@ -21,12 +22,16 @@ public class AudioEncoder {
     private int mAudioTrack = -1;
     private volatile boolean isEncoding = false;
     private MediaFormat mFormat = null;
+    // from dequeueOutputBuffer to releaseOutputBuffer, the muxer only copies the sample
+    private final LatencyHistogram mOutputHoldHistogram = new LatencyHistogram();
 
     public AudioEncoder(String mime_type, FlvMuxer muxer) {
         mAudioCodecMimeType = mime_type;
-        MediaCodecInfo codecInfo = selectCodec(mime_type);
+        CodecRegistry registry = CodecRegistry.peek();
+        CodecRegistry.Entry entry = registry == null ? null : registry.findEncoder(mime_type, false);
         try {
-            mAACEncoder = MediaCodec.createByCodecName(codecInfo.getName());
+            mAACEncoder = MediaCodec.createByCodecName(entry != null
+                    ? entry.getName() : selectCodec(mime_type).getName());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -65,7 +70,24 @@ public class AudioEncoder {
         isEncoding = false;
     }
 
-    public void push(byte[] audioSample, long ptsInUs) {
+    /**
+     * Drops the samples in the encoder so it can be started again.  Call after stop().
+     * @return false if the codec failed to flush.
+     */
+    public synchronized boolean flush() {
+        if (mAACEncoder == null) {
+            return false;
+        }
+        try {
+            mAACEncoder.flush();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "flush encoder failed", e);
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void push(byte[] audioSample, long ptsInUs) {
         // feed the aencoder with yuv frame, got the encoded 264 es stream.
         ByteBuffer[] inBuffers = null;
         if (!isEncoding) return;
@@ -98,17 +120,26 @@ public class AudioEncoder {
             int outBufferIndex = mAACEncoder.dequeueOutputBuffer(mCodecBufferInfo, 0);
             //Log.i(TAG, String.format("try to dequeue output vbuffer, ii=%d, oi=%d", inBufferIndex, outBufferIndex));
             if (outBufferIndex >= 0) {
+                long dequeuedNs = System.nanoTime();
                 ByteBuffer bb = outBuffers[outBufferIndex];
                 //Log.i(TAG, String.format("encoded aac %dB, pts=%d", aebi.size, aebi.presentationTimeUs / 1000));
                 //FlvMuxer.srs_print_bytes(TAG, bb, aebi.size);
                 if (isEncoding) onEncodedAacFrame(bb, mCodecBufferInfo);
                 if (isEncoding) mAACEncoder.releaseOutputBuffer(outBufferIndex, false);
+                mOutputHoldHistogram.record((System.nanoTime() - dequeuedNs) / 1000);
             } else {
                 break;
             }
         }
     }
 
+    /**
+     * how long the codec output buffers were held before being released, in us.
+     */
+    public LatencyHistogram getOutputHoldHistogram() {
+        return mOutputHoldHistogram;
+    }
+
     // when got encoded aac raw stream.
     private void onEncodedAacFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
         if (mFlvMuxer == null) return;
@@ -0,0 +1,348 @@
+package com.android.grafika.baidu.recorder.hw.encoder;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The encoders of this device and what they can do.
+ * <p>
+ * The codec list is probed once and written to a small file in the cache dir, keyed by the
+ * build fingerprint, so later startups read that file instead of enumerating MediaCodecList.
+ * What an avc encoder can take is worked out from the levels it reports and, from API 21, its
+ * video capabilities. No encoder is started for it, getInstance() still enumerates the codecs
+ * on the first run, so call it off the main thread.
+ */
+public class CodecRegistry {
+    private static final String TAG = "CodecRegistry";
+    private static final String CACHE_FILE = "codec_registry.txt";
+    private static final int CACHE_VERSION = 2;
+
+    public static final String MIME_AVC = "video/avc";
+
+    // max macroblocks per frame and per second of the avc levels, indexed by the level bit
+    private static final int[] AVC_LEVEL_FRAME_MBS = {
+            99, 99, 396, 396, 396, 396, 792, 1620, 1620, 3600, 5120, 8192, 8192, 8704, 22080, 36864
+    };
+    private static final int[] AVC_LEVEL_MBPS = {
+            1485, 1485, 3000, 6000, 11880, 11880, 19800, 20250, 40500, 108000, 216000,
+            245760, 245760, 522240, 589824, 983040
+    };
+
+    private static CodecRegistry sInstance = null;
+
+    private final List<Entry> mEntries;
+
+    /**
+     * One encoder for one mime type.
+     */
+    public static class Entry {
+        private final String mName;
+        private final String mMime;
+        private final int[] mColorFormats;
+        private final int[] mProfiles;
+        private final int[] mLevels;
+        private int mMaxFrameMbs = Integer.MAX_VALUE;
+        private int mMaxMbps = Integer.MAX_VALUE;
+        // from the video capabilities, not limited below API 21
+        private int mMaxWidth = Integer.MAX_VALUE;
+        private int mMaxHeight = Integer.MAX_VALUE;
+        private int mWidthAlignment = 1;
+        private int mHeightAlignment = 1;
+        private int mMaxFps = Integer.MAX_VALUE;
+
+        Entry(String name, String mime, int[] colorFormats, int[] profiles, int[] levels) {
+            mName = name;
+            mMime = mime;
+            mColorFormats = colorFormats;
+            mProfiles = profiles;
+            mLevels = levels;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getMime() {
+            return mMime;
+        }
+
+        public int[] getColorFormats() {
+            return mColorFormats;
+        }
+
+        public boolean isSoftware() {
+            return mName.startsWith("OMX.google.") || mName.startsWith("c2.android.");
+        }
+
+        public boolean supportsColorFormat(int colorFormat) {
+            for (int format : mColorFormats) {
+                if (format == colorFormat) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * the highest profile, then highest level, or null when the codec reports none.
+         */
+        public MediaCodecInfo.CodecProfileLevel getMaxProfileLevel() {
+            MediaCodecInfo.CodecProfileLevel max = null;
+            for (int i = 0; i < mProfiles.length; i++) {
+                if (max == null || max.profile < mProfiles[i]
+                        || (max.profile == mProfiles[i] && max.level < mLevels[i])) {
+                    max = new MediaCodecInfo.CodecProfileLevel();
+                    max.profile = mProfiles[i];
+                    max.level = mLevels[i];
+                }
+            }
+            return max;
+        }
+
+        /**
+         * whether the size and rate are within what the codec reports, its best level and
+         * its video capabilities.
+         */
+        public boolean canEncode(int width, int height, int fps) {
+            long frameMbs = (long) ((width + 15) / 16) * ((height + 15) / 16);
+            if (frameMbs > mMaxFrameMbs || frameMbs * fps > mMaxMbps) {
+                return false;
+            }
+            return width <= mMaxWidth && height <= mMaxHeight && width % mWidthAlignment == 0
+                    && height % mHeightAlignment == 0 && fps <= mMaxFps;
+        }
+
+        private String toLine() {
+            return mName + "\t" + mMime + "\t" + join(mColorFormats) + "\t" + join(mProfiles)
+                    + "\t" + join(mLevels) + "\t" + mMaxFrameMbs + "\t" + mMaxMbps + "\t" + mMaxWidth
+                    + "\t" + mMaxHeight + "\t" + mWidthAlignment + "\t" + mHeightAlignment + "\t" + mMaxFps;
+        }
+
+        private static Entry fromLine(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 12) {
+                throw new IllegalArgumentException("bad codec line: " + line);
+            }
+            Entry entry = new Entry(fields[0], fields[1], split(fields[2]), split(fields[3]), split(fields[4]));
+            entry.mMaxFrameMbs = Integer.parseInt(fields[5]);
+            entry.mMaxMbps = Integer.parseInt(fields[6]);
+            entry.mMaxWidth = Integer.parseInt(fields[7]);
+            entry.mMaxHeight = Integer.parseInt(fields[8]);
+            entry.mWidthAlignment = Math.max(1, Integer.parseInt(fields[9]));
+            entry.mHeightAlignment = Math.max(1, Integer.parseInt(fields[10]));
+            entry.mMaxFps = Integer.parseInt(fields[11]);
+            return entry;
+        }
+    }
+
+    private CodecRegistry(List<Entry> entries) {
+        mEntries = entries;
+    }
+
+    /**
+     * the registry of this device, read from the cache or probed if the cache is missing or stale.
+     */
+    public static synchronized CodecRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            File cache = new File(context.getCacheDir(), CACHE_FILE);
+            List<Entry> entries = load(cache);
+            if (entries == null) {
+                long start = System.currentTimeMillis();
+                entries = probe();
+                Log.d(TAG, "probed " + entries.size() + " encoders in "
+                        + (System.currentTimeMillis() - start) + "ms");
+                save(cache, entries);
+            }
+            sInstance = new CodecRegistry(entries);
+        }
+        return sInstance;
+    }
+
+    /**
+     * the registry if getInstance was already called, else null.
+     */
+    public static synchronized CodecRegistry peek() {
+        return sInstance;
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * the first encoder of mime in the order the platform lists them, hardware first.
+     */
+    public Entry findEncoder(String mime, boolean hardwareOnly) {
+        Entry best = null;
+        for (Entry entry : mEntries) {
+            if (entry.mMime.equalsIgnoreCase(mime) && !(hardwareOnly && entry.isSoftware())
+                    && (best == null || (best.isSoftware() && !entry.isSoftware()))) {
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * the first hardware encoder of mime able to encode width x height at fps, or null.
+     * Only hardware encoders take a surface as input.
+     */
+    public Entry findHardwareEncoder(String mime, int width, int height, int fps) {
+        for (Entry entry : mEntries) {
+            if (entry.mMime.equalsIgnoreCase(mime) && !entry.isSoftware()
+                    && entry.canEncode(width, height, fps)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static List<Entry> probe() {
+        List<Entry> entries = new ArrayList<Entry>();
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                Entry entry;
+                try {
+                    entry = probeType(codecInfo, type);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "failed to get the capabilities of " + codecInfo.getName() + " " + type, e);
+                    continue;
+                }
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private static Entry probeType(MediaCodecInfo codecInfo, String type) {
+        MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(type);
+        int count = capabilities.profileLevels.length;
+        int[] profiles = new int[count];
+        int[] levels = new int[count];
+        int maxLevel = 0;
+        for (int i = 0; i < count; i++) {
+            profiles[i] = capabilities.profileLevels[i].profile;
+            levels[i] = capabilities.profileLevels[i].level;
+            maxLevel = Math.max(maxLevel, levels[i]);
+        }
+        Entry entry = new Entry(codecInfo.getName(), type, capabilities.colorFormats, profiles, levels);
+
+        if (MIME_AVC.equalsIgnoreCase(type)) {
+            if (maxLevel > 0) {
+                int index = Math.min(31 - Integer.numberOfLeadingZeros(maxLevel), AVC_LEVEL_MBPS.length - 1);
+                entry.mMaxFrameMbs = AVC_LEVEL_FRAME_MBS[index];
+                entry.mMaxMbps = AVC_LEVEL_MBPS[index];
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+                if (video != null) {
+                    entry.mMaxWidth = video.getSupportedWidths().getUpper();
+                    entry.mMaxHeight = video.getSupportedHeights().getUpper();
+                    entry.mWidthAlignment = video.getWidthAlignment();
+                    entry.mHeightAlignment = video.getHeightAlignment();
+                    entry.mMaxFps = video.getSupportedFrameRates().getUpper();
+                }
+            }
+        }
+        Log.d(TAG, "encoder " + entry.toLine());
+        return entry;
+    }
+
+    private static String cacheHeader() {
+        return CACHE_VERSION + "\t" + Build.FINGERPRINT;
+    }
+
+    private static List<Entry> load(File cache) {
+        if (!cache.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(cache));
+            if (!cacheHeader().equals(reader.readLine())) {
+                Log.d(TAG, "codec cache is stale");
+                return null;
+            }
+            List<Entry> entries = new ArrayList<Entry>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    entries.add(Entry.fromLine(line));
+                }
+            }
+            return entries;
+        } catch (IOException e) {
+            Log.w(TAG, "failed to read codec cache", e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "codec cache is broken", e);
+        } finally {
+            closeQuietly(reader);
+        }
+        return null;
+    }
+
+    private static void save(File cache, List<Entry> entries) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(cache);
+            writer.write(cacheHeader() + "\n");
+            for (Entry entry : entries) {
+                writer.write(entry.toLine() + "\n");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write codec cache", e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String join(int[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+
+    private static int[] split(String field) {
+        if (field.length() == 0) {
+            return new int[0];
+        }
+        String[] parts = field.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i]);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,95 @@
+package com.android.grafika.baidu.recorder.hw.encoder;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the encoders of a stopped session configured, so the next start skips creating them.
+ * <p>
+ * An encoder is flushed when put back and handed out again only for the same format. Encoders
+ * put back after release() are released right away, and so are the video encoders which can't
+ * be asked for a key frame: after a flush the next stream would wait a gop for one.
+ */
+public class EncoderPool {
+    private static final String TAG = "EncoderPool";
+
+    private final Map<String, VideoEncoder> mVideoEncoders = new HashMap<String, VideoEncoder>();
+    private final Map<String, AudioEncoder> mAudioEncoders = new HashMap<String, AudioEncoder>();
+    private boolean isReleased = false;
+
+    public static String videoKey(String mime, int width, int height, int bitrate, int fps, int gop) {
+        return mime + ":" + width + "x" + height + "@" + fps + ":" + bitrate + ":" + gop;
+    }
+
+    public static String audioKey(String mime, int sampleRate, int channels, int bitrate) {
+        return mime + ":" + sampleRate + "x" + channels + ":" + bitrate;
+    }
+
+    /**
+     * a parked encoder configured for key, or null.
+     */
+    public synchronized VideoEncoder takeVideoEncoder(String key) {
+        VideoEncoder encoder = mVideoEncoders.remove(key);
+        if (encoder != null) Log.d(TAG, "reuse video encoder " + key);
+        return encoder;
+    }
+
+    public synchronized AudioEncoder takeAudioEncoder(String key) {
+        AudioEncoder encoder = mAudioEncoders.remove(key);
+        if (encoder != null) Log.d(TAG, "reuse audio encoder " + key);
+        return encoder;
+    }
+
+    /**
+     * stops and flushes encoder and keeps it for key, in place of any encoder kept for it before.
+     * An encoder failing to flush is released.
+     */
+    public synchronized void putVideoEncoder(String key, VideoEncoder encoder) {
+        encoder.stop();
+        if (isReleased || !VideoEncoder.canRequestSyncFrame()) {
+            encoder.release();
+            return;
+        }
+        if (!encoder.flush()) {
+            encoder.release();
+            return;
+        }
+        VideoEncoder old = mVideoEncoders.put(key, encoder);
+        if (old != null && old != encoder) {
+            old.release();
+        }
+    }
+
+    public synchronized void putAudioEncoder(String key, AudioEncoder encoder) {
+        encoder.stop();
+        if (isReleased) {
+            encoder.release();
+            return;
+        }
+        if (!encoder.flush()) {
+            encoder.release();
+            return;
+        }
+        AudioEncoder old = mAudioEncoders.put(key, encoder);
+        if (old != null && old != encoder) {
+            old.release();
+        }
+    }
+
+    /**
+     * releases the parked encoders.
+     */
+    public synchronized void release() {
+        isReleased = true;
+        for (VideoEncoder encoder : mVideoEncoders.values()) {
+            encoder.release();
+        }
+        mVideoEncoders.clear();
+        for (AudioEncoder encoder : mAudioEncoders.values()) {
+            encoder.release();
+        }
+        mAudioEncoders.clear();
+    }
+}
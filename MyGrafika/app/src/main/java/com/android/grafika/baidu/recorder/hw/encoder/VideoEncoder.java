@@ -21,6 +21,8 @@ import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
@@ -30,6 +32,8 @@ import android.view.Surface;
 
 import com.android.grafika.CircularEncoderBuffer;
 import com.android.grafika.baidu.recorder.hw.muxer.FlvMuxer;
+import com.android.grafika.baidu.recorder.util.LatencyHistogram;
+import com.android.grafika.baidu.recorder.util.LatencyTracker;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -39,6 +43,8 @@ import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 视频编码器
@@ -74,17 +80,48 @@ public class VideoEncoder {
 
     private String mVideoCodecMimeType = null;
     private int mVideoTrack = 100;
-    private FlvMuxer mFlvMuxer = null;
+    private volatile FlvMuxer mFlvMuxer = null;
     private volatile boolean isEncoding = false;
+    // sps/pps of the running encoder, and the muxer it was last written to
+    private byte[] mCodecConfig = null;
+    private FlvMuxer mConfiguredMuxer = null;
+    // asked for a key frame for the muxer, once until it got one
+    private boolean isSyncFrameRequested = false;
+
+    /**
+     * The encoder thread drains when told a frame is coming, polling the codec without waiting.
+     */
+    public static final int DRAIN_MODE_POLL = 0;
+    /**
+     * The encoder thread keeps waiting on the codec while encoding, so each frame is muxed as
+     * soon as the codec is done with it.
+     */
+    public static final int DRAIN_MODE_BLOCKING = 1;
+    private static final long DRAIN_TIMEOUT_USEC = 10 * 1000;
+    private int mDrainMode = DRAIN_MODE_BLOCKING;
+    private final AtomicBoolean isDrainLooping = new AtomicBoolean(false);
+
+    // pts and wall time of the frames sent to the input surface but not yet out of the codec
+    private static final int PENDING_FRAME_COUNT = 16;
+    private final long[] mPendingPtsUs = new long[PENDING_FRAME_COUNT];
+    private final long[] mPendingSubmitNs = new long[PENDING_FRAME_COUNT];
+    private int mPendingIndex = 0;
+    private volatile long mLastEncodeLatencyUs = 0;
+    private volatile long mMaxEncodeLatencyUs = 0;
+    private long mEncodeLatencySumUs = 0;
+    private volatile long mEncodedFrameCount = 0;
+    private LatencyTracker mLatencyTracker = null;
+    // from dequeueOutputBuffer to releaseOutputBuffer, the muxer only copies the sample
+    private final LatencyHistogram mOutputHoldHistogram = new LatencyHistogram();
 
 
 
 
 
     /**
-     *配置编码器,准备输入表面。
+     *配置编码器,准备输入表面。编码器按宽高和帧率选择，与CodecRegistry.findHardwareEncoder一致。
      */
-    public VideoEncoder(String mimeType, FlvMuxer muxer) throws IOException {
+    public VideoEncoder(String mimeType, int width, int height, int frameRate, FlvMuxer muxer) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
@@ -97,9 +134,30 @@ public class VideoEncoder {
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.work
-        mCodecInfo = selectCodec(mimeType);
-        mAVCEncoder = MediaCodec.createByCodecName(mCodecInfo.getName());
-        mMaxCodecProfileLevel = selectProfileAndLevel(mCodecInfo, mimeType);
+        // the input is a surface, which only hardware encoders take
+        CodecRegistry registry = CodecRegistry.peek();
+        CodecRegistry.Entry entry = null;
+        if (registry != null) {
+            entry = registry.findHardwareEncoder(mimeType, width, height, frameRate);
+            if (entry == null) {
+                Log.w(TAG, String.format("no hardware encoder reports %dx%d@%dfps, try the first one",
+                        width, height, frameRate));
+                entry = registry.findEncoder(mimeType, true);
+            }
+        }
+        if (entry != null) {
+            mAVCEncoder = MediaCodec.createByCodecName(entry.getName());
+            mMaxCodecProfileLevel = entry.getMaxProfileLevel();
+        } else {
+            mCodecInfo = selectCodec(mimeType);
+            mAVCEncoder = MediaCodec.createByCodecName(mCodecInfo.getName());
+            mMaxCodecProfileLevel = selectProfileAndLevel(mCodecInfo, mimeType);
+        }
+        if (mMaxCodecProfileLevel == null) {
+            mMaxCodecProfileLevel = new MediaCodecInfo.CodecProfileLevel();
+            mMaxCodecProfileLevel.profile = MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+            mMaxCodecProfileLevel.level = MediaCodecInfo.CodecProfileLevel.AVCLevel31;
+        }
         if (mMaxCodecProfileLevel.profile < mPreferedCodecProfile
                 || (mMaxCodecProfileLevel.profile == mPreferedCodecProfile
                     && mMaxCodecProfileLevel.level < mPreferedCodecLevel)) {
@@ -222,14 +280,58 @@ public class VideoEncoder {
         return mInputSurface;
     }
 
+    public void setLatencyTracker(LatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    /**
+     * DRAIN_MODE_POLL or DRAIN_MODE_BLOCKING, set before start().
+     */
+    public void setDrainMode(int mode) {
+        mDrainMode = mode;
+    }
+
     public void start() {
         isEncoding = true;
+        if (mDrainMode == DRAIN_MODE_BLOCKING) {
+            startDrainLoop();
+        }
+    }
+
+    private void startDrainLoop() {
+        if (mEncoderThread != null && isDrainLooping.compareAndSet(false, true)) {
+            Handler handler = mEncoderThread.getHandler();
+            handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_DRAIN));
+        }
     }
 
     public void stop() {
         isEncoding = false;
     }
 
+    /**
+     * Drops the frames in the encoder so it can be started again, on the encoder thread.
+     * <p>
+     * Call after stop().  Returns false if the codec failed to flush.
+     */
+    public boolean flush() {
+        if (mEncoderThread == null) {
+            return false;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        boolean[] result = new boolean[1];
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_FLUSH,
+                new Object[] {done, result}));
+        try {
+            done.await();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Encoder flush was interrupted", ie);
+            return false;
+        }
+        return result[0];
+    }
+
     /**
      * Shuts down the encoder thread, and releases encoder resources.
      * <p>
@@ -271,21 +373,148 @@ public class VideoEncoder {
      * indefinitely.
      */
     public void frameAvailableSoon() {
+        if (mDrainMode == DRAIN_MODE_BLOCKING) {
+            return;
+        }
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(
                 EncoderThread.EncoderHandler.MSG_FRAME_AVAILABLE_SOON));
     }
 
+    /**
+     * Like frameAvailableSoon(), with the presentation time the frame will be given, in ns,
+     * to measure how long the codec takes with it.
+     */
+    public void frameAvailableSoon(long ptsInNs) {
+        synchronized (mPendingPtsUs) {
+            mPendingPtsUs[mPendingIndex] = ptsInNs / 1000;
+            mPendingSubmitNs[mPendingIndex] = System.nanoTime();
+            mPendingIndex = (mPendingIndex + 1) % PENDING_FRAME_COUNT;
+        }
+        frameAvailableSoon();
+    }
+
+    // on the encoder thread, when the frame of ptsUs came out of the codec
+    private void onFrameEncoded(long ptsUs) {
+        long submitNs = 0;
+        synchronized (mPendingPtsUs) {
+            for (int i = 0; i < PENDING_FRAME_COUNT; i++) {
+                if (mPendingSubmitNs[i] != 0 && mPendingPtsUs[i] == ptsUs) {
+                    submitNs = mPendingSubmitNs[i];
+                    mPendingSubmitNs[i] = 0;
+                    break;
+                }
+            }
+        }
+        if (submitNs == 0) {
+            return;
+        }
+        long latencyUs = (System.nanoTime() - submitNs) / 1000;
+        mLastEncodeLatencyUs = latencyUs;
+        mMaxEncodeLatencyUs = Math.max(mMaxEncodeLatencyUs, latencyUs);
+        mEncodeLatencySumUs += latencyUs;
+        mEncodedFrameCount++;
+        if (VERBOSE) Log.d(TAG, "frame " + ptsUs + " encoded in " + latencyUs + "us");
+    }
+
+    /**
+     * time from frameAvailableSoon(ptsInNs) to the frame coming out of the codec, in us.
+     */
+    public long getLastEncodeLatencyUs() {
+        return mLastEncodeLatencyUs;
+    }
+
+    public long getMaxEncodeLatencyUs() {
+        return mMaxEncodeLatencyUs;
+    }
+
+    public long getAverageEncodeLatencyUs() {
+        long count = mEncodedFrameCount;
+        return count == 0 ? 0 : mEncodeLatencySumUs / count;
+    }
+
+    /**
+     * how long the codec output buffers were held before being released, in us.
+     */
+    public LatencyHistogram getOutputHoldHistogram() {
+        return mOutputHoldHistogram;
+    }
+
     // when got encoded h264 es stream.
     private void onEncodedAnnexbFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
-        if (mFlvMuxer == null) return;
+        if ((bi.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            mCodecConfig = new byte[bi.size];
+            es.get(mCodecConfig);
+            es.position(bi.offset);
+        }
+        FlvMuxer muxer = mFlvMuxer;
+        if (muxer == null) return;
         try {
-            mFlvMuxer.writeSampleData(mVideoTrack, es, bi);
+            if (muxer != mConfiguredMuxer) {
+                mConfiguredMuxer = muxer;
+                if (mCodecConfig != null && (bi.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    // the encoder was started before this muxer came, it needs the sps/pps again
+                    // and a key frame to start from. The muxer drops the frames before it, so
+                    // without the request the stream starts at the next gop
+                    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                    info.set(0, mCodecConfig.length, bi.presentationTimeUs, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                    muxer.writeSampleData(mVideoTrack, ByteBuffer.wrap(mCodecConfig), info);
+                    requestSyncFrame();
+                }
+            }
+            muxer.writeSampleData(mVideoTrack, es, bi);
+            // the muxer fell behind and dropped a frame, don't make it wait for the gop
+            if (muxer.isVideoWaitingForKeyFrame()) {
+                if (!isSyncFrameRequested) {
+                    isSyncFrameRequested = true;
+                    requestSyncFrame();
+                }
+            } else {
+                isSyncFrameRequested = false;
+            }
         } catch (Exception e) {
             Log.e(TAG, "muxer write video sample failed.");
             e.printStackTrace();
         }
     }
+    /**
+     * changes the target bitrate of the running codec, on KitKat and later.
+     * @return false if it can't be changed.
+     */
+    public boolean setBitrate(int bitrateBps) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || mAVCEncoder == null) {
+            return false;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrateBps);
+        try {
+            mAVCEncoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "set bitrate failed", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * whether requestSyncFrame() works, the codec takes the request from KitKat on.
+     */
+    public static boolean canRequestSyncFrame() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * asks the codec for a key frame soon, on KitKat and later.
+     */
+    public void requestSyncFrame() {
+        if (!canRequestSyncFrame() || mAVCEncoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mAVCEncoder.setParameters(params);
+    }
+
     public void saveFile(){
         Log.d(TAG,"Handler sendMessager!");
         Handler handler=mEncoderThread.getHandler();
@@ -408,15 +637,34 @@ public class VideoEncoder {
 
 
         /**
-         * Drains all pending output from the decoder, and adds it to the circular buffer.
+         * Drains while encoding, waiting on the codec for output, and queues itself again so
+         * the other messages get handled between two passes.
          */
+        void drainLoop() {
+            if (!mEncoder.isEncoding) {
+                mEncoder.isDrainLooping.set(false);
+                // start() may have come after the check above and seen the loop still running
+                if (!mEncoder.isEncoding || !mEncoder.isDrainLooping.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+            drainEncoder(DRAIN_TIMEOUT_USEC);
+            mHandler.sendMessage(mHandler.obtainMessage(EncoderHandler.MSG_DRAIN));
+        }
+
         public void drainEncoder() {
+            drainEncoder(0);    // no timeout -- check for buffers, bail if none
+        }
+
+        /**
+         * Drains all pending output from the decoder, and adds it to the circular buffer.
+         */
+        public void drainEncoder(long timeoutUs) {
             if (!mEncoder.isEncoding) return;
-            final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
 
             ByteBuffer[] encoderOutputBuffers = mEncoder.mAVCEncoder.getOutputBuffers();
             while (mEncoder.isEncoding) {
-                int encoderStatus = mEncoder.mAVCEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                int encoderStatus = mEncoder.mAVCEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
                 if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     // no output available yet
                     break;
@@ -432,6 +680,7 @@ public class VideoEncoder {
                             encoderStatus);
                     // let's ignore it
                 } else {
+                    long dequeuedNs = System.nanoTime();
                     ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
                     if (encodedData == null) {
                         throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
@@ -455,6 +704,13 @@ public class VideoEncoder {
                         }
 
 
+                        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                            mEncoder.onFrameEncoded(mBufferInfo.presentationTimeUs);
+                            LatencyTracker tracker = mEncoder.mLatencyTracker;
+                            if (tracker != null) {
+                                tracker.mark(LatencyTracker.STAGE_ENCODER_OUTPUT, mBufferInfo.presentationTimeUs / 1000);
+                            }
+                        }
                         if (mEncoder.isEncoding) mEncoder.onEncodedAnnexbFrame(encodedData, mBufferInfo);
 
                         if (VERBOSE) {
@@ -464,6 +720,7 @@ public class VideoEncoder {
                     }
 
                     if (mEncoder.isEncoding) mEncoder.mAVCEncoder.releaseOutputBuffer(encoderStatus, false);
+                    mEncoder.mOutputHoldHistogram.record((System.nanoTime() - dequeuedNs) / 1000);
 
                     if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         Log.w(TAG, "reached end of stream unexpectedly");
@@ -473,6 +730,16 @@ public class VideoEncoder {
             }
         }
 
+        void flush(CountDownLatch done, boolean[] result) {
+            try {
+                mEncoder.mAVCEncoder.flush();
+                result[0] = true;
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "flush encoder failed", e);
+            }
+            done.countDown();
+        }
+
         /**
          * Tells the Looper to quit.
          */
@@ -492,6 +759,8 @@ public class VideoEncoder {
             public static final int MSG_SHUTDOWN = 2;
             public static final int MSG_SAVE=3;
             public static final int MSG_STOP=4;
+            public static final int MSG_FLUSH = 5;
+            public static final int MSG_DRAIN = 6;
 
 
             // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
@@ -531,6 +800,13 @@ public class VideoEncoder {
                     case MSG_STOP:
                         encoderThread.stopRecord();
                         break;
+                    case MSG_DRAIN:
+                        encoderThread.drainLoop();
+                        break;
+                    case MSG_FLUSH:
+                        Object[] args = (Object[]) msg.obj;
+                        encoderThread.flush((CountDownLatch) args[0], (boolean[]) args[1]);
+                        break;
                     default:
                         throw new RuntimeException("unknown message " + what);
                 }
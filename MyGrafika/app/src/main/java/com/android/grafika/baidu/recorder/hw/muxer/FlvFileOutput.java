@@ -0,0 +1,108 @@
+package com.android.grafika.baidu.recorder.hw.muxer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.util.Log;
+
+/**
+ * Writes the tags as a plain flv stream, e.g. to a file to check the muxer output offline.
+ */
+public class FlvFileOutput implements FlvOutput {
+    private static final String TAG = "FlvFileOutput";
+    static final int TAG_HEADER_SIZE = 11;
+    private static final int TYPE_SCRIPT = 0x12;
+    private static final int TYPE_METADATA = 0x16;
+    // the AMF string "@setDataFrame" which starts the metadata sent over rtmp, not used in files
+    private static final int SET_DATA_FRAME_SIZE = 16;
+
+    private OutputStream mOut;
+    private final byte[] mHeader = new byte[TAG_HEADER_SIZE];
+    private final byte[] mTagSize = new byte[4];
+    private long mWrittenBytes = 0;
+
+    public FlvFileOutput(OutputStream out, boolean hasAudio, boolean hasVideo) throws IOException {
+        mOut = out;
+        byte[] header = makeFileHeader(hasAudio, hasVideo);
+        mOut.write(header);
+        mWrittenBytes = header.length;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mOut != null;
+    }
+
+    @Override
+    public int writeTag(byte[] buf, int len, long dts, int type) {
+        if (mOut == null) {
+            return -1;
+        }
+        int offset = payloadOffset(buf, len, type);
+        int size = len - offset;
+        putTagHeader(mHeader, 0, type, size, dts);
+        try {
+            mOut.write(mHeader);
+            mOut.write(buf, offset, size);
+            int tagSize = TAG_HEADER_SIZE + size;
+            mTagSize[0] = (byte) (tagSize >> 24);
+            putBe24(mTagSize, 1, tagSize);
+            mOut.write(mTagSize);
+            mWrittenBytes += tagSize + 4;
+        } catch (IOException e) {
+            Log.e(TAG, "write flv tag failed", e);
+            return -1;
+        }
+        return len;
+    }
+
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    public void close() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mOut = null;
+        }
+    }
+
+    /**
+     * the flv header and the size of the tag before the first, 13 bytes.
+     */
+    static byte[] makeFileHeader(boolean hasAudio, boolean hasVideo) {
+        byte flags = (byte) ((hasAudio ? 0x04 : 0) | (hasVideo ? 0x01 : 0));
+        return new byte[] {'F', 'L', 'V', 0x01, flags, 0, 0, 0, 9, 0, 0, 0, 0};
+    }
+
+    /**
+     * where the tag body starts in buf, past the "@setDataFrame" of the metadata.
+     */
+    static int payloadOffset(byte[] buf, int len, int type) {
+        if (type == TYPE_METADATA && len > SET_DATA_FRAME_SIZE && buf[0] == 0x02 && buf[3] == '@') {
+            return SET_DATA_FRAME_SIZE;
+        }
+        return 0;
+    }
+
+    /**
+     * the 11 bytes tag header at offset, the metadata becomes a script tag.
+     */
+    static void putTagHeader(byte[] b, int offset, int type, int size, long dts) {
+        b[offset] = (byte) (type == TYPE_METADATA ? TYPE_SCRIPT : type);
+        putBe24(b, offset + 1, size);
+        putBe24(b, offset + 4, (int) dts);
+        b[offset + 7] = (byte) (dts >> 24);
+        putBe24(b, offset + 8, 0);
+    }
+
+    static void putBe24(byte[] b, int offset, int val) {
+        b[offset] = (byte) (val >> 16);
+        b[offset + 1] = (byte) (val >> 8);
+        b[offset + 2] = (byte) val;
+    }
+}
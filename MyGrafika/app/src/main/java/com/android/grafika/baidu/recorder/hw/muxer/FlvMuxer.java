@@ -2,14 +2,23 @@ package com.android.grafika.baidu.recorder.hw.muxer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.android.grafika.baidu.recorder.api.SessionStateListener;
+import com.android.grafika.baidu.recorder.api.SessionStats;
+import com.android.grafika.baidu.recorder.hw.rtmp.DeliveryEstimator;
+import com.android.grafika.baidu.recorder.hw.rtmp.ReconnectSupervisor;
 import com.android.grafika.baidu.recorder.hw.rtmp.RtmpSocket;
+import com.android.grafika.baidu.recorder.util.LatencyHistogram;
+import com.android.grafika.baidu.recorder.util.LatencyTracker;
+import com.android.grafika.baidu.recorder.util.StripedCounters;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
@@ -22,7 +31,9 @@ public class FlvMuxer {
     private Looper looper;
     private Handler handler;
 
-    private SrsFlv flv;
+    private final FlvTagWriter mTagWriter;
+    // where the muxed tags are queued, set while the send worker runs
+    private Handler mTagHandler = null;
     private SrsFlvFrameBytes mFlvMetadata;
 
     private static final int VIDEO_TRACK = 100;
@@ -30,16 +41,81 @@ public class FlvMuxer {
     private static final int UNKNOWN_TRACK = 102;
     private static final String TAG = "FlvMuxer";
 
-    private RtmpSocket mRtmpSocket = null;
+    private FlvOutput mOutput = null;
 
-    private int mTotalSendBytes = 0;
+    // the upload bandwidth counts what the link took, not what the socket buffered
+    private final DeliveryEstimator mDelivery = new DeliveryEstimator();
+    private long mLastReportedDeliveredBytes = 0;
     private long mLastReportedTime = 0;
     private double mUploadBindwidthInKBps = 0;
     private SessionStateListener mStateListener = null;
     private static final int UPLOAD_BINDWIDTH_REPORT_INTERVAL_IN_MS = 2000;
     
     private volatile long mPtsOfLastSentPacketInMs = 0;
+    private volatile long mFirstVideoFrameSentTimeMs = 0;
+    private LatencyTracker mLatencyTracker = null;
+
+    // counters for the session stats
+    private static final int COUNTER_QUEUED_BYTES = 0;
+    private static final int COUNTER_SENT_BYTES = 1;
+    private static final int COUNTER_SENT_VIDEO_FRAMES = 2;
+    private static final int COUNTER_DROPPED_FRAMES = 3;
+    private final StripedCounters mCounters =
+            new StripedCounters(COUNTER_DROPPED_FRAMES + SessionStats.DROP_REASON_COUNT);
+    private volatile long mDtsOfLastQueuedPacketInMs = 0;
+    // bumped by clearSendingBuffer, the packets queued before are dropped when their turn comes
+    private final AtomicInteger mQueueGeneration = new AtomicInteger();
     public static final int THRESHOLD_OF_LATENCY_IN_MS_TO_DROP_PACKET = 2000;
+    // a write blocked this long on stop has a stalled connection
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    // the encoders only copy their samples out of the codec buffers, muxing is done here
+    private static final int MAX_PENDING_SAMPLES = 128;
+    private static final int MAX_POOLED_SAMPLES = 16;
+    private HandlerThread mMuxThread = null;
+    private volatile Handler mMuxHandler = null;
+    private final ArrayDeque<SrsEncodedSample> mSamplePool = new ArrayDeque<SrsEncodedSample>();
+    private final AtomicInteger mPendingSamples = new AtomicInteger();
+    // a video frame was dropped, the ones after it reference it until the next key frame
+    private volatile boolean isVideoWaitingForKeyFrame = false;
+    // the tag buffers of the frames, the mux thread takes them and the send worker gives them back
+    private static final int MAX_POOLED_TAGS = 32;
+    private final ArrayList<ByteBuffer> mTagPool = new ArrayList<ByteBuffer>();
+
+    // the send pacing, a token bucket in bytes refilled at a bit more than the target bitrate
+    // so that an IDR doesn't go out in one burst with the audio stuck behind it
+    private static final int PACING_BURST_IN_MS = 100;
+    private static final double PACING_HEADROOM = 1.5;
+    private volatile int mPacingBytesPerSec = 0;
+    private long mPacingTokens = 0;
+    private long mLastPacingNs = 0;
+    private boolean isPaceScheduled = false;
+    private final ArrayDeque<SrsFlvFrame> mPacedAudioFrames = new ArrayDeque<SrsFlvFrame>();
+    private final ArrayDeque<SrsFlvFrame> mPacedVideoFrames = new ArrayDeque<SrsFlvFrame>();
+    private final LatencyHistogram mAudioPacingDelay = new LatencyHistogram();
+    private final LatencyHistogram mVideoPacingDelay = new LatencyHistogram();
+    private volatile long mLastVideoPacingDelayUs = 0;
+
+    // the optional spill to disk while the uplink is down
+    public static final int SPILL_DRAIN_CATCH_UP = 0;
+    public static final int SPILL_DRAIN_LIVE_EDGE = 1;
+    private SpillQueue mSpillQueue = null;
+    private int mSpillDrainMode = SPILL_DRAIN_CATCH_UP;
+    private double mSpillDrainSpeed = 1;
+    private final SpillQueue.Record mSpillRecord = new SpillQueue.Record();
+    private volatile boolean isSpilling = false;
+    private volatile long mSpilledBytes = 0;
+    private long mSpillDrainStartNs = -1;
+    private int mSpillDrainBaseDts = 0;
+    private long mSpillSkipBeforeSeq = -1;
+
+    // reconnecting, the new connection starts from the sequence headers and a key frame
+    private ReconnectSupervisor mReconnectSupervisor = null;
+    private volatile SrsFlvFrameBytes mVideoSequenceHeader = null;
+    private volatile SrsFlvFrameBytes mAudioSequenceHeader = null;
+    private boolean isWaitingForKeyFrame = false;
+    // set when the supervisor took over, until the new connection got the headers
+    private boolean isOutputLost = false;
     private static final int CTS_OF_FRAME_IN_MS = 5;
 
     /**
@@ -51,7 +127,30 @@ public class FlvMuxer {
         mFlvMetadata = null;
 
         url = path;
-        flv = new SrsFlv();
+        mTagWriter = new FlvTagWriter(new FlvTagWriter.TagSink() {
+            @Override
+            public ByteBuffer obtainTagBuffer(int size) {
+                return FlvMuxer.this.obtainTagBuffer(size);
+            }
+
+            @Override
+            public void onTag(int type, int dts, int frameType, int packetType, ByteBuffer tag, int size,
+                              boolean pooled) {
+                SrsFlvFrameBytes bytes = new SrsFlvFrameBytes();
+                bytes.frame = tag;
+                bytes.size = size;
+                bytes.pooled = pooled;
+                if (packetType == SrsCodecVideoAVCType.SequenceHeader) {
+                    if (type == SrsCodecFlvTag.Video) {
+                        mVideoSequenceHeader = bytes;
+                        Log.i(TAG, String.format("flv: h264 sps/pps sent, %dB", size));
+                    } else {
+                        mAudioSequenceHeader = bytes;
+                    }
+                }
+                rtmp_write_packet(type, dts, frameType, packetType, bytes);
+            }
+        });
     }
 
     /**
@@ -93,7 +192,14 @@ public class FlvMuxer {
     }
 
     public void setRtmpSocket(RtmpSocket socket) {
-        mRtmpSocket = socket;
+        mOutput = socket;
+    }
+
+    /**
+     * sets where the tags go, the rtmp socket by default.
+     */
+    public void setOutput(FlvOutput output) {
+        mOutput = output;
     }
 
     /**
@@ -103,10 +209,10 @@ public class FlvMuxer {
      */
     public int addTrack(MediaFormat format) {
         if (format.getString(MediaFormat.KEY_MIME) == "video/avc") {
-            flv.setVideoTrack(format);
             return VIDEO_TRACK;
         } else if (format.getString(MediaFormat.KEY_MIME) == "audio/mp4a-latm") {
-            flv.setAudioTrack(format);
+            mTagWriter.setAudioParams(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
             return AUDIO_TRACK;
         }
         return UNKNOWN_TRACK;
@@ -117,6 +223,22 @@ public class FlvMuxer {
      */
     public void start() throws IOException {
         mUploadBindwidthInKBps = 0;
+        mMuxThread = new HandlerThread("FlvMuxer");
+        mMuxThread.start();
+        mMuxHandler = new Handler(mMuxThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                SrsEncodedSample sample = (SrsEncodedSample)msg.obj;
+                mPendingSamples.decrementAndGet();
+                try {
+                    muxSampleData(msg.what, sample.data, sample.info);
+                } catch (Exception e) {
+                    Log.e(TAG, "mux sample failed.");
+                    e.printStackTrace();
+                }
+                recycleSample(sample);
+            }
+        };
         worker = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -146,6 +268,18 @@ public class FlvMuxer {
      */
     public void stop() {
         mUploadBindwidthInKBps = 0;
+        if (mMuxThread != null) {
+            mMuxHandler = null;
+            mMuxThread.quit();
+            try {
+                mMuxThread.join();
+            } catch (InterruptedException e) {
+                Log.i(TAG, "mux: join thread failed.");
+            }
+            mMuxThread = null;
+            mPendingSamples.set(0);
+        }
+
         if (worker == null) {
             return;
         }
@@ -155,9 +289,15 @@ public class FlvMuxer {
         }
 
         if (worker != null) {
-            worker.interrupt();
+            // the quit looper ends it, unless a write is blocked on a stalled connection which
+            // has no timeout. the interrupt closes an nio output then, which ends the write.
             try {
-                worker.join();
+                worker.join(STOP_TIMEOUT_MS);
+                if (worker.isAlive()) {
+                    Log.w(TAG, "worker: still writing after " + STOP_TIMEOUT_MS + "ms, interrupt it.");
+                    worker.interrupt();
+                    worker.join();
+                }
             } catch (InterruptedException e) {
                 Log.i(TAG, "worker: join thread failed.");
                 e.printStackTrace();
@@ -166,19 +306,25 @@ public class FlvMuxer {
             worker = null;
         }
 
-        flv.setHandler(null);
+        setTagHandler(null);
 
         Log.i(TAG, String.format("worker: muxer closed, url=%s", url));
     }
 
     public void sendMetaData(double width, double height, double fps, double videobitrate, double audiosamplerate, double audiodatarate) {
-        mFlvMetadata = flv.makeMetaData(width, height, fps, videobitrate, audiosamplerate, audiodatarate);
+        SrsFlvFrameBytes metadata = new SrsFlvFrameBytes();
+        metadata.frame = mTagWriter.makeMetaData(width, height, fps, videobitrate, audiosamplerate, audiodatarate);
+        metadata.size = metadata.frame.limit();
+        mFlvMetadata = metadata;
     }
 
     /**
      * send the annexb frame to SRS over HTTP FLV.
+     * <p>
+     * Once started, the sample is copied into a pooled buffer and muxed on the mux thread,
+     * so the caller may release the codec buffer as soon as this returns.
      * @param trackIndex The track index for this sample.
-     * @param byteBuf The encoded sample.
+     * @param byteBuf The encoded sample, from its position.
      * @param bufferInfo The buffer information related to this sample.
      */
     public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) throws Exception {
@@ -190,13 +336,176 @@ public class FlvMuxer {
                     bufferInfo.size, bufferInfo.offset, bufferInfo.presentationTimeUs / 1000
             ));
         }
-        
+
+        Handler muxHandler = mMuxHandler;
+        if (muxHandler == null) {
+            FlvTagWriter.SampleInfo info = new FlvTagWriter.SampleInfo();
+            info.set(bufferInfo.size, bufferInfo.presentationTimeUs);
+            muxSampleData(trackIndex, byteBuf, info);
+            return;
+        }
+
+        // the sps/pps are never dropped, the stream can't be decoded without them
+        boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean isVideoFrame = VIDEO_TRACK == trackIndex && !isConfig;
+        if (isVideoFrame && isVideoWaitingForKeyFrame) {
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                mCounters.increment(COUNTER_DROPPED_FRAMES + SessionStats.DROP_REASON_LATENCY);
+                return;
+            }
+        }
+        if (mPendingSamples.get() >= MAX_PENDING_SAMPLES && !isConfig) {
+            Log.w(TAG, String.format("mux: drop sample for the mux thread is behind, pts=%dms",
+                    bufferInfo.presentationTimeUs / 1000));
+            if (isVideoFrame) {
+                mCounters.increment(COUNTER_DROPPED_FRAMES + SessionStats.DROP_REASON_LATENCY);
+                isVideoWaitingForKeyFrame = true;
+            }
+            return;
+        }
+        if (isVideoFrame && isVideoWaitingForKeyFrame) {
+            isVideoWaitingForKeyFrame = false;
+            Log.i(TAG, String.format("mux: resumed from the key frame, pts=%dms",
+                    bufferInfo.presentationTimeUs / 1000));
+        }
+
+        SrsEncodedSample sample = obtainSample(bufferInfo.size);
+        int position = byteBuf.position();
+        byteBuf.get(sample.data.array(), 0, bufferInfo.size);
+        byteBuf.position(position);
+        sample.data.clear();
+        sample.data.limit(bufferInfo.size);
+        sample.info.set(bufferInfo.size, bufferInfo.presentationTimeUs);
+
+        mPendingSamples.incrementAndGet();
+        Message msg = Message.obtain();
+        msg.what = trackIndex;
+        msg.obj = sample;
+        muxHandler.sendMessage(msg);
+    }
+
+    private SrsEncodedSample obtainSample(int size) {
+        SrsEncodedSample sample;
+        synchronized (mSamplePool) {
+            sample = mSamplePool.pollFirst();
+        }
+        if (sample == null) {
+            sample = new SrsEncodedSample();
+        }
+        if (sample.data == null || sample.data.capacity() < size) {
+            // some room to grow, the frames of a stream are of about the same size
+            sample.data = ByteBuffer.allocate(size + size / 4);
+        }
+        return sample;
+    }
+
+    private void recycleSample(SrsEncodedSample sample) {
+        synchronized (mSamplePool) {
+            if (mSamplePool.size() < MAX_POOLED_SAMPLES) {
+                mSamplePool.addFirst(sample);
+            }
+        }
+    }
+
+    private ByteBuffer obtainTagBuffer(int size) {
+        synchronized (mTagPool) {
+            for (int i = mTagPool.size() - 1; i >= 0; i--) {
+                if (mTagPool.get(i).capacity() >= size) {
+                    ByteBuffer buffer = mTagPool.remove(i);
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+        }
+        return ByteBuffer.allocate(size + size / 4);
+    }
+
+    private void recycleTag(SrsFlvFrameBytes tag) {
+        if (!tag.pooled) {
+            return;
+        }
+        tag.pooled = false;
+        synchronized (mTagPool) {
+            if (mTagPool.size() < MAX_POOLED_TAGS) {
+                mTagPool.add(tag.frame);
+                return;
+            }
+            // full, keep the larger buffers so the key frames find one too
+            int smallest = 0;
+            for (int i = 1; i < mTagPool.size(); i++) {
+                if (mTagPool.get(i).capacity() < mTagPool.get(smallest).capacity()) {
+                    smallest = i;
+                }
+            }
+            if (mTagPool.get(smallest).capacity() < tag.frame.capacity()) {
+                mTagPool.set(smallest, tag.frame);
+            }
+        }
+    }
+
+    /**
+     * spills the tags to queue while the output is not connected instead of dropping them,
+     * call before start().
+     * Only useful with a reconnect supervisor, without one a lost output is never back.
+     * @param drainMode SPILL_DRAIN_CATCH_UP sends all of them at up to drainSpeed times the
+     *                  realtime, SPILL_DRAIN_LIVE_EDGE skips to the last gop.
+     * @param drainSpeed more than 1 for SPILL_DRAIN_CATCH_UP, at 1 the new tags queue up behind
+     *                   the spilled ones as fast as they are sent and the spill never drains.
+     */
+    public void setSpillQueue(SpillQueue queue, int drainMode, double drainSpeed) {
+        if (drainMode == SPILL_DRAIN_CATCH_UP && !(drainSpeed > 1)) {
+            throw new IllegalArgumentException("the catch up drain speed must be more than 1, was " + drainSpeed);
+        }
+        mSpillQueue = queue;
+        mSpillDrainMode = drainMode;
+        mSpillDrainSpeed = drainSpeed;
+    }
+
+    /**
+     * bytes of the tags spilled to disk and not sent yet.
+     */
+    public long getSpilledBytes() {
+        return mSpilledBytes;
+    }
+
+    /**
+     * paces the sending at about bitrateBps, 0 to send the tags as they come.
+     */
+    public void setPacingBitrate(int bitrateBps) {
+        mPacingBytesPerSec = (int) (bitrateBps * PACING_HEADROOM / 8);
+    }
+
+    /**
+     * the time tags waited in the pacer, in us.
+     */
+    public LatencyHistogram getPacingDelayHistogram(boolean audio) {
+        return audio ? mAudioPacingDelay : mVideoPacingDelay;
+    }
+
+    public long getLastVideoPacingDelayMs() {
+        return mLastVideoPacingDelayUs / 1000;
+    }
+
+    /**
+     * whether the video is dropped until the next key frame, as a frame before it was dropped.
+     * The encoder should be asked for one then.
+     */
+    public boolean isVideoWaitingForKeyFrame() {
+        return isVideoWaitingForKeyFrame;
+    }
+
+    /**
+     * samples copied from the encoders and not muxed yet.
+     */
+    public int getPendingSamples() {
+        return mPendingSamples.get();
+    }
+
+    private void muxSampleData(int trackIndex, ByteBuffer byteBuf, FlvTagWriter.SampleInfo info) throws Exception {
         if (VIDEO_TRACK == trackIndex) {
-//            Log.d(TAG, "Sending video tag at "+bufferInfo.presentationTimeUs);
-            flv.writeVideoSample(byteBuf, bufferInfo);
+            mTagWriter.writeVideoSample(byteBuf, info);
         } else {
-//            Log.d(TAG, "Sending audio tag at "+bufferInfo.presentationTimeUs);
-            flv.writeAudioSample(byteBuf, bufferInfo);
+            mTagWriter.writeAudioSample(byteBuf, info);
         }
     }
     
@@ -204,11 +513,73 @@ public class FlvMuxer {
         return mPtsOfLastSentPacketInMs;
     }
     
+    public void setLatencyTracker(LatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    /**
+     * the wall time the first video frame was sent at, 0 before that.
+     */
+    public long getFirstVideoFrameSentTimeMs() {
+        return mFirstVideoFrameSentTimeMs;
+    }
+
     public void clearSendingBuffer() {
-        if (handler != null) {
+        // the tags go to disk while spilling, and the spilled ones are late anyway
+        if (handler != null && !isSpilling) {
             Log.w(TAG, "Clear buffered packets dur to weak neiwork condition");
-            handler.removeMessages(SrsMessageType.FLV);
+            mQueueGeneration.incrementAndGet();
+        }
+    }
+
+    /**
+     * bytes of the tags waiting to be sent.
+     */
+    public long getQueuedBytes() {
+        return mCounters.get(COUNTER_QUEUED_BYTES);
+    }
+
+    /**
+     * time span of the tags waiting to be sent, in ms.
+     */
+    public long getQueuedMs() {
+        if (getQueuedBytes() <= 0) {
+            return 0;
         }
+        return Math.max(0, mDtsOfLastQueuedPacketInMs - (mPtsOfLastSentPacketInMs - CTS_OF_FRAME_IN_MS));
+    }
+
+    public long getSentBytes() {
+        return mCounters.get(COUNTER_SENT_BYTES);
+    }
+
+    /**
+     * the bytes estimated to have left the device, see DeliveryEstimator.
+     */
+    public long getDeliveredBytes() {
+        return mDelivery.getDeliveredBytes();
+    }
+
+    public long getInFlightBytes() {
+        return mDelivery.getInFlightBytes();
+    }
+
+    /**
+     * the uplink rate measured while the socket was full, -1 until measured.
+     */
+    public int getLinkRateBps() {
+        return mDelivery.getLinkRateBps();
+    }
+
+    public long getSentVideoFrames() {
+        return mCounters.get(COUNTER_SENT_VIDEO_FRAMES);
+    }
+
+    /**
+     * video frames dropped for reason, one of SessionStats.DROP_REASON_*.
+     */
+    public long getDroppedFrames(int reason) {
+        return mCounters.get(COUNTER_DROPPED_FRAMES + reason);
     }
 
     private void cycle() throws Exception {
@@ -218,45 +589,284 @@ public class FlvMuxer {
         handler = new Handler(looper) {
             @Override
             public void handleMessage(Message msg) {                
-                if (msg.what != SrsMessageType.FLV) {
-                    Log.w(TAG, String.format("worker: drop unkown message, what=%d", msg.what));
+                if (msg.what == SrsMessageType.PACE) {
+                    isPaceScheduled = false;
+                    pace();
                     return;
                 }
-
-                if (null == mRtmpSocket || !mRtmpSocket.isConnected()) {
-                    Log.e(TAG, "The RtmpSockte is not ready...");
+                if (msg.what == SrsMessageType.RECONNECTED) {
+                    resendHeaders();
+                    pace();
                     return;
                 }
-
-                SrsFlvFrame frame = (SrsFlvFrame)msg.obj;
-                    
-                int ret = mRtmpSocket.sendRTMPPacket(frame.tag.frame.array(), frame.tag.size, frame.dts, frame.type);
-
-                if (ret <= 0) {
-                    Log.e(TAG, "Sending rtmp chunk failed...");
-                    notifyStreamingError(ret);
+                if (msg.what != SrsMessageType.FLV) {
+                    Log.w(TAG, String.format("worker: drop unkown message, what=%d", msg.what));
                     return;
                 }
-                mPtsOfLastSentPacketInMs = frame.dts + CTS_OF_FRAME_IN_MS;
-                mTotalSendBytes += frame.tag.size;
-                long currentTime = System.currentTimeMillis();
-                if (currentTime - mLastReportedTime >= UPLOAD_BINDWIDTH_REPORT_INTERVAL_IN_MS) {
-                    mUploadBindwidthInKBps = (double)mTotalSendBytes / UPLOAD_BINDWIDTH_REPORT_INTERVAL_IN_MS;
-                    mLastReportedTime = currentTime;
-                    mTotalSendBytes = 0;
+
+                SrsFlvFrame frame = (SrsFlvFrame)msg.obj;
+                frame.pacedNs = System.nanoTime();
+                if (frame.is_audio()) {
+                    mPacedAudioFrames.addLast(frame);
+                } else {
+                    mPacedVideoFrames.addLast(frame);
                 }
+                pace();
             }
         };
-        flv.setHandler(handler);
+        setTagHandler(handler);
         
         if (mFlvMetadata != null) {
-            flv.rtmp_write_packet(SrsCodecFlvTag.Metadata, 0, 0, 0, mFlvMetadata);
+            rtmp_write_packet(SrsCodecFlvTag.Metadata, 0, 0, 0, mFlvMetadata);
             Log.d(TAG, "Metadata info has been sent.");
         }
 
         Looper.loop();
     }
 
+    /**
+     * set the handler to send message to work thread, the video waits for the sps and pps again.
+     * @param h the handler to send the message.
+     */
+    private void setTagHandler(Handler h) {
+        mTagWriter.resetSeenParameterSets();
+        mTagHandler = h;
+    }
+
+    private void rtmp_write_packet(int type, int dts, int frame_type, int avc_aac_type, SrsFlvFrameBytes tag) {
+        SrsFlvFrame frame = new SrsFlvFrame();
+        frame.tag = tag;
+        frame.type = type;
+        frame.dts = dts;
+        frame.frame_type = frame_type;
+        frame.avc_aac_type = avc_aac_type;
+
+        // use handler to send the message.
+        // TODO: FIXME: we must wait for the handler to ready, for the sps/pps cannot be dropped.
+        if (mTagHandler == null) {
+            Log.w(TAG, "flv: drop frame for handler not ready.");
+            recycleTag(tag);
+            return;
+        }
+
+        if (mLatencyTracker != null && type == SrsCodecFlvTag.Video
+                && avc_aac_type == SrsCodecVideoAVCType.NALU) {
+            mLatencyTracker.mark(LatencyTracker.STAGE_MUX, dts + CTS_OF_FRAME_IN_MS);
+        }
+
+        frame.generation = mQueueGeneration.get();
+        mCounters.add(COUNTER_QUEUED_BYTES, tag.size);
+        if (type != SrsCodecFlvTag.Metadata) {
+            mDtsOfLastQueuedPacketInMs = dts;
+        }
+
+        Message msg = Message.obtain();
+        msg.what = SrsMessageType.FLV;
+        msg.obj = frame;
+        mTagHandler.sendMessage(msg);
+    }
+
+    /**
+     * sends the frames waiting in the pacer, the audio first, the video while the bucket
+     * has tokens, then comes back when the tokens are refilled.
+     */
+    private void pace() {
+        long now = System.nanoTime();
+        int bytesPerSec = mPacingBytesPerSec;
+        if (bytesPerSec > 0) {
+            long elapsedNs = Math.min(now - mLastPacingNs, 1000000000L);
+            mPacingTokens = Math.min(mPacingTokens + elapsedNs * bytesPerSec / 1000000000L,
+                    (long) bytesPerSec * PACING_BURST_IN_MS / 1000);
+        }
+        mLastPacingNs = now;
+
+        // the spilled tags go first, the new ones are spilled behind them until they are sent
+        if (mSpillQueue != null && !mSpillQueue.isEmpty() && isOutputConnected()) {
+            drainSpill();
+        }
+
+        while (true) {
+            SrsFlvFrame frame = mPacedAudioFrames.peekFirst();
+            if (frame != null) {
+                mPacedAudioFrames.pollFirst();
+            } else {
+                frame = mPacedVideoFrames.peekFirst();
+                if (frame == null) {
+                    return;
+                }
+                if (frame.generation == mQueueGeneration.get() && bytesPerSec > 0 && mPacingTokens < 0
+                        && !isSpilling) {
+                    schedulePace(-mPacingTokens * 1000 / bytesPerSec + 1);
+                    return;
+                }
+                mPacedVideoFrames.pollFirst();
+            }
+            mCounters.add(COUNTER_QUEUED_BYTES, -frame.tag.size);
+
+            if (frame.generation != mQueueGeneration.get()) {
+                if (frame.type == SrsCodecFlvTag.Video && frame.avc_aac_type == SrsCodecVideoAVCType.NALU) {
+                    mCounters.increment(COUNTER_DROPPED_FRAMES + SessionStats.DROP_REASON_LATENCY);
+                }
+                recycleTag(frame.tag);
+                continue;
+            }
+            if (mSpillQueue != null && (!isOutputConnected() || !mSpillQueue.isEmpty())) {
+                spillFrame(frame);
+                recycleTag(frame.tag);
+                continue;
+            }
+            // the audio may go in debt too, the video after it waits longer
+            mPacingTokens -= frame.tag.size;
+            sendFrame(frame);
+            recycleTag(frame.tag);
+        }
+    }
+
+    private void schedulePace(long delayMs) {
+        if (!isPaceScheduled) {
+            isPaceScheduled = true;
+            handler.sendEmptyMessageDelayed(SrsMessageType.PACE, delayMs);
+        }
+    }
+
+    private boolean isOutputConnected() {
+        return !isOutputLost && mOutput != null && mOutput.isConnected();
+    }
+
+    private void spillFrame(SrsFlvFrame frame) {
+        if (!isSpilling) {
+            isSpilling = true;
+            Log.w(TAG, "The uplink is down, spill the tags to disk");
+        }
+        if (!mSpillQueue.append(frame.type, frame.frame_type, frame.avc_aac_type, frame.dts,
+                frame.tag.frame.array(), frame.tag.size)) {
+            if (frame.type == SrsCodecFlvTag.Video && frame.avc_aac_type == SrsCodecVideoAVCType.NALU) {
+                mCounters.increment(COUNTER_DROPPED_FRAMES + SessionStats.DROP_REASON_NOT_CONNECTED);
+            }
+        }
+        mSpilledBytes = mSpillQueue.getBytes();
+    }
+
+    /**
+     * sends the spilled tags, or as many as it's time for.
+     */
+    private void drainSpill() {
+        long now = System.nanoTime();
+        if (mSpillDrainStartNs < 0) {
+            mSpillDrainStartNs = now;
+            mSpillDrainBaseDts = mSpillQueue.peekDts();
+            mSpillSkipBeforeSeq = mSpillDrainMode == SPILL_DRAIN_LIVE_EDGE ? mSpillQueue.getLastKeyFrameSeq() : -1;
+            Log.i(TAG, String.format("The uplink is back, drain %dKB spilled, mode=%d",
+                    mSpillQueue.getBytes() / 1024, mSpillDrainMode));
+        }
+
+        while (!mSpillQueue.isEmpty() && isOutputConnected()) {
+            if (mSpillDrainMode == SPILL_DRAIN_CATCH_UP) {
+                long dueMs = (long) ((mSpillQueue.peekDts() - mSpillDrainBaseDts) / mSpillDrainSpeed);
+                long waitMs = dueMs - (now - mSpillDrainStartNs) / 1000000;
+                if (waitMs > 0) {
+                    schedulePace(waitMs);
+                    mSpilledBytes = mSpillQueue.getBytes();
+                    return;
+                }
+            }
+
+            SpillQueue.Record record = mSpillRecord;
+            mSpillQueue.read(record);
+            // at the live edge only the last gop and the sequence headers are worth sending
+            if (record.seq < mSpillSkipBeforeSeq && record.avcAacType != SrsCodecVideoAVCType.SequenceHeader
+                    && record.type != SrsCodecFlvTag.Metadata) {
+                if (record.type == SrsCodecFlvTag.Video && record.avcAacType == SrsCodecVideoAVCType.NALU) {
+                    mCounters.increment(COUNTER_DROPPED_FRAMES + SessionStats.DROP_REASON_NOT_CONNECTED);
+                }
+                continue;
+            }
+
+            SrsFlvFrame frame = new SrsFlvFrame();
+            frame.tag = new SrsFlvFrameBytes();
+            frame.tag.frame = ByteBuffer.wrap(record.data);
+            frame.tag.size = record.data.length;
+            frame.type = record.type;
+            frame.frame_type = record.frameType;
+            frame.avc_aac_type = record.avcAacType;
+            frame.dts = record.dts;
+            frame.pacedNs = System.nanoTime();
+            mPacingTokens -= frame.tag.size;
+            sendFrame(frame);
+        }
+        mSpilledBytes = mSpillQueue.getBytes();
+
+        if (!mSpillQueue.isEmpty()) {
+            // lost the uplink again
+            return;
+        }
+        Log.i(TAG, String.format("The spilled tags were sent in %dms, lost %d",
+                (System.nanoTime() - mSpillDrainStartNs) / 1000000, mSpillQueue.getLostRecords()));
+        mSpillDrainStartNs = -1;
+        isSpilling = false;
+    }
+
+    private void sendFrame(SrsFlvFrame frame) {
+        boolean isVideoFrame = frame.type == SrsCodecFlvTag.Video
+                && frame.avc_aac_type == SrsCodecVideoAVCType.NALU;
+
+        long pacingDelayUs = (System.nanoTime() - frame.pacedNs) / 1000;
+        if (frame.is_audio()) {
+            mAudioPacingDelay.record(pacingDelayUs);
+        } else {
+            mVideoPacingDelay.record(pacingDelayUs);
+            mLastVideoPacingDelayUs = pacingDelayUs;
+        }
+
+        if (!isOutputConnected()) {
+            Log.e(TAG, "The RtmpSockte is not ready...");
+            if (isVideoFrame) mCounters.increment(COUNTER_DROPPED_FRAMES + SessionStats.DROP_REASON_NOT_CONNECTED);
+            return;
+        }
+
+        if (isWaitingForKeyFrame && isVideoFrame) {
+            if (frame.frame_type != SrsCodecVideoAVCFrame.KeyFrame) {
+                mCounters.increment(COUNTER_DROPPED_FRAMES + SessionStats.DROP_REASON_NOT_CONNECTED);
+                return;
+            }
+            isWaitingForKeyFrame = false;
+            Log.i(TAG, "Resumed from the key frame, dts=" + frame.dts);
+        }
+
+        long writeStartNs = System.nanoTime();
+        int ret = mOutput.writeTag(frame.tag.frame.array(), frame.tag.size, frame.dts, frame.type);
+
+        if (ret <= 0 && Thread.currentThread().isInterrupted()) {
+            // stop() gave up waiting for the write, that's the end of the stream and no error
+            Log.i(TAG, "worker: stopped in the middle of a tag, dts=" + frame.dts);
+            return;
+        }
+        if (ret <= 0) {
+            Log.e(TAG, "Sending rtmp chunk failed...");
+            if (isVideoFrame) mCounters.increment(COUNTER_DROPPED_FRAMES + SessionStats.DROP_REASON_SEND_FAILED);
+            notifyStreamingError(ret);
+            return;
+        }
+        mDelivery.onWrite(frame.tag.size, writeStartNs, System.nanoTime());
+        mCounters.add(COUNTER_SENT_BYTES, frame.tag.size);
+        if (isVideoFrame) mCounters.increment(COUNTER_SENT_VIDEO_FRAMES);
+        mPtsOfLastSentPacketInMs = frame.dts + CTS_OF_FRAME_IN_MS;
+        if (mLatencyTracker != null && isVideoFrame) {
+            mLatencyTracker.mark(LatencyTracker.STAGE_SEND, frame.dts + CTS_OF_FRAME_IN_MS);
+        }
+        if (mFirstVideoFrameSentTimeMs == 0 && isVideoFrame) {
+            mFirstVideoFrameSentTimeMs = System.currentTimeMillis();
+            Log.i(TAG, "The first video frame was sent, dts=" + frame.dts);
+        }
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - mLastReportedTime >= UPLOAD_BINDWIDTH_REPORT_INTERVAL_IN_MS) {
+            long deliveredBytes = mDelivery.getDeliveredBytes();
+            mUploadBindwidthInKBps = (double)(deliveredBytes - mLastReportedDeliveredBytes) / UPLOAD_BINDWIDTH_REPORT_INTERVAL_IN_MS;
+            mLastReportedTime = currentTime;
+            mLastReportedDeliveredBytes = deliveredBytes;
+        }
+    }
+
     private void notifyStreamingError(int err) {
         Log.d(TAG, "Received native error, errno is : " + err);
         int code = SessionStateListener.ERROR_CODE_OF_UNKNOWN_STREAMING_ERROR;
@@ -276,11 +886,60 @@ public class FlvMuxer {
             default:
                 break;
         }
+        // the server won't take the packets on a new connection either
+        if (mReconnectSupervisor != null && code != SessionStateListener.ERROR_CODE_OF_PACKET_REFUSED_BY_SERVER) {
+            isOutputLost = true;
+            mReconnectSupervisor.onConnectionLost(code);
+            return;
+        }
         if (mStateListener != null) {
             mStateListener.onSessionError(code);
         }
     }
 
+    /**
+     * reconnects the output with supervisor when sending fails, instead of reporting the error.
+     */
+    public void setReconnectSupervisor(ReconnectSupervisor supervisor) {
+        mReconnectSupervisor = supervisor;
+    }
+
+    /**
+     * the output was connected again, the metadata and the sequence headers are sent before
+     * anything else and the video resumes from a key frame, keeping the timestamps.
+     */
+    public void onOutputReconnected() {
+        Handler workerHandler = handler;
+        if (workerHandler != null) {
+            workerHandler.sendEmptyMessage(SrsMessageType.RECONNECTED);
+        }
+    }
+
+    private void resendHeaders() {
+        isOutputLost = false;
+        // what was still in the send buffer went with the old connection
+        mDelivery.reset();
+        int dts = (int) Math.max(0, mPtsOfLastSentPacketInMs - CTS_OF_FRAME_IN_MS);
+        resendHeader(SrsCodecFlvTag.Metadata, 0, 0, mFlvMetadata);
+        resendHeader(SrsCodecFlvTag.Video, dts, SrsCodecVideoAVCFrame.KeyFrame, mVideoSequenceHeader);
+        resendHeader(SrsCodecFlvTag.Audio, dts, 0, mAudioSequenceHeader);
+        isWaitingForKeyFrame = true;
+    }
+
+    private void resendHeader(int type, int dts, int frameType, SrsFlvFrameBytes tag) {
+        if (tag == null) {
+            return;
+        }
+        SrsFlvFrame frame = new SrsFlvFrame();
+        frame.tag = tag;
+        frame.type = type;
+        frame.dts = dts;
+        frame.frame_type = frameType;
+        frame.avc_aac_type = SrsCodecVideoAVCType.SequenceHeader;
+        frame.pacedNs = System.nanoTime();
+        sendFrame(frame);
+    }
+
     public double getUploadBindwidthInKBps() {
         return mUploadBindwidthInKBps;
     }
@@ -294,6 +953,7 @@ public class FlvMuxer {
      */
     public class OutputFormat {
         public final static int MUXER_OUTPUT_RTMP = 0;
+        public final static int MUXER_OUTPUT_HTTP_FLV = 1;
     }
 
     // E.4.3.1 VIDEODATA
@@ -333,28 +993,6 @@ public class FlvMuxer {
         public final static int SequenceHeaderEOF             = 2;
     }
 
-    class AMFDataType {
-        public final static byte AMFNumber = 0x00;
-        public final static byte AMFBoolean = 0x01;
-        public final static byte AMFString = 0x02;
-        public final static byte AMFObject = 0x03;
-        public final static byte AMFMovieClip = 0x04;    /* reserved, not used */
-        public final static byte AMFNull = 0x05;
-        public final static byte AMFUndefined = 0x06;
-        public final static byte AMFReference = 0x07;
-        public final static byte AMFEMCAArray = 0x08;
-        public final static byte AMFObjectEnd = 0x09;
-        public final static byte AMFStrictArray = 0x0a;
-        public final static byte AMFDate = 0x0b;
-        public final static byte AMFLongString = 0x0c;
-        public final static byte AMFUnsupported = 0x0d;
-        public final static byte AMFRecordSet = 0x0e;    /* reserved, not used */
-        public final static byte AMFXmlDoc = 0x0f;
-        public final static byte AMFTypedObject = 0x10;
-        public final static byte AMFAvmPlus = 0x11;        /* switch to AMF3 */
-        public final static byte AMFInvalid = (byte)0xff;
-    }
-
     /**
      * E.4.1 FLV Tag, page 75
      */
@@ -371,232 +1009,13 @@ public class FlvMuxer {
         public static final int Metadata = 0x16;
     }
 
-    // E.4.3.1 VIDEODATA
-    // CodecID UB [4]
-    // Codec Identifier. The following values are defined:
-    //     2 = Sorenson H.263
-    //     3 = Screen video
-    //     4 = On2 VP6
-    //     5 = On2 VP6 with alpha channel
-    //     6 = Screen video version 2
-    //     7 = AVC
-    class SrsCodecVideo
-    {
-        // set to the zero to reserved, for array map.
-        public final static int Reserved                = 0;
-        public final static int Reserved1                = 1;
-        public final static int Reserved2                = 9;
-
-        // for user to disable video, for example, use pure audio hls.
-        public final static int Disabled                = 8;
-
-        public final static int SorensonH263             = 2;
-        public final static int ScreenVideo             = 3;
-        public final static int On2VP6                 = 4;
-        public final static int On2VP6WithAlphaChannel = 5;
-        public final static int ScreenVideoVersion2     = 6;
-        public final static int AVC                     = 7;
-    }
-
-    /**
-     * the aac object type, for RTMP sequence header
-     * for AudioSpecificConfig, @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf, page 33
-     * for audioObjectType, @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf, page 23
-     */
-    class SrsAacObjectType
-    {
-        public final static int Reserved = 0;
-
-        // Table 1.1 – Audio Object Type definition
-        // @see @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf, page 23
-        public final static int AacMain = 1;
-        public final static int AacLC = 2;
-        public final static int AacSSR = 3;
-
-        // AAC HE = LC+SBR
-        public final static int AacHE = 5;
-        // AAC HEv2 = LC+SBR+PS
-        public final static int AacHEV2 = 29;
-    }
-
-    /**
-     * the aac profile, for ADTS(HLS/TS)
-     * @see "https://github.com/simple-rtmp-server/srs/issues/310"
-     */
-    class SrsAacProfile
-    {
-        public final static int Reserved = 3;
-
-        // @see 7.1 Profiles, aac-iso-13818-7.pdf, page 40
-        public final static int Main = 0;
-        public final static int LC = 1;
-        public final static int SSR = 2;
-    }
-
-    /**
-     * the FLV/RTMP supported audio sample rate.
-     * Sampling rate. The following values are defined:
-     * 0 = 5.5 kHz = 5512 Hz
-     * 1 = 11 kHz = 11025 Hz
-     * 2 = 22 kHz = 22050 Hz
-     * 3 = 44 kHz = 44100 Hz
-     */
-    class SrsCodecAudioSampleRate
-    {
-        // set to the max value to reserved, for array map.
-        public final static int Reserved                 = 4;
-
-        public final static int R5512                     = 0;
-        public final static int R11025                    = 1;
-        public final static int R22050                    = 2;
-        public final static int R44100                    = 3;
-    }
-
     /**
      * the type of message to process.
      */
     class SrsMessageType {
         public final static int FLV = 0x100;
-    }
-
-    /**
-     * Table 7-1 – NAL unit type codes, syntax element categories, and NAL unit type classes
-     * H.264-AVC-ISO_IEC_14496-10-2012.pdf, page 83.
-     */
-    class SrsAvcNaluType
-    {
-        // Unspecified
-        public final static int Reserved = 0;
-
-        // Coded slice of a non-IDR picture slice_layer_without_partitioning_rbsp( )
-        public final static int NonIDR = 1;
-        // Coded slice data partition A slice_data_partition_a_layer_rbsp( )
-        public final static int DataPartitionA = 2;
-        // Coded slice data partition B slice_data_partition_b_layer_rbsp( )
-        public final static int DataPartitionB = 3;
-        // Coded slice data partition C slice_data_partition_c_layer_rbsp( )
-        public final static int DataPartitionC = 4;
-        // Coded slice of an IDR picture slice_layer_without_partitioning_rbsp( )
-        public final static int IDR = 5;
-        // Supplemental enhancement information (SEI) sei_rbsp( )
-        public final static int SEI = 6;
-        // Sequence parameter set seq_parameter_set_rbsp( )
-        public final static int SPS = 7;
-        // Picture parameter set pic_parameter_set_rbsp( )
-        public final static int PPS = 8;
-        // Access unit delimiter access_unit_delimiter_rbsp( )
-        public final static int AccessUnitDelimiter = 9;
-        // End of sequence end_of_seq_rbsp( )
-        public final static int EOSequence = 10;
-        // End of stream end_of_stream_rbsp( )
-        public final static int EOStream = 11;
-        // Filler data filler_data_rbsp( )
-        public final static int FilterData = 12;
-        // Sequence parameter set extension seq_parameter_set_extension_rbsp( )
-        public final static int SPSExt = 13;
-        // Prefix NAL unit prefix_nal_unit_rbsp( )
-        public final static int PrefixNALU = 14;
-        // Subset sequence parameter set subset_seq_parameter_set_rbsp( )
-        public final static int SubsetSPS = 15;
-        // Coded slice of an auxiliary coded picture without partitioning slice_layer_without_partitioning_rbsp( )
-        public final static int LayerWithoutPartition = 19;
-        // Coded slice extension slice_layer_extension_rbsp( )
-        public final static int CodedSliceExt = 20;
-    }
-
-    /**
-     * utils functions from srs.
-     */
-    public class SrsUtils {
-        private final static String TAG = "FlvMuxer";
-
-        public boolean srs_bytes_equals(byte[] a, byte[]b) {
-            if ((a == null || b == null) && (a != null || b != null)) {
-                return false;
-            }
-
-            if (a.length != b.length) {
-                return false;
-            }
-
-            for (int i = 0; i < a.length && i < b.length; i++) {
-                if (a[i] != b[i]) {
-                    return false;
-                }
-            }
-
-            return true;
-        }
-
-        public SrsAnnexbSearch srs_avc_startswith_annexb(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            SrsAnnexbSearch as = new SrsAnnexbSearch();
-            as.match = false;
-
-            int pos = bb.position();
-            while (pos < bi.size - 3) {
-                // not match.
-                if (bb.get(pos) != 0x00 || bb.get(pos + 1) != 0x00) {
-                    break;
-                }
-
-                // match N[00] 00 00 01, where N>=0
-                if (bb.get(pos + 2) == 0x01) {
-                    as.match = true;
-                    as.nb_start_code = pos + 3 - bb.position();
-                    break;
-                }
-
-                pos++;
-            }
-
-            return as;
-        }
-
-        public boolean srs_aac_startswith_adts(ByteBuffer bb, MediaCodec.BufferInfo bi)
-        {
-            int pos = bb.position();
-            if (bi.size - pos < 2) {
-                return false;
-            }
-
-            // matched 12bits 0xFFF,
-            // @remark, we must cast the 0xff to char to compare.
-            if (bb.get(pos) != (byte)0xff || (byte)(bb.get(pos + 1) & 0xf0) != (byte)0xf0) {
-                return false;
-            }
-
-            return true;
-        }
-
-        public int srs_codec_aac_ts2rtmp(int profile)
-        {
-            switch (profile) {
-                case SrsAacProfile.Main: return SrsAacObjectType.AacMain;
-                case SrsAacProfile.LC: return SrsAacObjectType.AacLC;
-                case SrsAacProfile.SSR: return SrsAacObjectType.AacSSR;
-                default: return SrsAacObjectType.Reserved;
-            }
-        }
-
-        public int srs_codec_aac_rtmp2ts(int object_type)
-        {
-            switch (object_type) {
-                case SrsAacObjectType.AacMain: return SrsAacProfile.Main;
-                case SrsAacObjectType.AacHE:
-                case SrsAacObjectType.AacHEV2:
-                case SrsAacObjectType.AacLC: return SrsAacProfile.LC;
-                case SrsAacObjectType.AacSSR: return SrsAacProfile.SSR;
-                default: return SrsAacProfile.Reserved;
-            }
-        }
-    }
-
-    /**
-     * the search result for annexb.
-     */
-    class SrsAnnexbSearch {
-        public int nb_start_code = 0;
-        public boolean match = false;
+        public final static int PACE = 0x101;
+        public final static int RECONNECTED = 0x102;
     }
 
     /**
@@ -605,6 +1024,16 @@ public class FlvMuxer {
     class SrsFlvFrameBytes {
         public ByteBuffer frame;
         public int size;
+        // frame is from the tag pool and goes back once sent, it may be larger than size
+        public boolean pooled;
+    }
+
+    /**
+     * the encoded sample copied out of the codec buffer.
+     */
+    class SrsEncodedSample {
+        public ByteBuffer data;
+        public FlvTagWriter.SampleInfo info = new FlvTagWriter.SampleInfo();
     }
 
     /**
@@ -621,6 +1050,10 @@ public class FlvMuxer {
         public int type;
         // the dts in ms, tbn is 1000.
         public int dts;
+        // the queue generation when it was queued.
+        public int generation;
+        // when it reached the pacer, System.nanoTime().
+        public long pacedNs;
 
         public boolean is_keyframe() {
             return type == SrsCodecFlvTag.Video && frame_type == SrsCodecVideoAVCFrame.KeyFrame;
@@ -634,606 +1067,4 @@ public class FlvMuxer {
             return type == SrsCodecFlvTag.Audio;
         }
     }
-
-    /**
-     * the raw h.264 stream, in annexb.
-     */
-    class SrsRawH264Stream {
-        private SrsUtils utils;
-        private final static String TAG = "FlvMuxer";
-
-        public SrsRawH264Stream() {
-            utils = new SrsUtils();
-        }
-
-        public boolean is_sps(SrsFlvFrameBytes frame) {
-            if (frame.size < 1) {
-                return false;
-            }
-
-            // 5bits, 7.3.1 NAL unit syntax,
-            // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
-            //  7: SPS, 8: PPS, 5: I Frame, 1: P Frame
-            int nal_unit_type = (int)(frame.frame.get(0) & 0x1f);
-
-            return nal_unit_type == SrsAvcNaluType.SPS;
-        }
-
-        public boolean is_pps(SrsFlvFrameBytes frame) {
-            if (frame.size < 1) {
-                return false;
-            }
-
-            // 5bits, 7.3.1 NAL unit syntax,
-            // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
-            //  7: SPS, 8: PPS, 5: I Frame, 1: P Frame
-            int nal_unit_type = (int)(frame.frame.get(0) & 0x1f);
-
-            return nal_unit_type == SrsAvcNaluType.PPS;
-        }
-
-        public SrsFlvFrameBytes mux_ibp_frame(SrsFlvFrameBytes frame) {
-            SrsFlvFrameBytes nalu_header = new SrsFlvFrameBytes();
-            nalu_header.size = 4;
-            nalu_header.frame = ByteBuffer.allocate(nalu_header.size);
-
-            // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
-            // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size
-            int NAL_unit_length = frame.size;
-
-            // mux the avc NALU in "ISO Base Media File Format"
-            // from H.264-AVC-ISO_IEC_14496-15.pdf, page 20
-            // NALUnitLength
-            nalu_header.frame.putInt(NAL_unit_length);
-
-            // reset the buffer.
-            nalu_header.frame.rewind();
-
-            //Log.i(TAG, String.format("mux ibp frame %dB", frame.size));
-            //FlvMuxer.srs_print_bytes(TAG, nalu_header.frame, 16);
-
-            return nalu_header;
-        }
-
-        public void mux_sequence_header(byte[] sps, byte[] pps, int dts, int pts, ArrayList<SrsFlvFrameBytes> frames) {
-            // 5bytes sps/pps header:
-            //      configurationVersion, AVCProfileIndication, profile_compatibility,
-            //      AVCLevelIndication, lengthSizeMinusOne
-            // 3bytes size of sps:
-            //      numOfSequenceParameterSets, sequenceParameterSetLength(2B)
-            // Nbytes of sps.
-            //      sequenceParameterSetNALUnit
-            // 3bytes size of pps:
-            //      numOfPictureParameterSets, pictureParameterSetLength
-            // Nbytes of pps:
-            //      pictureParameterSetNALUnit
-
-            // decode the SPS:
-            // @see: 7.3.2.1.1, H.264-AVC-ISO_IEC_14496-10-2012.pdf, page 62
-            if (true) {
-                SrsFlvFrameBytes hdr = new SrsFlvFrameBytes();
-                hdr.size = 5;
-                hdr.frame = ByteBuffer.allocate(hdr.size);
-
-                // @see: Annex A Profiles and levels, H.264-AVC-ISO_IEC_14496-10.pdf, page 205
-                //      Baseline profile profile_idc is 66(0x42).
-                //      Main profile profile_idc is 77(0x4d).
-                //      Extended profile profile_idc is 88(0x58).
-                byte profile_idc = sps[1];
-                byte compat_idc = sps[2];
-                byte level_idc = sps[3];
-
-                // generate the sps/pps header
-                // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
-                // configurationVersion
-                hdr.frame.put((byte)0x01);
-                // AVCProfileIndication
-                hdr.frame.put(profile_idc);
-                // profile_compatibility
-                hdr.frame.put(compat_idc);
-                // AVCLevelIndication
-                hdr.frame.put(level_idc);
-                // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size,
-                // so we always set it to 0x03.
-                hdr.frame.put((byte)0xFF);
-
-                // reset the buffer.
-                hdr.frame.rewind();
-                frames.add(hdr);
-            }
-
-            // sps
-            if (true) {
-                SrsFlvFrameBytes sps_hdr = new SrsFlvFrameBytes();
-                sps_hdr.size = 3;
-                sps_hdr.frame = ByteBuffer.allocate(sps_hdr.size);
-
-                // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
-                // numOfSequenceParameterSets, always 1
-                sps_hdr.frame.put((byte) 0xE1);
-                // sequenceParameterSetLength
-                sps_hdr.frame.putShort((short) sps.length);
-
-                sps_hdr.frame.rewind();
-                frames.add(sps_hdr);
-
-                // sequenceParameterSetNALUnit
-                SrsFlvFrameBytes sps_bb = new SrsFlvFrameBytes();
-                sps_bb.size = sps.length;
-                sps_bb.frame = ByteBuffer.wrap(sps);
-                frames.add(sps_bb);
-            }
-
-            // pps
-            if (true) {
-                SrsFlvFrameBytes pps_hdr = new SrsFlvFrameBytes();
-                pps_hdr.size = 3;
-                pps_hdr.frame = ByteBuffer.allocate(pps_hdr.size);
-
-                // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
-                // numOfPictureParameterSets, always 1
-                pps_hdr.frame.put((byte) 0x01);
-                // pictureParameterSetLength
-                pps_hdr.frame.putShort((short) pps.length);
-
-                pps_hdr.frame.rewind();
-                frames.add(pps_hdr);
-
-                // pictureParameterSetNALUnit
-                SrsFlvFrameBytes pps_bb = new SrsFlvFrameBytes();
-                pps_bb.size = pps.length;
-                pps_bb.frame = ByteBuffer.wrap(pps);
-                frames.add(pps_bb);
-            }
-        }
-
-        public SrsFlvFrameBytes mux_avc2flv(ArrayList<SrsFlvFrameBytes> frames, int frame_type, int avc_packet_type, int dts, int pts) {
-            SrsFlvFrameBytes flv_tag = new SrsFlvFrameBytes();
-
-            // for h264 in RTMP video payload, there is 5bytes header:
-            //      1bytes, FrameType | CodecID
-            //      1bytes, AVCPacketType
-            //      3bytes, CompositionTime, the cts.
-            // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
-            flv_tag.size = 5;
-            for (int i = 0; i < frames.size(); i++) {
-                SrsFlvFrameBytes frame = frames.get(i);
-                flv_tag.size += frame.size;
-            }
-
-            flv_tag.frame = ByteBuffer.allocate(flv_tag.size);
-
-            // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
-            // Frame Type, Type of video frame.
-            // CodecID, Codec Identifier.
-            // set the rtmp header
-            flv_tag.frame.put((byte)((frame_type << 4) | SrsCodecVideo.AVC));
-
-            // AVCPacketType
-            flv_tag.frame.put((byte)avc_packet_type);
-
-            // CompositionTime
-            // pts = dts + cts, or
-            // cts = pts - dts.
-            // where cts is the header in rtmp video packet payload header.
-            int cts = pts - dts;
-            flv_tag.frame.put((byte)(cts >> 16));
-            flv_tag.frame.put((byte)(cts >> 8));
-            flv_tag.frame.put((byte)cts);
-
-            // h.264 raw data.
-            for (int i = 0; i < frames.size(); i++) {
-                SrsFlvFrameBytes frame = frames.get(i);
-                byte[] frame_bytes = new byte[frame.size];
-                frame.frame.get(frame_bytes);
-                flv_tag.frame.put(frame_bytes);
-            }
-
-            // reset the buffer.
-            flv_tag.frame.rewind();
-
-            //Log.i(TAG, String.format("flv tag muxed, %dB", flv_tag.size));
-            //FlvMuxer.srs_print_bytes(TAG, flv_tag.frame, 128);
-
-            return flv_tag;
-        }
-
-        public SrsFlvFrameBytes annexb_demux(ByteBuffer bb, MediaCodec.BufferInfo bi) throws Exception {
-            SrsFlvFrameBytes tbb = new SrsFlvFrameBytes();
-
-            while (bb.position() < bi.size) {
-                // each frame must prefixed by annexb format.
-                // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
-                // tbbsc stands for the result of searching nal unit header {isMatched, length}
-                SrsAnnexbSearch tbbsc = utils.srs_avc_startswith_annexb(bb, bi);
-                if (!tbbsc.match || tbbsc.nb_start_code < 3) {
-                    Log.e(TAG, "annexb not match.");
-                    FlvMuxer.srs_print_bytes(TAG, bb, 16);
-                    throw new Exception(String.format("annexb not match for %dB, pos=%d", bi.size, bb.position()));
-                }
-
-                // skip the start codes(nal unit header).
-                ByteBuffer tbbs = bb.slice();
-                for (int i = 0; i < tbbsc.nb_start_code; i++) {
-                    bb.get();
-                }
-
-                // find out the frame size.
-                tbb.frame = bb.slice();
-                int pos = bb.position();
-                while (bb.position() < bi.size) {
-                    SrsAnnexbSearch bsc = utils.srs_avc_startswith_annexb(bb, bi);
-                    if (bsc.match) {
-                        break;
-                    }
-                    bb.get();
-                }
-
-                tbb.size = bb.position() - pos;
-                if (bb.position() < bi.size) {
-                    Log.i(TAG, String.format("annexb multiple match ok, pts=%d", bi.presentationTimeUs / 1000));
-                    FlvMuxer.srs_print_bytes(TAG, tbbs, 16);
-                    FlvMuxer.srs_print_bytes(TAG, bb.slice(), 16);
-                }
-                //Log.i(TAG, String.format("annexb match %d bytes", tbb.size));
-                break;
-            }
-
-            return tbb;
-        }
-    }
-
-    /**
-     * remux the annexb to flv tags.
-     */
-    class SrsFlv {
-        private MediaFormat videoTrack;
-        private MediaFormat audioTrack;
-        private int achannel;
-        private int asample_rate;
-
-        private SrsUtils utils;
-        private Handler handler;
-
-        private SrsRawH264Stream avc;
-        private byte[] h264_sps;
-        private boolean h264_sps_changed;
-        private byte[] h264_pps;
-        private boolean h264_pps_changed;
-        private boolean h264_sps_pps_sent;
-        boolean hasMetSps = false;
-        boolean hasMetPps = false;
-
-        private byte[] aac_specific_config;
-        private boolean aac_asc_sent;
-
-        public SrsFlv() {
-            utils = new SrsUtils();
-
-            avc = new SrsRawH264Stream();
-            h264_sps = new byte[0];
-            h264_sps_changed = false;
-            h264_pps = new byte[0];
-            h264_pps_changed = false;
-            h264_sps_pps_sent = false;
-
-            aac_specific_config = null;
-            aac_asc_sent = false;
-        }
-
-        /**
-         * set the handler to send message to work thread.
-         * @param h the handler to send the message.
-         */
-        public void setHandler(Handler h) {
-            hasMetSps = false;
-            hasMetPps = false;
-            handler = h;
-        }
-
-        public void setVideoTrack(MediaFormat format) {
-            videoTrack = format;
-        }
-
-        public void setAudioTrack(MediaFormat format) {
-            audioTrack = format;
-            achannel = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-            asample_rate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-        }
-
-        private void put_be16(ByteBuffer data, short val) {
-            byte[] buf = new byte[2];
-            buf[1] = (byte)(val & 0xff);
-            buf[0] = (byte)((val >> 8) & 0xff);
-            data.put(buf);
-        }
-
-        private void put_be32(ByteBuffer data, int val)
-        {
-            byte[] buf = new byte[4];
-
-            buf[3] = (byte)(val & 0xff);
-            buf[2] = (byte)((val >> 8) & 0xff);
-            buf[1] = (byte)((val >> 16) & 0xff);
-            buf[0] = (byte)((val >> 24) & 0xff);
-
-            data.put(buf);
-        }
-
-        private void put_name(ByteBuffer data, String name) {
-            put_be16(data, (short)name.length());
-            data.put(name.getBytes());
-        }
-
-        private void put_double(ByteBuffer data, double val) {
-            data.put(AMFDataType.AMFNumber);
-
-            long vall = Double.doubleToLongBits(val);
-            byte[] buf = new byte[8];
-            buf[7] = (byte)(vall & 0xff);
-            buf[6] = (byte)((vall >> 8) & 0xff);
-            buf[5] = (byte)((vall >> 16) & 0xff);
-            buf[4] = (byte)((vall >> 24) & 0xff);
-            buf[3] = (byte)((vall >> 32) & 0xff);
-            buf[2] = (byte)((vall >> 40) & 0xff);
-            buf[1] = (byte)((vall >> 48) & 0xff);
-            buf[0] = (byte)((vall >> 56) & 0xff);
-
-            data.put(buf);
-        }
-
-        private void put_string(ByteBuffer data, String string) {
-            if (string.length() < 0xFFFF) {
-                data.put(AMFDataType.AMFString);
-                put_be16(data, (short)(string.length()&0xffff));
-            } else {
-                data.put(AMFDataType.AMFLongString);
-                put_be32(data, string.length());
-            }
-            data.put(string.getBytes());
-        }
-
-        private void put_named_string(ByteBuffer data, String name, String val) {
-            put_name(data, name);
-            put_string(data, val);
-        }
-
-        private void put_named_double(ByteBuffer data, String name, double val) {
-            put_name(data, name);
-            put_double(data, val);
-        }
-
-        public SrsFlvFrameBytes makeMetaData(double width, double height, double fps, double videobitrate,
-                                             double audiosamplerate, double audiodatarate) {
-            ByteBuffer metainfo = ByteBuffer.allocate(1024);
-
-            put_string(metainfo, "@setDataFrame");
-            put_string(metainfo, "onMetaData");
-            metainfo.put(AMFDataType.AMFObject);
-            put_named_string(metainfo, "author", "Andy Young");
-            put_named_string(metainfo, "copyright", "@Baidu.com");
-            put_named_double(metainfo, "width", width);
-            put_named_double(metainfo, "height", height);
-            put_named_double(metainfo, "framerate", fps);
-            put_named_double(metainfo, "videodatarate", videobitrate);
-            put_named_double(metainfo, "audiosamplerate", audiosamplerate);
-            put_named_double(metainfo, "audiodatarate", audiodatarate);
-            put_name(metainfo, "");
-            metainfo.put(AMFDataType.AMFObjectEnd);
-            int position = metainfo.position();
-            metainfo.rewind();
-
-            SrsFlvFrameBytes metadata = new SrsFlvFrameBytes();
-            metadata.frame = metainfo;
-            metadata.size = position;
-            
-            return metadata;
-        }
-
-        public void writeAudioSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) throws Exception {
-            int pts = (int)(bi.presentationTimeUs / 1000);
-            int dts = (int) pts - CTS_OF_FRAME_IN_MS;
-            dts = dts < 0 ? 0 : dts;
-
-            byte[] frame = null;
-            byte aac_packet_type = 1; // 1 = AAC raw
-            if (aac_specific_config == null) {
-                Log.d(TAG, "Generating aac audio specific config frame.");
-                frame = new byte[4];
-                aac_specific_config = new byte[2];
-                aac_specific_config[0] = 0x12;
-                aac_specific_config[1] = 0x10;
-            } else {
-                frame = new byte[bi.size + 2];
-                bb.get(frame, 2, frame.length - 2);
-            }
-
-            byte sound_format = 10; // AAC
-            byte sound_type = 0; // 0 = Mono sound
-            if (achannel == 2) {
-                sound_type = 1; // 1 = Stereo sound
-            }
-            byte sound_size = 2; // 2 = 16-bit samples
-            byte sound_rate = 3; // 44100, 22050, 11025
-            if (asample_rate == 22050) {
-                sound_rate = 2;
-            } else if (asample_rate == 11025) {
-                sound_rate = 1;
-            }
-
-            // for audio frame, there is 1 or 2 bytes header:
-            //  1bytes, SoundFormat|SoundRate|SoundSize|SoundType
-            //  1bytes, AACPacketType for SoundFormat == 10, 0 is sequence header.
-            byte audio_header = (byte)(sound_type & 0x01);
-            audio_header |= (sound_size << 1) & 0x02;
-            audio_header |= (sound_rate << 2) & 0x0c;
-            audio_header |= (sound_format << 4) & 0xf0;
-
-            if (!aac_asc_sent) {
-                aac_packet_type = 0;
-                aac_asc_sent = true;
-                System.arraycopy(aac_specific_config, 0, frame, 2, aac_specific_config.length);
-            }
-            
-            frame[0] = audio_header;
-            frame[1] = aac_packet_type;
-
-            SrsFlvFrameBytes tag = new SrsFlvFrameBytes();
-            tag.frame = ByteBuffer.wrap(frame);
-            tag.size = frame.length;
-
-            int timestamp = dts;
-            rtmp_write_packet(SrsCodecFlvTag.Audio, timestamp, 0, aac_packet_type, tag);
-        }
-
-        public void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) throws Exception {
-            int pts = (int)(bi.presentationTimeUs / 1000);
-            int dts = pts - CTS_OF_FRAME_IN_MS;
-            dts = dts < 0 ? 0 : dts;
-
-            ArrayList<SrsFlvFrameBytes> ibps = new ArrayList<SrsFlvFrameBytes>();
-            int frame_type = SrsCodecVideoAVCFrame.InterFrame;
-            //Log.i(TAG, String.format("video %d/%d bytes, offset=%d, position=%d, pts=%d", bb.remaining(), bi.size, bi.offset, bb.position(), pts));
-
-            // send each frame.
-            while (bb.position() < bi.size) {
-                SrsFlvFrameBytes frame = avc.annexb_demux(bb, bi);
-
-                // 5bits, 7.3.1 NAL unit syntax,
-                // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
-                //  7: SPS, 8: PPS, 5: I Frame, 1: P Frame
-                int nal_unit_type = (int)(frame.frame.get(0) & 0x1f);
-                if (nal_unit_type == SrsAvcNaluType.SPS || nal_unit_type == SrsAvcNaluType.PPS) {
-                    Log.i(TAG, String.format("annexb demux %dB, pts=%d, frame=%dB, nalu=%d", bi.size, pts, frame.size, nal_unit_type));
-                }
-
-                // for IDR frame, the frame is keyframe.
-                if (nal_unit_type == SrsAvcNaluType.IDR) {
-                    frame_type = SrsCodecVideoAVCFrame.KeyFrame;
-                }
-
-                // ignore the nalu type aud(9)
-                if (nal_unit_type == SrsAvcNaluType.AccessUnitDelimiter) {
-                    continue;
-                }
-
-                // for sps
-                if (avc.is_sps(frame)) {
-                    byte[] sps = new byte[frame.size];
-                    frame.frame.get(sps);
-
-                    if (utils.srs_bytes_equals(h264_sps, sps)) {
-                        continue;
-                    }
-                    h264_sps_changed = true;
-                    h264_sps = sps;
-                    hasMetSps = true;
-                    continue;
-                }
-
-                // for pps
-                if (avc.is_pps(frame)) {
-                    byte[] pps = new byte[frame.size];
-                    frame.frame.get(pps);
-
-                    if (utils.srs_bytes_equals(h264_pps, pps)) {
-                        continue;
-                    }
-                    h264_pps_changed = true;
-                    h264_pps = pps;
-                    hasMetPps = true;
-                    continue;
-                }
-
-                // ibp frame.
-                SrsFlvFrameBytes nalu_header = avc.mux_ibp_frame(frame);
-                ibps.add(nalu_header);
-                ibps.add(frame);
-            }
-
-            if (!hasMetSps || !hasMetPps) {
-                Log.d(TAG, "No sps and pps was sent, skip");
-                return;
-            }
-            
-            if (frame_type == SrsCodecVideoAVCFrame.KeyFrame) {
-                write_h264_sps_pps(dts, pts);
-            }
-
-            write_h264_ipb_frame(ibps, frame_type, dts, pts);
-        }
-
-        private void write_h264_sps_pps(int dts, int pts) {
-            // when sps or pps changed, update the sequence header,
-            // for the pps maybe not changed while sps changed.
-            // so, we must check when each video ts message frame parsed.
-            if (h264_sps_pps_sent && !h264_sps_changed && !h264_pps_changed) {
-                return;
-            }
-
-            // when not got sps/pps, wait.
-            if (h264_pps.length <= 0 || h264_sps.length <= 0) {
-                return;
-            }
-
-            // h264 raw to h264 packet.
-            ArrayList<SrsFlvFrameBytes> frames = new ArrayList<SrsFlvFrameBytes>();
-            avc.mux_sequence_header(h264_sps, h264_pps, dts, pts, frames);
-
-            // h264 packet to flv packet.
-            int frame_type = SrsCodecVideoAVCFrame.KeyFrame;
-            int avc_packet_type = SrsCodecVideoAVCType.SequenceHeader;
-            SrsFlvFrameBytes flv_tag = avc.mux_avc2flv(frames, frame_type, avc_packet_type, dts, pts);
-
-            // the timestamp in rtmp message header is dts.
-            int timestamp = dts;
-            rtmp_write_packet(SrsCodecFlvTag.Video, timestamp, frame_type, avc_packet_type, flv_tag);
-
-            // reset sps and pps.
-            h264_sps_changed = false;
-            h264_pps_changed = false;
-            h264_sps_pps_sent = true;
-            Log.i(TAG, String.format("flv: h264 sps/pps sent, sps=%dB, pps=%dB", h264_sps.length, h264_pps.length));
-        }
-
-        private void write_h264_ipb_frame(ArrayList<SrsFlvFrameBytes> ibps, int frame_type, int dts, int pts) {
-            // when sps or pps not sent, ignore the packet.
-            // @see https://github.com/simple-rtmp-server/srs/issues/203
-            if (!h264_sps_pps_sent) {
-                return;
-            }
-
-            int avc_packet_type = SrsCodecVideoAVCType.NALU;
-            SrsFlvFrameBytes flv_tag = avc.mux_avc2flv(ibps, frame_type, avc_packet_type, dts, pts);
-
-//            if (frame_type == SrsCodecVideoAVCFrame.KeyFrame) {
-//                Log.i(TAG, String.format("flv: keyframe %dB, dts=%d", flv_tag.size, dts));
-//            }
-
-            // the timestamp in rtmp message header is dts.
-            int timestamp = dts;
-            rtmp_write_packet(SrsCodecFlvTag.Video, timestamp, frame_type, avc_packet_type, flv_tag);
-        }
-
-        private void rtmp_write_packet(int type, int dts, int frame_type, int avc_aac_type, SrsFlvFrameBytes tag) {
-            SrsFlvFrame frame = new SrsFlvFrame();
-            frame.tag = tag;
-            frame.type = type;
-            frame.dts = dts;
-            frame.frame_type = frame_type;
-            frame.avc_aac_type = avc_aac_type;
-
-            // use handler to send the message.
-            // TODO: FIXME: we must wait for the handler to ready, for the sps/pps cannot be dropped.
-            if (handler == null) {
-                Log.w(TAG, "flv: drop frame for handler not ready.");
-                return;
-            }
-
-            Message msg = Message.obtain();
-            msg.what = SrsMessageType.FLV;
-            msg.obj = frame;
-            handler.sendMessage(msg);
-        }
-    }
 }
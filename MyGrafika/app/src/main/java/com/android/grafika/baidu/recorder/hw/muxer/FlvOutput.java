@@ -0,0 +1,16 @@
+package com.android.grafika.baidu.recorder.hw.muxer;
+
+/**
+ * Where FlvMuxer sends the tags it assembles.
+ */
+public interface FlvOutput {
+
+    public boolean isConnected();
+
+    /**
+     * sends the body of one flv tag.
+     * @param type the flv tag type, 8 for audio, 9 for video and 0x16 for the metadata.
+     * @return the number of bytes sent, 0 or less on failure.
+     */
+    public int writeTag(byte[] buf, int len, long dts, int type);
+}
@@ -0,0 +1,428 @@
+package com.android.grafika.baidu.recorder.hw.muxer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Remuxes annexb h.264 access units and raw AAC frames into the bodies of flv tags.
+ * <p>
+ * Plain java without android types or threads: each tag is handed to the TagSink on the
+ * calling thread. FlvMuxer queues them for its send worker, JavaFlvRecorder writes them to
+ * its output right away, so the remux can be checked on a desktop JVM.
+ */
+public class FlvTagWriter {
+    // E.4.1 FLV Tag, page 75
+    public static final int TAG_AUDIO = 0x08;
+    public static final int TAG_VIDEO = 0x09;
+    // 22 = metadata, FlvFileOutput writes it as a script tag
+    public static final int TAG_METADATA = 0x16;
+
+    // E.4.3.1 VIDEODATA, Frame Type
+    public static final int FRAME_KEY = 1;
+    public static final int FRAME_INTER = 2;
+
+    // AVCPacketType, the AACPacketType uses the same values
+    public static final int PACKET_SEQUENCE_HEADER = 0;
+    public static final int PACKET_NALU = 1;
+
+    // the pts is this much after the dts in every tag
+    public static final int CTS_OF_FRAME_IN_MS = 5;
+
+    // E.4.3.1 VIDEODATA, CodecID
+    private static final int CODEC_AVC = 7;
+    // Table 7-1, H.264-AVC-ISO_IEC_14496-10-2012.pdf, page 83
+    private static final int NALU_IDR = 5;
+    private static final int NALU_SPS = 7;
+    private static final int NALU_PPS = 8;
+    private static final int NALU_AUD = 9;
+
+    private static final byte AMF_NUMBER = 0x00;
+    private static final byte AMF_STRING = 0x02;
+    private static final byte AMF_OBJECT = 0x03;
+    private static final byte AMF_OBJECT_END = 0x09;
+    private static final byte AMF_LONG_STRING = 0x0c;
+
+    /**
+     * the size and time of a sample, like MediaCodec.BufferInfo.
+     */
+    public static class SampleInfo {
+        // where the sample ends in its buffer, it starts at the buffer position
+        public int size;
+        public long presentationTimeUs;
+
+        public void set(int size, long presentationTimeUs) {
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+        }
+    }
+
+    /**
+     * takes the muxed tags.
+     */
+    public interface TagSink {
+        /**
+         * a heap buffer with room for size bytes from its start, for the tag of a frame.
+         */
+        ByteBuffer obtainTagBuffer(int size);
+
+        /**
+         * one tag body in [0, size) of tag.
+         * @param frameType FRAME_KEY or FRAME_INTER for the video, 0 for the others.
+         * @param packetType PACKET_SEQUENCE_HEADER or PACKET_NALU, 0 for the metadata.
+         * @param pooled whether tag came from obtainTagBuffer.
+         */
+        void onTag(int type, int dts, int frameType, int packetType, ByteBuffer tag, int size, boolean pooled);
+    }
+
+    private final TagSink mSink;
+
+    private int mChannels;
+    private int mSampleRate;
+
+    private byte[] mSps = new byte[0];
+    private boolean isSpsChanged = false;
+    private byte[] mPps = new byte[0];
+    private boolean isPpsChanged = false;
+    private boolean isSpsPpsSent = false;
+    private boolean hasMetSps = false;
+    private boolean hasMetPps = false;
+
+    private byte[] mAacSpecificConfig = null;
+    private boolean isAacAscSent = false;
+
+    // the nalus of the sample being muxed, reused for every sample
+    private int[] mNaluStarts = new int[8];
+    private int[] mNaluSizes = new int[8];
+
+    public FlvTagWriter(TagSink sink) {
+        mSink = sink;
+    }
+
+    public void setAudioParams(int channels, int sampleRate) {
+        mChannels = channels;
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * makes the sps and pps be waited for again before the next video tag.
+     */
+    public void resetSeenParameterSets() {
+        hasMetSps = false;
+        hasMetPps = false;
+    }
+
+    /**
+     * the body of the onMetaData tag, to be sent with the type TAG_METADATA.
+     */
+    public ByteBuffer makeMetaData(double width, double height, double fps, double videobitrate,
+                                   double audiosamplerate, double audiodatarate) {
+        ByteBuffer metainfo = ByteBuffer.allocate(1024);
+
+        putString(metainfo, "@setDataFrame");
+        putString(metainfo, "onMetaData");
+        metainfo.put(AMF_OBJECT);
+        putNamedString(metainfo, "author", "Andy Young");
+        putNamedString(metainfo, "copyright", "@Baidu.com");
+        putNamedDouble(metainfo, "width", width);
+        putNamedDouble(metainfo, "height", height);
+        putNamedDouble(metainfo, "framerate", fps);
+        putNamedDouble(metainfo, "videodatarate", videobitrate);
+        putNamedDouble(metainfo, "audiosamplerate", audiosamplerate);
+        putNamedDouble(metainfo, "audiodatarate", audiodatarate);
+        putName(metainfo, "");
+        metainfo.put(AMF_OBJECT_END);
+        metainfo.limit(metainfo.position());
+        metainfo.rewind();
+        return metainfo;
+    }
+
+    private static void putName(ByteBuffer data, String name) {
+        data.putShort((short) name.length());
+        data.put(name.getBytes());
+    }
+
+    private static void putString(ByteBuffer data, String string) {
+        if (string.length() < 0xFFFF) {
+            data.put(AMF_STRING);
+            data.putShort((short) string.length());
+        } else {
+            data.put(AMF_LONG_STRING);
+            data.putInt(string.length());
+        }
+        data.put(string.getBytes());
+    }
+
+    private static void putNamedString(ByteBuffer data, String name, String val) {
+        putName(data, name);
+        putString(data, val);
+    }
+
+    private static void putNamedDouble(ByteBuffer data, String name, double val) {
+        putName(data, name);
+        data.put(AMF_NUMBER);
+        data.putLong(Double.doubleToLongBits(val));
+    }
+
+    /**
+     * muxes a raw AAC frame from the position of bb. The first one is replaced by the
+     * audio specific config.
+     */
+    public void writeAudioSample(ByteBuffer bb, SampleInfo bi) {
+        int pts = (int) (bi.presentationTimeUs / 1000);
+        int dts = Math.max(0, pts - CTS_OF_FRAME_IN_MS);
+
+        int packetType = PACKET_NALU; // 1 = AAC raw
+        ByteBuffer tag;
+        int size;
+        boolean pooled = false;
+        if (mAacSpecificConfig == null) {
+            // AAC LC, 44100Hz, stereo
+            mAacSpecificConfig = new byte[] {0x12, 0x10};
+            size = 2 + mAacSpecificConfig.length;
+            tag = ByteBuffer.allocate(size);
+        } else {
+            size = bi.size + 2;
+            tag = mSink.obtainTagBuffer(size);
+            pooled = true;
+            bb.get(tag.array(), 2, size - 2);
+        }
+        byte[] frame = tag.array();
+
+        byte soundFormat = 10; // AAC
+        byte soundType = 0; // 0 = Mono sound
+        if (mChannels == 2) {
+            soundType = 1; // 1 = Stereo sound
+        }
+        byte soundSize = 2; // 2 = 16-bit samples
+        byte soundRate = 3; // 44100, 22050, 11025
+        if (mSampleRate == 22050) {
+            soundRate = 2;
+        } else if (mSampleRate == 11025) {
+            soundRate = 1;
+        }
+
+        // for audio frame, there is 1 or 2 bytes header:
+        //  1bytes, SoundFormat|SoundRate|SoundSize|SoundType
+        //  1bytes, AACPacketType for SoundFormat == 10, 0 is sequence header.
+        byte audioHeader = (byte) (soundType & 0x01);
+        audioHeader |= (soundSize << 1) & 0x02;
+        audioHeader |= (soundRate << 2) & 0x0c;
+        audioHeader |= (soundFormat << 4) & 0xf0;
+
+        if (!isAacAscSent) {
+            packetType = PACKET_SEQUENCE_HEADER;
+            isAacAscSent = true;
+            System.arraycopy(mAacSpecificConfig, 0, frame, 2, mAacSpecificConfig.length);
+        }
+        frame[0] = audioHeader;
+        frame[1] = (byte) packetType;
+
+        mSink.onTag(TAG_AUDIO, dts, 0, packetType, tag, size, pooled);
+    }
+
+    /**
+     * muxes an annexb access unit from the position of bb. The sps and pps are kept and sent
+     * as the sequence header before the key frames when they changed.
+     */
+    public void writeVideoSample(ByteBuffer bb, SampleInfo bi) throws Exception {
+        int pts = (int) (bi.presentationTimeUs / 1000);
+        int dts = Math.max(0, pts - CTS_OF_FRAME_IN_MS);
+
+        int frameType = FRAME_INTER;
+        int nalus = 0;
+        while (bb.position() < bi.size) {
+            int start = demuxAnnexb(bb, bi);
+            int size = bb.position() - start;
+            if (size < 1) {
+                continue;
+            }
+
+            // 5bits, 7.3.1 NAL unit syntax,
+            // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
+            //  7: SPS, 8: PPS, 5: I Frame, 1: P Frame
+            int naluType = bb.get(start) & 0x1f;
+            if (naluType == NALU_IDR) {
+                frameType = FRAME_KEY;
+            }
+            if (naluType == NALU_AUD) {
+                continue;
+            }
+            if (naluType == NALU_SPS) {
+                byte[] sps = copyOf(bb, start, size);
+                if (!Arrays.equals(mSps, sps)) {
+                    isSpsChanged = true;
+                    mSps = sps;
+                }
+                hasMetSps = true;
+                continue;
+            }
+            if (naluType == NALU_PPS) {
+                byte[] pps = copyOf(bb, start, size);
+                if (!Arrays.equals(mPps, pps)) {
+                    isPpsChanged = true;
+                    mPps = pps;
+                }
+                hasMetPps = true;
+                continue;
+            }
+
+            if (nalus == mNaluStarts.length) {
+                mNaluStarts = Arrays.copyOf(mNaluStarts, nalus * 2);
+                mNaluSizes = Arrays.copyOf(mNaluSizes, nalus * 2);
+            }
+            mNaluStarts[nalus] = start;
+            mNaluSizes[nalus] = size;
+            nalus++;
+        }
+
+        if (!hasMetSps || !hasMetPps) {
+            // no sps and pps yet, the frame can't be decoded
+            return;
+        }
+        if (frameType == FRAME_KEY) {
+            writeSequenceHeader(dts, pts);
+        }
+        writeNalus(bb, nalus, frameType, dts, pts);
+    }
+
+    private static byte[] copyOf(ByteBuffer bb, int start, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = bb.get(start + i);
+        }
+        return data;
+    }
+
+    /**
+     * skips the start code at the position of bb and moves to the end of the nalu after it.
+     * @return where the nalu starts.
+     */
+    private static int demuxAnnexb(ByteBuffer bb, SampleInfo bi) throws Exception {
+        // each frame must prefixed by annexb format.
+        // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
+        int startCode = searchStartCode(bb, bb.position(), bi.size);
+        if (startCode < 3) {
+            throw new Exception(String.format("annexb not match for %dB, pos=%d", bi.size, bb.position()));
+        }
+        int start = bb.position() + startCode;
+        int pos = start;
+        while (pos < bi.size && searchStartCode(bb, pos, bi.size) == 0) {
+            pos++;
+        }
+        bb.position(pos);
+        return start;
+    }
+
+    /**
+     * the size of the N[00] 00 00 01 start code at pos, where N>=0, 0 if there is none.
+     */
+    private static int searchStartCode(ByteBuffer bb, int pos, int end) {
+        int i = pos;
+        while (i < end - 3) {
+            if (bb.get(i) != 0x00 || bb.get(i + 1) != 0x00) {
+                break;
+            }
+            if (bb.get(i + 2) == 0x01) {
+                return i + 3 - pos;
+            }
+            i++;
+        }
+        return 0;
+    }
+
+    private void writeSequenceHeader(int dts, int pts) {
+        // when sps or pps changed, update the sequence header,
+        // for the pps maybe not changed while sps changed.
+        // so, we must check when each video ts message frame parsed.
+        if (isSpsPpsSent && !isSpsChanged && !isPpsChanged) {
+            return;
+        }
+        // when not got sps/pps, wait.
+        if (mPps.length <= 0 || mSps.length <= 0) {
+            return;
+        }
+
+        // 5bytes sps/pps header:
+        //      configurationVersion, AVCProfileIndication, profile_compatibility,
+        //      AVCLevelIndication, lengthSizeMinusOne
+        // 3bytes size of sps:
+        //      numOfSequenceParameterSets, sequenceParameterSetLength(2B)
+        // Nbytes of sps.
+        //      sequenceParameterSetNALUnit
+        // 3bytes size of pps:
+        //      numOfPictureParameterSets, pictureParameterSetLength
+        // Nbytes of pps:
+        //      pictureParameterSetNALUnit
+        // @see: 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
+        int size = 5 + 5 + 3 + mSps.length + 3 + mPps.length;
+        ByteBuffer tag = ByteBuffer.allocate(size);
+        putVideoHeader(tag, FRAME_KEY, PACKET_SEQUENCE_HEADER, pts - dts);
+        // configurationVersion
+        tag.put((byte) 0x01);
+        // AVCProfileIndication, profile_compatibility and AVCLevelIndication from the sps,
+        // @see: Annex A Profiles and levels, H.264-AVC-ISO_IEC_14496-10.pdf, page 205
+        tag.put(mSps[1]);
+        tag.put(mSps[2]);
+        tag.put(mSps[3]);
+        // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size
+        tag.put((byte) 0xFF);
+        // numOfSequenceParameterSets, always 1
+        tag.put((byte) 0xE1);
+        tag.putShort((short) mSps.length);
+        tag.put(mSps);
+        // numOfPictureParameterSets, always 1
+        tag.put((byte) 0x01);
+        tag.putShort((short) mPps.length);
+        tag.put(mPps);
+        tag.rewind();
+
+        // the timestamp in rtmp message header is dts.
+        mSink.onTag(TAG_VIDEO, dts, FRAME_KEY, PACKET_SEQUENCE_HEADER, tag, size, false);
+
+        isSpsChanged = false;
+        isPpsChanged = false;
+        isSpsPpsSent = true;
+    }
+
+    private void writeNalus(ByteBuffer bb, int nalus, int frameType, int dts, int pts) {
+        // when sps or pps not sent, ignore the packet.
+        // @see https://github.com/simple-rtmp-server/srs/issues/203
+        if (!isSpsPpsSent) {
+            return;
+        }
+
+        int size = 5;
+        for (int i = 0; i < nalus; i++) {
+            // NALUnitLength and the nalu, "ISO Base Media File Format",
+            // from H.264-AVC-ISO_IEC_14496-15.pdf, page 20
+            size += 4 + mNaluSizes[i];
+        }
+        ByteBuffer tag = mSink.obtainTagBuffer(size);
+        putVideoHeader(tag, frameType, PACKET_NALU, pts - dts);
+        ByteBuffer src = bb.duplicate();
+        for (int i = 0; i < nalus; i++) {
+            tag.putInt(mNaluSizes[i]);
+            src.limit(mNaluStarts[i] + mNaluSizes[i]);
+            src.position(mNaluStarts[i]);
+            tag.put(src);
+        }
+        tag.rewind();
+
+        // the timestamp in rtmp message header is dts.
+        mSink.onTag(TAG_VIDEO, dts, frameType, PACKET_NALU, tag, size, true);
+    }
+
+    /**
+     * the 5 bytes of an avc video tag before the data, @see E.4.3 Video Tags,
+     * video_file_format_spec_v10_1.pdf, page 78
+     */
+    private static void putVideoHeader(ByteBuffer tag, int frameType, int packetType, int cts) {
+        // Frame Type and CodecID
+        tag.put((byte) ((frameType << 4) | CODEC_AVC));
+        tag.put((byte) packetType);
+        // CompositionTime, pts = dts + cts
+        tag.put((byte) (cts >> 16));
+        tag.put((byte) (cts >> 8));
+        tag.put((byte) cts);
+    }
+}
@@ -0,0 +1,284 @@
+package com.android.grafika.baidu.recorder.hw.muxer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import android.util.Log;
+
+/**
+ * Publishes the tags as an flv stream in a chunked http POST, e.g. to SRS over HTTP FLV.
+ * <p>
+ * Each tag is one http chunk, written with one gathering write of the chunk and tag headers,
+ * the tag body straight from the muxer's buffer and the trailer. When the stream is finished
+ * and the server answered with keep-alive, the connection is kept for the next publish to the
+ * same server.
+ */
+public class HttpFlvOutput implements FlvOutput {
+    private static final String TAG = "HttpFlvOutput";
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int RESPONSE_TIMEOUT_MS = 3000;
+    private static final int DEFAULT_PORT = 80;
+    // the chunk size in hex and crlf, then the tag header
+    private static final int CHUNK_SIZE_LINE_BYTES = 10;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final int MAX_RESPONSE_BYTES = 8 * 1024;
+
+    private SocketChannel mChannel = null;
+    private String mHostPort = null;
+    private volatile boolean isConnected = false;
+    private final boolean hasAudio;
+    private final boolean hasVideo;
+    private final byte[] mHead = new byte[CHUNK_SIZE_LINE_BYTES + FlvFileOutput.TAG_HEADER_SIZE];
+    private final byte[] mTail = new byte[4 + CRLF.length];
+    private final ByteBuffer[] mGather = new ByteBuffer[3];
+    private long mWrittenBytes = 0;
+    private long mWrites = 0;
+
+    public HttpFlvOutput(boolean hasAudio, boolean hasVideo) {
+        this.hasAudio = hasAudio;
+        this.hasVideo = hasVideo;
+        System.arraycopy(CRLF, 0, mTail, 4, CRLF.length);
+    }
+
+    /**
+     * opens the POST to url, http only, and sends the flv header.
+     * @return 0 or a negative error.
+     */
+    public int connect(String url) {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            Log.e(TAG, "bad url " + url, e);
+            return -1;
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+            Log.e(TAG, "only http urls are supported, url=" + url);
+            return -1;
+        }
+        int port = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+        String hostPort = uri.getHost() + ":" + port;
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+
+        try {
+            if (mChannel != null && (!mChannel.isOpen() || !hostPort.equals(mHostPort))) {
+                closeChannel();
+            }
+            if (mChannel == null) {
+                SocketChannel channel = SocketChannel.open();
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                channel.socket().connect(new InetSocketAddress(uri.getHost(), port), CONNECT_TIMEOUT_MS);
+                mChannel = channel;
+                mHostPort = hostPort;
+            } else {
+                Log.i(TAG, "reuse the connection to " + hostPort);
+            }
+
+            String request = "POST " + path + " HTTP/1.1\r\n"
+                    + "Host: " + uri.getHost() + (uri.getPort() > 0 ? ":" + port : "") + "\r\n"
+                    + "Content-Type: video/x-flv\r\n"
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "\r\n";
+            writeFully(ByteBuffer.wrap(request.getBytes("US-ASCII")));
+            byte[] header = FlvFileOutput.makeFileHeader(hasAudio, hasVideo);
+            writeChunk(ByteBuffer.wrap(header));
+        } catch (IOException e) {
+            Log.e(TAG, "connect to " + hostPort + " failed", e);
+            closeChannel();
+            return -1;
+        }
+        isConnected = true;
+        return 0;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    @Override
+    public int writeTag(byte[] buf, int len, long dts, int type) {
+        if (!isConnected) {
+            return -1;
+        }
+        int offset = FlvFileOutput.payloadOffset(buf, len, type);
+        int size = len - offset;
+        int tagSize = FlvFileOutput.TAG_HEADER_SIZE + size;
+        int chunkSize = tagSize + 4;
+
+        int headStart = putChunkSizeLine(chunkSize);
+        FlvFileOutput.putTagHeader(mHead, CHUNK_SIZE_LINE_BYTES, type, size, dts);
+        mTail[0] = (byte) (tagSize >> 24);
+        FlvFileOutput.putBe24(mTail, 1, tagSize);
+
+        mGather[0] = ByteBuffer.wrap(mHead, headStart, mHead.length - headStart);
+        mGather[1] = ByteBuffer.wrap(buf, offset, size);
+        mGather[2] = ByteBuffer.wrap(mTail);
+        try {
+            writeFully(mGather);
+        } catch (ClosedByInterruptException e) {
+            // the writer was stopped while the server didn't take the tag, the stream ends here
+            Log.i(TAG, "interrupted in the middle of a tag, the connection is closed");
+            isConnected = false;
+            closeChannel();
+            return -1;
+        } catch (IOException e) {
+            Log.e(TAG, "write flv tag failed", e);
+            isConnected = false;
+            closeChannel();
+            return -1;
+        }
+        mWrittenBytes += chunkSize;
+        return len;
+    }
+
+    // the hex size and crlf end right before the tag header, returns where they start
+    private int putChunkSizeLine(int size) {
+        int i = CHUNK_SIZE_LINE_BYTES;
+        mHead[--i] = '\n';
+        mHead[--i] = '\r';
+        do {
+            mHead[--i] = (byte) Character.forDigit(size & 0xf, 16);
+            size >>>= 4;
+        } while (size != 0);
+        return i;
+    }
+
+    private void writeChunk(ByteBuffer data) throws IOException {
+        String sizeLine = Integer.toHexString(data.remaining()) + "\r\n";
+        writeFully(new ByteBuffer[] {ByteBuffer.wrap(sizeLine.getBytes("US-ASCII")), data, ByteBuffer.wrap(CRLF)});
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        writeFully(new ByteBuffer[] {buffer});
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            mChannel.write(buffers);
+            mWrites++;
+        }
+    }
+
+    /**
+     * ends the stream and reads the response, the connection is kept if the server agrees.
+     * @return the http status, or -1 if there was none.
+     */
+    public int finish() {
+        if (!isConnected) {
+            closeChannel();
+            return -1;
+        }
+        isConnected = false;
+        int status = -1;
+        try {
+            writeFully(ByteBuffer.wrap(LAST_CHUNK));
+            String response = readResponseHead();
+            if (response != null) {
+                status = parseStatus(response);
+                String lower = response.toLowerCase();
+                // a body we'd have to skip isn't worth keeping the connection for
+                boolean reusable = status >= 200 && status < 300 && !lower.contains("connection: close")
+                        && (lower.contains("content-length: 0\r\n") || status == 204);
+                if (reusable) {
+                    return status;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "finish the http flv stream failed", e);
+        }
+        closeChannel();
+        return status;
+    }
+
+    private String readResponseHead() throws IOException {
+        Selector selector = Selector.open();
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_RESPONSE_BYTES);
+        try {
+            mChannel.configureBlocking(false);
+            mChannel.register(selector, SelectionKey.OP_READ);
+            long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT_MS;
+            while (buffer.hasRemaining()) {
+                long waitMs = deadline - System.currentTimeMillis();
+                if (waitMs <= 0 || selector.select(waitMs) == 0) {
+                    Log.w(TAG, "no response from the server");
+                    return null;
+                }
+                selector.selectedKeys().clear();
+                if (mChannel.read(buffer) < 0) {
+                    break;
+                }
+                String head = new String(buffer.array(), 0, buffer.position(), "US-ASCII");
+                int end = head.indexOf("\r\n\r\n");
+                if (end >= 0) {
+                    return head.substring(0, end + 2);
+                }
+            }
+            return null;
+        } finally {
+            selector.close();
+            mChannel.configureBlocking(true);
+        }
+    }
+
+    private static int parseStatus(String response) {
+        // HTTP/1.1 200 OK
+        int start = response.indexOf(' ');
+        if (start < 0 || response.length() < start + 4) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(response.substring(start + 1, start + 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * the bytes of the http chunks written for the tags.
+     */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * the writes to the socket, one per tag unless the socket took a part of it.
+     */
+    public long getWrites() {
+        return mWrites;
+    }
+
+    /**
+     * closes the connection, finish() first to end the stream cleanly.
+     */
+    public void release() {
+        isConnected = false;
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mChannel = null;
+            mHostPort = null;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.android.grafika.baidu.recorder.hw.muxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+import android.util.Log;
+
+/**
+ * Flv tags kept on local storage while the uplink is down, in the order they came.
+ * <p>
+ * The tags are appended to memory mapped segment files of a fixed size. A segment which was
+ * read through is recycled for writing, and when the disk budget is used up the oldest
+ * segment is recycled even if it wasn't read, losing its tags. Not thread safe, FlvMuxer
+ * uses it from its send worker only.
+ */
+public class SpillQueue {
+    private static final String TAG = "SpillQueue";
+    private static final int DEFAULT_SEGMENT_BYTES = 2 * 1024 * 1024;
+    // type, frame_type, avc_aac_type, reserved, dts and size
+    private static final int RECORD_HEADER_BYTES = 12;
+
+    /**
+     * a tag read back from the queue.
+     */
+    public static class Record {
+        public int type;
+        public int frameType;
+        public int avcAacType;
+        public int dts;
+        public byte[] data;
+        // the sequence number of the tag, counting from the first one ever appended.
+        public long seq;
+    }
+
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int writePosition = 0;
+        int readPosition = 0;
+        int records = 0;
+        int readRecords = 0;
+        long firstSeq = 0;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        void reset(long seq) {
+            writePosition = 0;
+            readPosition = 0;
+            records = 0;
+            readRecords = 0;
+            firstSeq = seq;
+        }
+    }
+
+    private final File mDir;
+    private final int mSegmentBytes;
+    private final int mMaxSegments;
+    // oldest first, the reader is in the first one and the writer in the last one
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+    private final ArrayDeque<Segment> mFreeSegments = new ArrayDeque<Segment>();
+    private int mCreatedSegments = 0;
+    private long mNextSeq = 0;
+    private long mReadSeq = 0;
+    private long mLastKeyFrameSeq = -1;
+    private long mLostRecords = 0;
+    private long mBytes = 0;
+
+    /**
+     * @param dir where the segment files go, it is created if needed.
+     * @param maxBytes the disk budget, at least two segments are used.
+     */
+    public SpillQueue(File dir, long maxBytes) {
+        this(dir, maxBytes, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public SpillQueue(File dir, long maxBytes, int segmentBytes) {
+        mDir = dir;
+        mSegmentBytes = segmentBytes;
+        mMaxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+    }
+
+    /**
+     * appends the tag, false if it can't be written.
+     */
+    public boolean append(int type, int frameType, int avcAacType, int dts, byte[] data, int size) {
+        int recordBytes = RECORD_HEADER_BYTES + size;
+        if (recordBytes > mSegmentBytes) {
+            Log.w(TAG, "drop tag larger than a segment, size=" + size);
+            return false;
+        }
+
+        Segment segment = mSegments.peekLast();
+        if (segment == null || mSegmentBytes - segment.writePosition < recordBytes) {
+            segment = nextSegment();
+            if (segment == null) {
+                return false;
+            }
+        }
+
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.position(segment.writePosition);
+        buffer.put((byte) type);
+        buffer.put((byte) frameType);
+        buffer.put((byte) avcAacType);
+        buffer.put((byte) 0);
+        buffer.putInt(dts);
+        buffer.putInt(size);
+        buffer.put(data, 0, size);
+        segment.writePosition += recordBytes;
+        segment.records++;
+        mBytes += size;
+
+        if (frameType == FlvMuxer.SrsCodecVideoAVCFrame.KeyFrame && type == FlvMuxer.SrsCodecFlvTag.Video) {
+            mLastKeyFrameSeq = mNextSeq;
+        }
+        mNextSeq++;
+        return true;
+    }
+
+    private Segment nextSegment() {
+        Segment segment = mFreeSegments.pollFirst();
+        if (segment == null && mCreatedSegments < mMaxSegments) {
+            segment = createSegment(mCreatedSegments);
+            if (segment != null) {
+                mCreatedSegments++;
+            }
+        }
+        if (segment == null) {
+            // out of budget, the oldest tags go
+            segment = mSegments.pollFirst();
+            if (segment == null) {
+                return null;
+            }
+            int lost = segment.records - segment.readRecords;
+            mLostRecords += lost;
+            mBytes -= segment.writePosition - segment.readPosition - lost * RECORD_HEADER_BYTES;
+            Segment next = mSegments.peekFirst();
+            mReadSeq = next != null ? next.firstSeq : mNextSeq;
+            Log.w(TAG, String.format("spill queue full, %d tags lost", lost));
+        }
+        segment.reset(mNextSeq);
+        mSegments.addLast(segment);
+        return segment;
+    }
+
+    private Segment createSegment(int index) {
+        RandomAccessFile file = null;
+        try {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                Log.e(TAG, "can't create " + mDir);
+                return null;
+            }
+            File path = new File(mDir, "spill-" + index + ".seg");
+            file = new RandomAccessFile(path, "rw");
+            file.setLength(mSegmentBytes);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+            return new Segment(path, buffer);
+        } catch (IOException e) {
+            Log.e(TAG, "create spill segment failed.", e);
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    // the mapping stays valid after the file is closed
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return mReadSeq == mNextSeq;
+    }
+
+    /**
+     * the dts of the next tag to read, -1 if empty.
+     */
+    public int peekDts() {
+        Segment segment = readableSegment();
+        if (segment == null) {
+            return -1;
+        }
+        return segment.buffer.getInt(segment.readPosition + 4);
+    }
+
+    /**
+     * reads the next tag into record, false if empty.
+     */
+    public boolean read(Record record) {
+        Segment segment = readableSegment();
+        if (segment == null) {
+            return false;
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.position(segment.readPosition);
+        record.type = buffer.get();
+        record.frameType = buffer.get();
+        record.avcAacType = buffer.get();
+        buffer.get();
+        record.dts = buffer.getInt();
+        int size = buffer.getInt();
+        record.data = new byte[size];
+        buffer.get(record.data);
+        record.seq = mReadSeq++;
+        segment.readPosition += RECORD_HEADER_BYTES + size;
+        segment.readRecords++;
+        mBytes -= size;
+        return true;
+    }
+
+    private Segment readableSegment() {
+        while (!isEmpty()) {
+            Segment segment = mSegments.peekFirst();
+            if (segment.readRecords < segment.records) {
+                return segment;
+            }
+            if (segment == mSegments.peekLast()) {
+                return null;
+            }
+            // read through, it can be written again
+            mSegments.pollFirst();
+            mFreeSegments.addLast(segment);
+        }
+        return null;
+    }
+
+    /**
+     * the sequence number of the last video key frame appended, -1 if none.
+     */
+    public long getLastKeyFrameSeq() {
+        return mLastKeyFrameSeq;
+    }
+
+    /**
+     * tags lost because the disk budget was used up.
+     */
+    public long getLostRecords() {
+        return mLostRecords;
+    }
+
+    /**
+     * bytes of the tags waiting to be read.
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * forgets the tags and deletes the segment files.
+     */
+    public void release() {
+        for (Segment segment : mSegments) {
+            segment.file.delete();
+        }
+        for (Segment segment : mFreeSegments) {
+            segment.file.delete();
+        }
+        mSegments.clear();
+        mFreeSegments.clear();
+        mCreatedSegments = 0;
+        mReadSeq = mNextSeq;
+        mBytes = 0;
+    }
+}
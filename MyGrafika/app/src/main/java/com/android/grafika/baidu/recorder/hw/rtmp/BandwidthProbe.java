@@ -0,0 +1,110 @@
+package com.android.grafika.baidu.recorder.hw.rtmp;
+
+import com.android.grafika.baidu.recorder.hw.muxer.FlvOutput;
+
+import android.util.Log;
+
+/**
+ * Measures the uplink right after connecting, before the first frame is sent.
+ * <p>
+ * Padding data messages are written for up to a second. The first ones only fill the socket
+ * send buffer, whatever its size, until a write blocks. From then on the socket lets the
+ * writes through as fast as the link takes them, so the rate is measured over the writes
+ * after the first blocked one and the probe stops once it measured long enough. The round
+ * trip is estimated from the time the connect took, which is about five of them: tcp, the
+ * rtmp handshake, connect, createStream and publish.
+ */
+public class BandwidthProbe {
+    private static final String TAG = "BandwidthProbe";
+    // the tag type FlvMuxer sends the metadata with
+    private static final int TAG_TYPE_DATA = 0x16;
+    private static final int ROUND_TRIPS_OF_CONNECT = 5;
+    private static final int PADDING_BYTES = 8 * 1024;
+    private static final int MAX_PROBE_BYTES = 320 * 1024;
+    private static final long MAX_PROBE_DURATION_MS = 1000;
+    // a write which waited this long found the send buffer full
+    private static final long BLOCKED_WRITE_NS = 2000000;
+    // measured this long after the buffer filled up, the rate is known
+    private static final long MEASURE_DURATION_MS = 250;
+    // measured shorter than this, the rate is too rough to tell
+    private static final long MIN_MEASURE_DURATION_MS = 50;
+
+    public static class Result {
+        /**
+         * bits per second, or -1 if the send buffer never filled up and the link took all of
+         * the probe at once.
+         */
+        public final int throughputBps;
+        public final int rttMs;
+
+        Result(int throughputBps, int rttMs) {
+            this.throughputBps = throughputBps;
+            this.rttMs = rttMs;
+        }
+
+        @Override
+        public String toString() {
+            if (throughputBps < 0) {
+                return String.format("throughput beyond the probe, rtt %dms", rttMs);
+            }
+            return String.format("throughput %dkbps, rtt %dms", throughputBps / 1000, rttMs);
+        }
+    }
+
+    /**
+     * @param connectMs how long the connect to the server took.
+     * @return null if writing failed, the connection is then broken.
+     */
+    public static Result probe(FlvOutput output, long connectMs) {
+        byte[] padding = makePadding(PADDING_BYTES);
+        long startNs = System.nanoTime();
+        long blockedNs = -1;
+        int bytesAtBlock = 0;
+        int sentBytes = 0;
+        long nowNs = startNs;
+        while (sentBytes < MAX_PROBE_BYTES && nowNs - startNs < MAX_PROBE_DURATION_MS * 1000000) {
+            if (blockedNs >= 0 && nowNs - blockedNs >= MEASURE_DURATION_MS * 1000000) {
+                break;
+            }
+            long writeNs = nowNs;
+            if (output.writeTag(padding, padding.length, 0, TAG_TYPE_DATA) <= 0) {
+                Log.e(TAG, "Probe failed after " + sentBytes + " bytes");
+                return null;
+            }
+            sentBytes += padding.length;
+            nowNs = System.nanoTime();
+            if (blockedNs < 0 && nowNs - writeNs >= BLOCKED_WRITE_NS) {
+                // the buffer is full, the writes from now on go at the link rate
+                blockedNs = nowNs;
+                bytesAtBlock = sentBytes;
+            }
+        }
+
+        int rttMs = (int) (connectMs / ROUND_TRIPS_OF_CONNECT);
+        long measureMs = (nowNs - blockedNs) / 1000000;
+        if (blockedNs < 0 || measureMs < MIN_MEASURE_DURATION_MS) {
+            return new Result(-1, rttMs);
+        }
+        int throughputBps = (int) ((sentBytes - bytesAtBlock) * 8000L / measureMs);
+        return new Result(throughputBps, rttMs);
+    }
+
+    // an amf0 "onPadding" data message, players ignore it
+    private static byte[] makePadding(int size) {
+        byte[] name = "onPadding".getBytes();
+        byte[] data = new byte[size];
+        int i = 0;
+        data[i++] = 0x02;
+        data[i++] = (byte) (name.length >> 8);
+        data[i++] = (byte) name.length;
+        System.arraycopy(name, 0, data, i, name.length);
+        i += name.length;
+        int length = size - i - 5;
+        data[i++] = 0x0c;
+        data[i++] = (byte) (length >> 24);
+        data[i++] = (byte) (length >> 16);
+        data[i++] = (byte) (length >> 8);
+        data[i] = (byte) length;
+        return data;
+    }
+}
@@ -0,0 +1,129 @@
+package com.android.grafika.baidu.recorder.hw.rtmp;
+
+/**
+ * Estimates how much of what was written to the socket the link really took.
+ * <p>
+ * A write returns once the bytes are in the kernel send buffer, so counting the writes
+ * overestimates the uplink until the buffer is full. The estimate models the buffer as a
+ * bucket drained at the link rate, which is measured over the windows in which the writes
+ * were blocked for a good share of the time: the socket took then only as much as the link
+ * drained. A single slow write, e.g. the thread not scheduled for a moment, doesn't make one.
+ * The size of the buffer is worked out from the first time it filled up, and a blocked write
+ * fills the bucket to it.
+ * Not thread safe for the writes, the getters can be called from any thread.
+ */
+public class DeliveryEstimator {
+    // a write which waited this long found the send buffer full
+    private static final long BLOCKED_WRITE_NS = 2000000;
+    private static final long WINDOW_NS = 1000000000L;
+    // blocked this share of a window, the link limited what the socket took in it
+    private static final int LINK_LIMITED_BLOCKED_PERCENT = 25;
+
+    private long mSentBytes = 0;
+    private volatile long mInFlightBytes = 0;
+    private volatile long mDeliveredBytes = 0;
+    // bytes per second, -1 until a window measured it
+    private volatile long mLinkRate = -1;
+    private long mLastDrainNs = -1;
+    private long mWindowStartNs = -1;
+    private long mWindowBytes = 0;
+    private long mWindowBlockedNs = 0;
+    // -1 until the buffer filled up once and the link rate is known
+    private long mBufferBytes = -1;
+    private long mFirstWriteNs = -1;
+    private long mFirstBlockNs = -1;
+    private long mBytesAtFirstBlock = 0;
+
+    /**
+     * a write of bytes which started at startNs and returned at endNs, System.nanoTime().
+     */
+    public void onWrite(int bytes, long startNs, long endNs) {
+        drain(startNs);
+        mInFlightBytes += bytes;
+        drain(endNs);
+        mSentBytes += bytes;
+
+        if (mFirstWriteNs < 0) {
+            mFirstWriteNs = startNs;
+        }
+        if (mWindowStartNs < 0) {
+            mWindowStartNs = startNs;
+        }
+        mWindowBytes += bytes;
+        if (endNs - startNs >= BLOCKED_WRITE_NS) {
+            mWindowBlockedNs += endNs - startNs;
+            if (mFirstBlockNs < 0) {
+                mFirstBlockNs = endNs;
+                mBytesAtFirstBlock = mSentBytes;
+            }
+            if (mBufferBytes >= 0) {
+                // the write returned as soon as its last byte fitted in, the buffer is full
+                mInFlightBytes = mBufferBytes;
+            }
+        }
+        long windowNs = endNs - mWindowStartNs;
+        if (windowNs >= WINDOW_NS) {
+            long rate = mWindowBytes * 1000000000L / windowNs;
+            boolean isLinkLimited =
+                    mWindowBlockedNs * 100 >= windowNs * LINK_LIMITED_BLOCKED_PERCENT;
+            // not limited, the link took at least that but maybe the buffer got it
+            if (isLinkLimited || rate > mLinkRate) {
+                mLinkRate = rate;
+            }
+            // a window which started full tells the link rate, the first one filled up in it
+            if (isLinkLimited && mBufferBytes < 0 && mFirstBlockNs >= 0
+                    && mWindowStartNs >= mFirstBlockNs) {
+                // the link was busy since the first write, the rest of it filled the buffer
+                long linkBytes = (mFirstBlockNs - mFirstWriteNs) * rate / 1000000000L;
+                mBufferBytes = Math.max(0, mBytesAtFirstBlock - linkBytes);
+            }
+            mWindowStartNs = endNs;
+            mWindowBytes = 0;
+            mWindowBlockedNs = 0;
+        }
+        mDeliveredBytes = mSentBytes - mInFlightBytes;
+    }
+
+    private void drain(long nowNs) {
+        if (mLinkRate < 0) {
+            // never saw the buffer full, the link kept up
+            mInFlightBytes = 0;
+        } else if (mLastDrainNs >= 0 && nowNs > mLastDrainNs) {
+            long drained = (nowNs - mLastDrainNs) * mLinkRate / 1000000000L;
+            mInFlightBytes = Math.max(0, mInFlightBytes - drained);
+        }
+        mLastDrainNs = nowNs;
+    }
+
+    /**
+     * forgets the bytes in flight, they went with a broken connection.
+     */
+    public void reset() {
+        mSentBytes = mDeliveredBytes;
+        mInFlightBytes = 0;
+        mFirstWriteNs = -1;
+        mFirstBlockNs = -1;
+        mWindowStartNs = -1;
+        mWindowBytes = 0;
+        mWindowBlockedNs = 0;
+    }
+
+    public long getDeliveredBytes() {
+        return mDeliveredBytes;
+    }
+
+    /**
+     * the bytes written but estimated still in the send buffer.
+     */
+    public long getInFlightBytes() {
+        return mInFlightBytes;
+    }
+
+    /**
+     * bits per second, -1 until measured.
+     */
+    public int getLinkRateBps() {
+        long rate = mLinkRate;
+        return rate < 0 ? -1 : (int) (rate * 8);
+    }
+}
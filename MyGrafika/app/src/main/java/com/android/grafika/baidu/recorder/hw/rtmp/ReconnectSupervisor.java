@@ -0,0 +1,131 @@
+package com.android.grafika.baidu.recorder.hw.rtmp;
+
+import java.util.Random;
+
+import android.util.Log;
+
+/**
+ * Brings the rtmp connection back after it broke while streaming, the capture and the
+ * encoders keep running meanwhile.
+ * <p>
+ * The retries back off exponentially from 500ms up to 30s, each delay picked between half
+ * and all of the backoff so that clients which lost the server together don't come back
+ * together.
+ */
+public class ReconnectSupervisor {
+    private static final String TAG = "ReconnectSupervisor";
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30 * 1000;
+    private static final int DEFAULT_MAX_RETRIES = 20;
+
+    public interface Callback {
+        /**
+         * about to try connecting again, retryCount counts from 1.
+         */
+        void onReconnecting(int retryCount);
+
+        void onReconnected(long outageMs, int retryCount);
+
+        /**
+         * the retries were used up, errorCode is the error which broke the connection.
+         */
+        void onGaveUp(int errorCode, int retryCount);
+    }
+
+    private final RtmpSocket mSocket;
+    private final String mUrl;
+    private final Callback mCallback;
+    private final Random mRandom = new Random();
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private Thread mThread = null;
+    private volatile boolean isReleased = false;
+
+    public ReconnectSupervisor(RtmpSocket socket, String url, Callback callback) {
+        mSocket = socket;
+        mUrl = url;
+        mCallback = callback;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * starts reconnecting unless it already is.
+     * @param errorCode why the connection broke, a SessionStateListener error code.
+     */
+    public synchronized void onConnectionLost(final int errorCode) {
+        if (isReleased || mThread != null) {
+            return;
+        }
+        Log.w(TAG, "Connection lost, error " + errorCode + ", reconnecting");
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reconnect(errorCode);
+                synchronized (ReconnectSupervisor.this) {
+                    mThread = null;
+                }
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public synchronized boolean isReconnecting() {
+        return mThread != null;
+    }
+
+    private void reconnect(int errorCode) {
+        long lostTimeMs = System.currentTimeMillis();
+        long backoffMs = MIN_BACKOFF_MS;
+        int retryCount = 0;
+        while (!isReleased) {
+            if (retryCount >= mMaxRetries) {
+                Log.e(TAG, String.format("Gave up after %d retries in %dms",
+                        retryCount, System.currentTimeMillis() - lostTimeMs));
+                mCallback.onGaveUp(errorCode, retryCount);
+                return;
+            }
+            long delayMs = backoffMs / 2 + (long) (mRandom.nextDouble() * backoffMs / 2);
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (isReleased) {
+                return;
+            }
+
+            retryCount++;
+            mCallback.onReconnecting(retryCount);
+            int ret = mSocket.reconnect(mUrl);
+            if (ret >= 0) {
+                long outageMs = System.currentTimeMillis() - lostTimeMs;
+                Log.i(TAG, String.format("Reconnected after %d retries, outage %dms", retryCount, outageMs));
+                mCallback.onReconnected(outageMs, retryCount);
+                return;
+            }
+            Log.w(TAG, String.format("Retry %d failed with %d", retryCount, ret));
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    /**
+     * stops reconnecting, waits for a connect in progress to return.
+     */
+    public void release() {
+        isReleased = true;
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Log.i(TAG, "join reconnect thread failed.");
+            }
+        }
+    }
+}
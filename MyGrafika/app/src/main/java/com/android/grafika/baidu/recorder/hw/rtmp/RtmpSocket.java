@@ -1,22 +1,65 @@
 package com.android.grafika.baidu.recorder.hw.rtmp;
 
+import com.android.grafika.baidu.recorder.hw.muxer.FlvOutput;
 import com.android.grafika.baidu.recorder.jni.RtmpHelperJNI;
 
 import android.util.Log;
 
-public class RtmpSocket {
+/**
+ * The rtmp connection of a session.
+ * <p>
+ * librtmp_jni keeps a single connection for the whole process behind its static methods, so
+ * the socket made first owns it until released, and making another one meanwhile fails
+ * instead of silently taking the connection over. The calls into the native side are
+ * serialized, and the stats are kept per socket.
+ */
+public class RtmpSocket implements FlvOutput {
     private static final String TAG = "RtmpSocket";
-    private boolean isConnected = false;
+    private static final int ERROR_NOT_OWNER = -1;
+    private static final Object sNativeLock = new Object();
+    private static RtmpSocket sOwner = null;
+    // the default of the protocol, a key frame would go out in hundreds of chunks
+    private static final int DEFAULT_CHUNK_SIZE = 128;
+    // what SRS sends with itself
+    private static final int OUT_CHUNK_SIZE = 60000;
+    // the full header of the first chunk of a message, the ones after it take 1 byte
+    private static final int FIRST_CHUNK_HEADER_BYTES = 12;
+    private static final long MAX_TIMESTAMP = 0xffffff;
+
+    private volatile boolean isConnected = false;
     private RtmpConnectedListener mListener = null;
-
+    private volatile long mSentBytes = 0;
+    private volatile long mSentTags = 0;
+    private volatile long mFailedSends = 0;
+    private volatile int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile long mFramingBytes = 0;
+    private volatile long mChunks = 0;
+
+    /**
+     * @throws IllegalStateException if another socket holds the connection.
+     */
     public RtmpSocket() {
-        RtmpHelperJNI.setup();
+        synchronized (sNativeLock) {
+            if (sOwner != null) {
+                throw new IllegalStateException("the rtmp connection is used by another RtmpSocket");
+            }
+            sOwner = this;
+            RtmpHelperJNI.setup();
+        }
         isConnected = false;
         mListener = null;
     }
 
+    /**
+     * closes the connection and gives it up for another socket, can be called again.
+     */
     public void release() {
-        RtmpHelperJNI.release();
+        synchronized (sNativeLock) {
+            if (sOwner == this) {
+                RtmpHelperJNI.release();
+                sOwner = null;
+            }
+        }
         isConnected = false;
         mListener = null;
     }
@@ -29,9 +72,8 @@ public class RtmpSocket {
         new Thread(new Runnable(){
             @Override
             public void run() {
-                int ret = RtmpHelperJNI.connect(target_url);
+                int ret = connect(target_url);
                 if (ret >= 0) {
-                    isConnected = true;
                     if (mListener != null)
                         mListener.onConnected();
                 }
@@ -40,47 +82,169 @@ public class RtmpSocket {
     }
 
     public int connect(final String target_url) {
-        int ret = RtmpHelperJNI.connect(target_url);
+        int ret;
+        synchronized (sNativeLock) {
+            if (sOwner != this) {
+                return ERROR_NOT_OWNER;
+            }
+            mChunkSize = DEFAULT_CHUNK_SIZE;
+            ret = RtmpHelperJNI.connect(target_url);
+            if (ret >= 0) {
+                negotiateChunkSize();
+            }
+        }
         if (ret >= 0) {
             isConnected = true;
         }
         return ret;
     }
 
+    // the server takes the chunk size we announce, it's the same for all our messages
+    private void negotiateChunkSize() {
+        int ret = RtmpHelperJNI.setChunkSize(OUT_CHUNK_SIZE);
+        if (ret < 0) {
+            Log.w(TAG, "Set chunk size failed with " + ret + ", send in chunks of " + mChunkSize);
+            return;
+        }
+        mChunkSize = OUT_CHUNK_SIZE;
+    }
+
+    /**
+     * drops the broken connection and connects again, nothing must be sent meanwhile.
+     */
+    public int reconnect(final String target_url) {
+        isConnected = false;
+        synchronized (sNativeLock) {
+            if (sOwner != this) {
+                return ERROR_NOT_OWNER;
+            }
+            RtmpHelperJNI.release();
+            RtmpHelperJNI.setup();
+        }
+        return connect(target_url);
+    }
+
+    @Override
     public boolean isConnected() {
         return isConnected;
     }
 
     public int sendAVCSPSnPPS(byte[] sps, int sps_len, byte[] pps, int pps_len, long pts) {
-        return RtmpHelperJNI.sendAVCSPSnPPS(sps, sps_len, pps, pps_len, pts);
+        synchronized (sNativeLock) {
+            if (sOwner != this) {
+                return ERROR_NOT_OWNER;
+            }
+            return RtmpHelperJNI.sendAVCSPSnPPS(sps, sps_len, pps, pps_len, pts);
+        }
     }
 
     public int sendVideoPacket(byte[] buf, int len, long pts) {
-        return RtmpHelperJNI.sendVideoPacket(buf, len, pts);
+        synchronized (sNativeLock) {
+            if (sOwner != this) {
+                return ERROR_NOT_OWNER;
+            }
+            return RtmpHelperJNI.sendVideoPacket(buf, len, pts);
+        }
     }
 
     public int sendAACSpec(byte[] spec, int len, long pts) {
-        return RtmpHelperJNI.sendAACSpec(spec, len, pts);
+        synchronized (sNativeLock) {
+            if (sOwner != this) {
+                return ERROR_NOT_OWNER;
+            }
+            return RtmpHelperJNI.sendAACSpec(spec, len, pts);
+        }
     }
 
     public int sendAudioPacket(byte[] buf, int len, long pts) {
-        return RtmpHelperJNI.sendAudioPacket(buf, len, pts);
+        synchronized (sNativeLock) {
+            if (sOwner != this) {
+                return ERROR_NOT_OWNER;
+            }
+            return RtmpHelperJNI.sendAudioPacket(buf, len, pts);
+        }
     }
 
     public int sendRTMPPacket(byte[] buf, int len, long pts, int frame_type) {
-        int ret = RtmpHelperJNI.sendRTMPPacket(buf, len, pts, frame_type);
+        int ret;
+        synchronized (sNativeLock) {
+            ret = sOwner == this ? RtmpHelperJNI.sendRTMPPacket(buf, len, pts, frame_type) : ERROR_NOT_OWNER;
+            if (ret > 0) {
+                int chunks = (len + mChunkSize - 1) / mChunkSize;
+                mFramingBytes += FIRST_CHUNK_HEADER_BYTES + chunks - 1 + (pts >= MAX_TIMESTAMP ? 4 * chunks : 0);
+                mChunks += chunks;
+                mSentBytes += len;
+                mSentTags++;
+            } else {
+                mFailedSends++;
+            }
+        }
         if (ret <= 0) {
             Log.i(TAG, "Streaming failed with result: "+ret);
+            // a message may be half written, the connection can't be used any more
+            isConnected = false;
         }
         return ret;
     }
 
+    @Override
+    public int writeTag(byte[] buf, int len, long dts, int type) {
+        return sendRTMPPacket(buf, len, dts, type);
+    }
+
     public int writeRTMPPacket(byte[] buf, int len) {
-        return RtmpHelperJNI.writeRTMPPacket(buf, len);
+        synchronized (sNativeLock) {
+            if (sOwner != this) {
+                return ERROR_NOT_OWNER;
+            }
+            return RtmpHelperJNI.writeRTMPPacket(buf, len);
+        }
     }
 
     public int setChunkSize(int size) {
-        return RtmpHelperJNI.setChunkSize(size);
+        synchronized (sNativeLock) {
+            if (sOwner != this) {
+                return ERROR_NOT_OWNER;
+            }
+            int ret = RtmpHelperJNI.setChunkSize(size);
+            if (ret >= 0) {
+                mChunkSize = size;
+            }
+            return ret;
+        }
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * the chunk headers sent around the tags, counted from the chunk size.
+     */
+    public long getFramingBytes() {
+        return mFramingBytes;
+    }
+
+    /**
+     * the chunks sent, librtmp writes each with a send of its own over tcp.
+     */
+    public long getChunks() {
+        return mChunks;
+    }
+
+    /**
+     * the flv tag bytes this socket sent, without the rtmp framing.
+     */
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    public long getSentTags() {
+        return mSentTags;
+    }
+
+    public long getFailedSends() {
+        return mFailedSends;
     }
 
 }
@@ -0,0 +1,77 @@
+package com.android.grafika.baidu.recorder.sw.controller;
+
+/**
+ * Gathers the pcm read from the mic into blocks of one AAC frame, so that the recorder is
+ * called once per encoder frame whatever size AudioRecord.read returns.
+ * <p>
+ * The timestamp of a block is counted from the samples sent before it, anchored to the capture
+ * time of the first sample. A read which returns late, e.g. after a GC pause, lost nothing as
+ * long as the AudioRecord buffer held the samples meanwhile, so the count goes on. Only when a
+ * read starts later than the buffer could have covered, e.g. after audio was paused, samples
+ * were lost and the anchor is moved; the partly filled block is kept either way.
+ */
+public class AudioBatcher {
+    public static final int SAMPLES_PER_FRAME = 1024;
+
+    private final int mSampleRate;
+    // bytes of one sample of all channels
+    private final int mFrameBytes;
+    private final byte[] mBlock;
+    // a read starting later than this after the expected time means the buffer overran
+    private final long mMaxGapUs;
+    private int mBlockFill = 0;
+    private long mBaseTimestamp = -1;
+    private long mSamplesSent = 0;
+
+    /**
+     * @param bufferBytes the size of the AudioRecord buffer.
+     */
+    public AudioBatcher(int sampleRate, int channels, int bytesPerSample, int bufferBytes) {
+        mSampleRate = sampleRate;
+        mFrameBytes = channels * bytesPerSample;
+        mBlock = new byte[SAMPLES_PER_FRAME * mFrameBytes];
+        mMaxGapUs = samplesToUs(bufferBytes / mFrameBytes);
+    }
+
+    /**
+     * adds length bytes of pcm, read at timestamp (in us), and hands every completed block to recorder.
+     */
+    public void feed(IRecorder recorder, byte[] pcm, int length, long timestamp) {
+        // the read returns once the last sample is in, the first one was captured before that
+        long chunkStart = timestamp - samplesToUs(length / mFrameBytes);
+        long expected = mBaseTimestamp + samplesToUs(mSamplesSent + mBlockFill / mFrameBytes);
+        if (mBaseTimestamp < 0 || chunkStart - expected > mMaxGapUs) {
+            // the block goes on with the new samples, it ends right before them
+            mBaseTimestamp = chunkStart - samplesToUs(mBlockFill / mFrameBytes);
+            mSamplesSent = 0;
+        }
+
+        int offset = 0;
+        while (offset < length) {
+            int count = Math.min(length - offset, mBlock.length - mBlockFill);
+            System.arraycopy(pcm, offset, mBlock, mBlockFill, count);
+            mBlockFill += count;
+            offset += count;
+            if (mBlockFill == mBlock.length) {
+                if (recorder != null) {
+                    recorder.feedingAudioFrame(mBlock, mBlock.length, mBaseTimestamp + samplesToUs(mSamplesSent));
+                }
+                mSamplesSent += SAMPLES_PER_FRAME;
+                mBlockFill = 0;
+            }
+        }
+    }
+
+    /**
+     * drops the partly filled block and the time anchor.
+     */
+    public void reset() {
+        mBlockFill = 0;
+        mBaseTimestamp = -1;
+        mSamplesSent = 0;
+    }
+
+    private long samplesToUs(long samples) {
+        return samples * 1000000L / mSampleRate;
+    }
+}
@@ -11,6 +11,8 @@ import android.util.Log;
 public class AudioRecordDevice extends RecordDevices {
 
     private static final String TAG = "AudioRecordDevice";
+    // AAC frames read from the mic at a time, each read wakes the thread and feeds that many frames
+    private static final int AAC_FRAMES_PER_READ = 4;
     private AudioRecord audioRecord = null;
     private boolean isRunning = false;
     private Thread thread = null;
@@ -18,6 +20,7 @@ public class AudioRecordDevice extends RecordDevices {
     private IRecorder mRecorder = null;
     private AudioParams audioParams = null;
     private boolean isSendingAudio = true;
+    private AudioBatcher mBatcher = null;
 
     public void setBRecorder(IRecorder recorder) {
         mRecorder = recorder;
@@ -46,8 +49,11 @@ public class AudioRecordDevice extends RecordDevices {
             if (audioParams.getChannelConfig() == AudioFormat.CHANNEL_IN_MONO) {
                 audioParams.setnChannels(1);
             }
-            int bufferSizeInBytes = AudioRecord.getMinBufferSize(audioParams.getSampleRateInHz(),
-                    audioParams.getChannelConfig(), audioParams.getAudioFormat());
+            int readBytes = AAC_FRAMES_PER_READ * AudioBatcher.SAMPLES_PER_FRAME * audioParams.getnChannels()
+                    * bSamples / 8;
+            // room for two reads, so the mic fills one while the other is read
+            int bufferSizeInBytes = Math.max(2 * readBytes, AudioRecord.getMinBufferSize(
+                    audioParams.getSampleRateInHz(), audioParams.getChannelConfig(), audioParams.getAudioFormat()));
 
             AudioRecord audioRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC, audioParams.getSampleRateInHz(),
                     audioParams.getChannelConfig(), audioParams.getAudioFormat(), bufferSizeInBytes);
@@ -57,7 +63,9 @@ public class AudioRecordDevice extends RecordDevices {
             }
 
             this.audioRecord = audioRecorder;
-            bufferLength = 4096; // bufferSizeInBytes;
+            bufferLength = readBytes;
+            mBatcher = new AudioBatcher(audioParams.getSampleRateInHz(), audioParams.getnChannels(), bSamples / 8,
+                    bufferSizeInBytes);
             Log.i(TAG, String.format("[audioRecord] mic open rate=%dHZ, channels=%d, bits=%d,buffer:%d, state=%d",
                     sampleRateInHz, audioParams.getnChannels(), bSamples, bufferSizeInBytes, audioRecorder.getState()));
             break;
@@ -129,6 +137,8 @@ public class AudioRecordDevice extends RecordDevices {
     Runnable audioRunnable = new Runnable() {
         @Override
         public void run() {
+            // the batcher copies what it needs, so one read buffer is enough
+            byte[] tmp = new byte[bufferLength];
             while (isRunning) {
                 if (!isSendingAudio) {
                     try {
@@ -136,7 +146,6 @@ public class AudioRecordDevice extends RecordDevices {
                     } catch (Exception e) {}
                     continue;
                 }
-                byte[] tmp = new byte[bufferLength];
                 // int size = audioRecord.read(abuffer,0,abuffer.length);
 
                 int size = audioRecord.read(tmp, 0, bufferLength);
@@ -146,10 +155,10 @@ public class AudioRecordDevice extends RecordDevices {
                 }
 
                 long timestamp = System.nanoTime() / 1000;
-                if (mRecorder != null) {
-                    mRecorder.feedingAudioFrame(tmp, size, timestamp);
-                }
+                // one call per AAC frame instead of one per read
+                mBatcher.feed(mRecorder, tmp, size, timestamp);
             }
+            mBatcher.reset();
 
             if (mRecorder != null) {
                 mRecorder.setStartTime(0);
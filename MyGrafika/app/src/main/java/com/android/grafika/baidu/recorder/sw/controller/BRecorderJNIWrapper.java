@@ -2,7 +2,6 @@ package com.android.grafika.baidu.recorder.sw.controller;
 
 import com.android.grafika.baidu.recorder.api.SessionStateListener;
 import com.android.grafika.baidu.recorder.jni.BRecorderJNI;
-import com.android.grafika.baidu.recorder.util.VideoUtil;
 
 public class BRecorderJNIWrapper implements IRecorder {
 
@@ -10,16 +9,11 @@ public class BRecorderJNIWrapper implements IRecorder {
     private boolean useAudio = true;
     private long recorderStartTime; // 推流开始时间
     private boolean isRecording = false;
-    private VideoUtil mVideoUtil = null;
 
     public BRecorderJNIWrapper() {
         recorder = new BRecorderJNI();
     }
 
-    public void setVideoUtil(VideoUtil vu) {
-        mVideoUtil = vu;
-    }
-
     @Override
     public int open(String url) {
         int ret = -1;
@@ -55,17 +49,14 @@ public class BRecorderJNIWrapper implements IRecorder {
         recorderStartTime = 0;
     }
 
-    byte[] tmpBufer = null;
-
+    /**
+     * pData must already be prepared by VideoUtil.dealVideoFrame, it is handed to the encoder as it is.
+     */
     @Override
     public int feedingVideoFrame(byte[] pData, long numBytes, long timestamp) {
         if (recorder != null) {
             if (getStartTime() > 0) {
-                tmpBufer = pData;
-                if (mVideoUtil != null) {
-                    tmpBufer = mVideoUtil.dealVideoFrame(pData);
-                }
-                return recorder.supplyVideoFrame(tmpBufer, numBytes, timestamp - getStartTime());
+                return recorder.supplyVideoFrame(pData, numBytes, timestamp - getStartTime());
             }
         }
         return -1;
@@ -83,7 +74,8 @@ public class BRecorderJNIWrapper implements IRecorder {
     }
 
     @Override
-    public void setVideoParams(int fmt, int width, int height, long bitrate) {
+    public void setVideoParams(int fmt, int width, int height, int fps, long bitrate) {
+        // the native recorder takes its frame rate from the timestamps
         if (recorder != null) {
             recorder.setVideoOptions(fmt, width, height, bitrate);
         }
@@ -16,7 +16,7 @@ public interface IRecorder {
 
     public int feedingAudioFrame(byte[] samples, long numSamples, long timestamp);
 
-    public void setVideoParams(int fmt, int width, int height, long bitrate);
+    public void setVideoParams(int fmt, int width, int height, int fps, long bitrate);
 
     public void setAudioParams(int fmt, int channels, long samplerate, long bitrate);
 
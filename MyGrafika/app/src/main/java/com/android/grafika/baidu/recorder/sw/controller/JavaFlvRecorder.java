@@ -0,0 +1,418 @@
+package com.android.grafika.baidu.recorder.sw.controller;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.android.grafika.baidu.recorder.api.SessionStateListener;
+import com.android.grafika.baidu.recorder.hw.muxer.FlvOutput;
+import com.android.grafika.baidu.recorder.hw.muxer.FlvTagWriter;
+
+/**
+ * An IRecorder without native code: raw frames are timestamped, queued and "encoded" by a stub
+ * codec on a worker thread, then muxed by a FlvTagWriter and written to the given output on that
+ * thread. No android classes are used, so it runs on a desktop JVM too.
+ * <p>
+ * The stub codec emits annexb access units (sps/pps/idr every key interval, a single slice
+ * otherwise) and raw AAC frames whose sizes follow the configured bitrates, so that the
+ * capture, queueing, muxing and sending behave like with a real encoder, e.g. to load test
+ * LiveSessionSW with recorded YUV/PCM on a machine without the native recorder.
+ */
+public class JavaFlvRecorder implements IRecorder {
+    private static final int NUM_VIDEO_SLOTS = 4;
+    private static final int NUM_AUDIO_SLOTS = 8;
+    private static final long KEY_FRAME_INTERVAL_US = 2 * 1000 * 1000;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+    private static final int UPLOAD_BANDWIDTH_REPORT_INTERVAL_IN_MS = 2000;
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    // baseline profile, level 3.1
+    private static final byte[] STUB_SPS = {0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    private static final byte[] STUB_PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    private static final byte NALU_IDR = 0x65;
+    private static final byte NALU_NON_IDR = 0x41;
+
+    private final FlvOutput mOutput;
+    private FlvTagWriter mTagWriter = null;
+    private SessionStateListener mStateListener = null;
+
+    private int mWidth;
+    private int mHeight;
+    private int mFrameRate;
+    private long mVideoBitrate;
+    private int mChannels;
+    private int mSampleRate;
+    private long mAudioBitrate;
+    private boolean useAudio = true;
+    private long recorderStartTime = 0;
+
+    /**
+     * a raw frame waiting for the encoder thread.
+     */
+    private static class RawFrame {
+        public final boolean isVideo;
+        public byte[] data = new byte[0];
+        public int size;
+        public long timestamp;
+
+        public RawFrame(boolean isVideo) {
+            this.isVideo = isVideo;
+        }
+    }
+
+    private final ArrayBlockingQueue<RawFrame> mFreeVideoFrames = new ArrayBlockingQueue<RawFrame>(NUM_VIDEO_SLOTS);
+    private final ArrayBlockingQueue<RawFrame> mFreeAudioFrames = new ArrayBlockingQueue<RawFrame>(NUM_AUDIO_SLOTS);
+    private final ArrayBlockingQueue<RawFrame> mPendingFrames =
+            new ArrayBlockingQueue<RawFrame>(NUM_VIDEO_SLOTS + NUM_AUDIO_SLOTS);
+    private Thread mEncoderThread = null;
+    private volatile boolean isRecording = false;
+    // a feeder past the isRecording check must not queue a frame after close() drained the queue
+    private final Object mFeedLock = new Object();
+
+    private final AtomicLong mEncodedVideoFrames = new AtomicLong();
+    private final AtomicLong mEncodedAudioFrames = new AtomicLong();
+    private final AtomicLong mDroppedVideoFrames = new AtomicLong();
+    private final AtomicLong mDroppedAudioFrames = new AtomicLong();
+    private final AtomicLong mEncodedBytes = new AtomicLong();
+    private volatile double mUploadBandwidthKbps = 0;
+
+    // touched by the encoder thread only
+    private byte[] mAccessUnit = new byte[0];
+    private final FlvTagWriter.SampleInfo mSampleInfo = new FlvTagWriter.SampleInfo();
+    // the tags are written before the next one is muxed, one buffer does for all of them
+    private ByteBuffer mTagBuffer = ByteBuffer.allocate(0);
+    private long mLastKeyFrameTime = -1;
+    private long mLastVideoTime = -1;
+    private boolean isOutputBroken = false;
+    private long mWrittenBytes = 0;
+    private long mLastReportedBytes = 0;
+    private long mLastReportedTime = 0;
+
+    public JavaFlvRecorder(FlvOutput output) {
+        mOutput = output;
+        for (int i = 0; i < NUM_VIDEO_SLOTS; i++) {
+            mFreeVideoFrames.add(new RawFrame(true));
+        }
+        for (int i = 0; i < NUM_AUDIO_SLOTS; i++) {
+            mFreeAudioFrames.add(new RawFrame(false));
+        }
+    }
+
+    /**
+     * the stream goes to the output given to the constructor, url is only logged.
+     */
+    @Override
+    public int open(String url) {
+        if (mOutput == null || !mOutput.isConnected()) {
+            return -1;
+        }
+        mTagWriter = new FlvTagWriter(mTagSink);
+        mTagWriter.setAudioParams(mChannels, mSampleRate);
+        mLastKeyFrameTime = -1;
+        mLastVideoTime = -1;
+        isOutputBroken = false;
+        mWrittenBytes = 0;
+        mLastReportedBytes = 0;
+        mLastReportedTime = System.currentTimeMillis();
+        mUploadBandwidthKbps = 0;
+
+        // the data rates in kbps, like the hw session sends them
+        ByteBuffer metadata = mTagWriter.makeMetaData(mWidth, mHeight, mFrameRate, mVideoBitrate / 1000, mSampleRate,
+                mAudioBitrate / 1000);
+        writeTag(FlvTagWriter.TAG_METADATA, 0, metadata, metadata.limit());
+        if (isOutputBroken) {
+            return -1;
+        }
+
+        isRecording = true;
+        mEncoderThread = new Thread(mEncoderLoop, "StubEncoder");
+        mEncoderThread.start();
+        return 0;
+    }
+
+    @Override
+    public void useAudio(boolean hasAudio) {
+        useAudio = hasAudio;
+    }
+
+    @Override
+    public int close() {
+        synchronized (mFeedLock) {
+            if (!isRecording) {
+                return -1;
+            }
+            isRecording = false;
+        }
+        mEncoderThread.interrupt();
+        try {
+            mEncoderThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mEncoderThread = null;
+        RawFrame frame;
+        while ((frame = mPendingFrames.poll()) != null) {
+            recycle(frame);
+        }
+        mTagWriter = null;
+        mUploadBandwidthKbps = 0;
+        return 0;
+    }
+
+    @Override
+    public void release() {
+        close();
+        recorderStartTime = 0;
+    }
+
+    @Override
+    public int feedingVideoFrame(byte[] pData, long numBytes, long timestamp) {
+        if (!isRecording || getStartTime() <= 0) {
+            return -1;
+        }
+        return enqueue(mFreeVideoFrames, mDroppedVideoFrames, pData, (int) numBytes, timestamp - getStartTime());
+    }
+
+    @Override
+    public int feedingAudioFrame(byte[] samples, long numSamples, long timestamp) {
+        if (!isRecording || !useAudio) {
+            return -1;
+        }
+        if (getStartTime() == 0) {
+            setStartTime(timestamp);
+        }
+        return enqueue(mFreeAudioFrames, mDroppedAudioFrames, samples, (int) numSamples, timestamp - getStartTime());
+    }
+
+    /**
+     * copies the frame into a free slot, the frame is dropped when the encoder has not freed any.
+     */
+    private int enqueue(ArrayBlockingQueue<RawFrame> free, AtomicLong dropped, byte[] data, int size, long pts) {
+        synchronized (mFeedLock) {
+            if (!isRecording) {
+                return -1;
+            }
+            RawFrame frame = free.poll();
+            if (frame == null) {
+                dropped.incrementAndGet();
+                return -1;
+            }
+            if (frame.data.length < size) {
+                frame.data = new byte[size];
+            }
+            System.arraycopy(data, 0, frame.data, 0, size);
+            frame.size = size;
+            frame.timestamp = pts;
+            mPendingFrames.add(frame);
+            return size;
+        }
+    }
+
+    private void recycle(RawFrame frame) {
+        if (frame.isVideo) {
+            mFreeVideoFrames.add(frame);
+        } else {
+            mFreeAudioFrames.add(frame);
+        }
+    }
+
+    private Runnable mEncoderLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (isRecording) {
+                RawFrame frame;
+                try {
+                    frame = mPendingFrames.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    if (frame.isVideo) {
+                        encodeVideo(frame);
+                    } else {
+                        encodeAudio(frame);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    recycle(frame);
+                }
+            }
+        }
+    };
+
+    private void encodeVideo(RawFrame frame) throws Exception {
+        boolean isKeyFrame = mLastKeyFrameTime < 0 || frame.timestamp - mLastKeyFrameTime >= KEY_FRAME_INTERVAL_US;
+        long duration = mLastVideoTime < 0 ? 40 * 1000 : Math.max(0, frame.timestamp - mLastVideoTime);
+        mLastVideoTime = frame.timestamp;
+        // a key frame takes the share of a few frames, like a real encoder would
+        int payload = (int) Math.max(16, mVideoBitrate / 8 * duration / 1000000 * (isKeyFrame ? 4 : 1));
+
+        int size = (isKeyFrame ? 3 * START_CODE.length + STUB_SPS.length + STUB_PPS.length : START_CODE.length)
+                + 1 + payload;
+        ensureAccessUnit(size);
+        int pos = 0;
+        if (isKeyFrame) {
+            pos = putNalu(pos, STUB_SPS);
+            pos = putNalu(pos, STUB_PPS);
+            mLastKeyFrameTime = frame.timestamp;
+        }
+        System.arraycopy(START_CODE, 0, mAccessUnit, pos, START_CODE.length);
+        pos += START_CODE.length;
+        mAccessUnit[pos++] = isKeyFrame ? NALU_IDR : NALU_NON_IDR;
+        pos = putPayload(pos, frame, payload);
+
+        mSampleInfo.set(pos, frame.timestamp);
+        mTagWriter.writeVideoSample(ByteBuffer.wrap(mAccessUnit, 0, pos), mSampleInfo);
+        mEncodedVideoFrames.incrementAndGet();
+        mEncodedBytes.addAndGet(pos);
+    }
+
+    private void encodeAudio(RawFrame frame) throws Exception {
+        int payload = (int) Math.max(8, mAudioBitrate / 8 * AAC_SAMPLES_PER_FRAME / Math.max(1, mSampleRate));
+        ensureAccessUnit(payload);
+        int size = putPayload(0, frame, payload);
+
+        mSampleInfo.set(size, frame.timestamp);
+        mTagWriter.writeAudioSample(ByteBuffer.wrap(mAccessUnit, 0, size), mSampleInfo);
+        mEncodedAudioFrames.incrementAndGet();
+        mEncodedBytes.addAndGet(size);
+    }
+
+    private FlvTagWriter.TagSink mTagSink = new FlvTagWriter.TagSink() {
+        @Override
+        public ByteBuffer obtainTagBuffer(int size) {
+            if (mTagBuffer.capacity() < size) {
+                mTagBuffer = ByteBuffer.allocate(size + size / 4);
+            }
+            mTagBuffer.clear();
+            return mTagBuffer;
+        }
+
+        @Override
+        public void onTag(int type, int dts, int frameType, int packetType, ByteBuffer tag, int size,
+                          boolean pooled) {
+            writeTag(type, dts, tag, size);
+        }
+    };
+
+    /**
+     * writes the tag to the output, the first failure is reported and the rest are dropped.
+     */
+    private void writeTag(int type, int dts, ByteBuffer tag, int size) {
+        if (isOutputBroken) {
+            return;
+        }
+        int ret = mOutput.writeTag(tag.array(), size, dts, type);
+        if (ret <= 0) {
+            isOutputBroken = true;
+            if (mStateListener != null) {
+                mStateListener.onSessionError(toSessionError(ret));
+            }
+            return;
+        }
+        mWrittenBytes += size;
+        long now = System.currentTimeMillis();
+        if (now - mLastReportedTime >= UPLOAD_BANDWIDTH_REPORT_INTERVAL_IN_MS) {
+            mUploadBandwidthKbps = (mWrittenBytes - mLastReportedBytes) * 8.0 / (now - mLastReportedTime);
+            mLastReportedBytes = mWrittenBytes;
+            mLastReportedTime = now;
+        }
+    }
+
+    private static int toSessionError(int err) {
+        switch (err) {
+            case SessionStateListener.ERROR_CODE_OF_PACKET_REFUSED_BY_SERVER:
+            case SessionStateListener.ERROR_CODE_OF_WEAK_CONNECTION:
+            case SessionStateListener.ERROR_CODE_OF_SERVER_INTERNAL_ERROR:
+            case SessionStateListener.ERROR_CODE_OF_CONNECTION_TIMEOUT:
+                return err;
+            default:
+                return SessionStateListener.ERROR_CODE_OF_UNKNOWN_STREAMING_ERROR;
+        }
+    }
+
+    private void ensureAccessUnit(int size) {
+        if (mAccessUnit.length < size) {
+            mAccessUnit = new byte[size];
+        }
+    }
+
+    private int putNalu(int pos, byte[] nalu) {
+        System.arraycopy(START_CODE, 0, mAccessUnit, pos, START_CODE.length);
+        pos += START_CODE.length;
+        System.arraycopy(nalu, 0, mAccessUnit, pos, nalu.length);
+        return pos + nalu.length;
+    }
+
+    /**
+     * fills count bytes taken from the raw frame, never zero so no start code shows up in the payload.
+     */
+    private int putPayload(int pos, RawFrame frame, int count) {
+        for (int i = 0; i < count; i++) {
+            mAccessUnit[pos + i] = (byte) (frame.size > 0 ? frame.data[i % frame.size] | 0x80 : 0x80);
+        }
+        return pos + count;
+    }
+
+    @Override
+    public void setVideoParams(int fmt, int width, int height, int fps, long bitrate) {
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = fps;
+        mVideoBitrate = bitrate;
+    }
+
+    @Override
+    public void setAudioParams(int fmt, int channels, long samplerate, long bitrate) {
+        mChannels = channels;
+        mSampleRate = (int) samplerate;
+        mAudioBitrate = bitrate;
+    }
+
+    @Override
+    public void setStartTime(long timestamp) {
+        recorderStartTime = timestamp;
+    }
+
+    @Override
+    public long getStartTime() {
+        return recorderStartTime;
+    }
+
+    @Override
+    public void setStateListener(SessionStateListener listener) {
+        mStateListener = listener;
+    }
+
+    public double getCurrentUploadBandwidthKbps() {
+        return mUploadBandwidthKbps;
+    }
+
+    /**
+     * number of raw frames waiting for the encoder thread.
+     */
+    public int getPendingFrameCount() {
+        return mPendingFrames.size();
+    }
+
+    public long getEncodedVideoFrameCount() {
+        return mEncodedVideoFrames.get();
+    }
+
+    public long getEncodedAudioFrameCount() {
+        return mEncodedAudioFrames.get();
+    }
+
+    public long getDroppedVideoFrameCount() {
+        return mDroppedVideoFrames.get();
+    }
+
+    public long getDroppedAudioFrameCount() {
+        return mDroppedAudioFrames.get();
+    }
+
+    public long getEncodedBytes() {
+        return mEncodedBytes.get();
+    }
+}
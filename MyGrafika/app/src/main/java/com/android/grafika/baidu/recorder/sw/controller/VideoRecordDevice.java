@@ -1,6 +1,8 @@
 package com.android.grafika.baidu.recorder.sw.controller;
 
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.android.grafika.baidu.recorder.api.SessionStateListener;
 import com.android.grafika.baidu.recorder.sw.bean.VideoParams;
@@ -37,8 +39,18 @@ public class VideoRecordDevice extends RecordDevices implements AutoFocusCallbac
     private IRecorder mRecorder;
     private List<Size> previewSizesOfFrontCamera = null;
     private List<Size> previewSizesOfBackCamera = null;
-    private static final int NUM_CAMERA_PREVIEW_BUFFERS = 1;
-    private byte[][] mPreviewBuffer = null;
+    // one being filled by the camera, one waiting in the queue and one being fed to the encoder
+    private static final int NUM_CAMERA_PREVIEW_BUFFERS = 3;
+    private PreviewFrame[] mPreviewFrames = null;
+    // frames waiting for the feeder thread. One buffer is always left to the camera, so when
+    // the encoder falls behind a new frame replaces the queued one instead of the camera
+    // running out of buffers and dropping frames itself.
+    private final ArrayBlockingQueue<PreviewFrame> mFrameQueue =
+            new ArrayBlockingQueue<PreviewFrame>(NUM_CAMERA_PREVIEW_BUFFERS - 2);
+    private boolean isPreviewing = false;
+    private Thread mFeederThread = null;
+    private volatile boolean isFeederRunning = false;
+    private final AtomicLong mDroppedFrames = new AtomicLong();
     private VideoUtil mVideoUtil = null;
     private boolean isSendingVideo = true;
 
@@ -99,13 +111,20 @@ public class VideoRecordDevice extends RecordDevices implements AutoFocusCallbac
         }
     }
 
-    private boolean startCameraPreview() {
+    private synchronized boolean startCameraPreview() {
         Log.d(TAG, "Starting preview.");
         if (null != mCamera && mSurfaceHolder != null) {
             try {
-                mCamera.setPreviewCallback(cb);
-                for (int i = 0; i < NUM_CAMERA_PREVIEW_BUFFERS; i++) {
-                    mCamera.addCallbackBuffer(mPreviewBuffer[i]);
+                mCamera.setPreviewCallbackWithBuffer(cb);
+                if (!isPreviewing) {
+                    // the frames queued or being fed go back to the camera when the feeder is done with them
+                    for (PreviewFrame frame : mPreviewFrames) {
+                        if (frame.owner == PreviewFrame.OWNER_NONE) {
+                            frame.owner = PreviewFrame.OWNER_CAMERA;
+                            mCamera.addCallbackBuffer(frame.data);
+                        }
+                    }
+                    isPreviewing = true;
                 }
                 mCamera.setPreviewDisplay(mSurfaceHolder);
                 mCamera.startPreview(); // 打开预览画面
@@ -119,11 +138,21 @@ public class VideoRecordDevice extends RecordDevices implements AutoFocusCallbac
         }
     }
 
-    private void stopCameraPreview() {
+    private synchronized void stopCameraPreview() {
         if (null != mCamera) {
             mCamera.setPreviewCallback(null); // ！！这个必须在前，不然退出出错
             mCamera.stopPreview();
         }
+        // the camera gives up all its buffers when the preview stops, the feeder drops the queued
+        // frames and returns them itself
+        isPreviewing = false;
+        if (mPreviewFrames != null) {
+            for (PreviewFrame frame : mPreviewFrames) {
+                if (frame.owner == PreviewFrame.OWNER_CAMERA) {
+                    frame.owner = PreviewFrame.OWNER_NONE;
+                }
+            }
+        }
     }
 
     /**
@@ -282,33 +311,159 @@ public class VideoRecordDevice extends RecordDevices implements AutoFocusCallbac
         }
     }
 
+    /**
+     * a camera preview buffer, the time it was filled and who has it now.
+     */
+    private static class PreviewFrame {
+        // nobody, the next preview hands it to the camera
+        public static final int OWNER_NONE = 0;
+        public static final int OWNER_CAMERA = 1;
+        // queued or being fed to the encoder
+        public static final int OWNER_FEEDER = 2;
+
+        public final byte[] data;
+        public long timestamp;
+        // guarded by VideoRecordDevice.this
+        public int owner = OWNER_NONE;
+
+        public PreviewFrame(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private PreviewFrame findPreviewFrame(byte[] data) {
+        for (PreviewFrame frame : mPreviewFrames) {
+            if (frame.data == data) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
     /**
      * 获取相机每一帧画面
+     * 
+     * Only queues the frame, it is processed and fed to the encoder on the feeder thread so that
+     * a slow encoder never holds up the camera. When the queue is full the oldest frame is dropped.
      */
-    byte[] tmpBuffer = null;
     PreviewCallback cb = new PreviewCallback() {
         @Override
         public void onPreviewFrame(byte[] data, Camera camera) {
-            tmpBuffer = data;
-            if (mVideoUtil != null) {
-                tmpBuffer = mVideoUtil.dealVideoFrame(data);
+            PreviewFrame frame = findPreviewFrame(data);
+            if (frame == null) {
+                return;
+            }
+            synchronized (VideoRecordDevice.this) {
+                // a late frame of a preview that has been stopped, the next preview hands it out again
+                if (camera != mCamera || !isPreviewing) {
+                    return;
+                }
+                frame.owner = PreviewFrame.OWNER_FEEDER;
+            }
+            frame.timestamp = System.nanoTime() / 1000;
+            while (!mFrameQueue.offer(frame)) {
+                PreviewFrame oldest = mFrameQueue.poll();
+                if (oldest != null) {
+                    mDroppedFrames.incrementAndGet();
+                    returnPreviewFrame(oldest);
+                }
+            }
+        }
+    };
+
+    private Runnable mFeeder = new Runnable() {
+        @Override
+        public void run() {
+            while (isFeederRunning) {
+                PreviewFrame frame;
+                try {
+                    frame = mFrameQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    if (isPreviewing()) {
+                        byte[] data = frame.data;
+                        if (mVideoUtil != null) {
+                            data = mVideoUtil.dealVideoFrame(data);
+                        }
+                        feedingFrame(data, frame.timestamp);
+                    }
+                } finally {
+                    returnPreviewFrame(frame);
+                }
+            }
+            // the frames left in the queue are not fed anymore, but they still have to be returned
+            PreviewFrame frame;
+            while ((frame = mFrameQueue.poll()) != null) {
+                returnPreviewFrame(frame);
             }
-            feedingFrame(tmpBuffer);
-            camera.addCallbackBuffer(data);
         }
     };
 
+    private synchronized boolean isPreviewing() {
+        return isPreviewing;
+    }
+
+    /**
+     * gives a dequeued frame back to the camera, or keeps it for the next preview.
+     */
+    private synchronized void returnPreviewFrame(PreviewFrame frame) {
+        if (mCamera != null && isPreviewing) {
+            frame.owner = PreviewFrame.OWNER_CAMERA;
+            mCamera.addCallbackBuffer(frame.data);
+        } else {
+            frame.owner = PreviewFrame.OWNER_NONE;
+        }
+    }
+
     /**
      * 
      * @param data
      */
-    private void feedingFrame(byte[] data) {
+    private void feedingFrame(byte[] data, long timestamp) {
         if (mRecorder != null && isSendingVideo) {
-            long timestamp = System.nanoTime() / 1000;
             mRecorder.feedingVideoFrame(data, data.length, timestamp);
         }
     }
 
+    private void startFeeder() {
+        if (mFeederThread != null) {
+            return;
+        }
+        isFeederRunning = true;
+        mFeederThread = new Thread(mFeeder, "VideoFrameFeeder");
+        mFeederThread.start();
+    }
+
+    private void stopFeeder() {
+        if (mFeederThread == null) {
+            return;
+        }
+        isFeederRunning = false;
+        mFeederThread.interrupt();
+        try {
+            mFeederThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mFeederThread = null;
+    }
+
+    /**
+     * number of frames waiting to be fed to the encoder.
+     */
+    public int getFrameQueueDepth() {
+        return mFrameQueue.size();
+    }
+
+    /**
+     * number of frames dropped because the encoder did not keep up with the camera.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrames.get();
+    }
+
     // //////////////////////////////////////////////////////////////////////////////
     // //////////////////////////////////////////////////////////////////////////////
 
@@ -317,12 +472,14 @@ public class VideoRecordDevice extends RecordDevices implements AutoFocusCallbac
      */
     @Override
     public boolean open() {
-        if (mPreviewBuffer == null) {
-            mPreviewBuffer = new byte[NUM_CAMERA_PREVIEW_BUFFERS][];
+        if (mPreviewFrames == null) {
+            mPreviewFrames = new PreviewFrame[NUM_CAMERA_PREVIEW_BUFFERS];
             for (int i = 0; i < NUM_CAMERA_PREVIEW_BUFFERS; i++) {
-                mPreviewBuffer[i] = new byte[YUVUtils.getYuvBuffer(cameraParams.getWidth(), cameraParams.getHeight())];
+                mPreviewFrames[i] = new PreviewFrame(
+                        new byte[YUVUtils.getYuvBuffer(cameraParams.getWidth(), cameraParams.getHeight())]);
             }
         }
+        startFeeder();
         if (mCamera == null) {
             int cameraId = cameraParams.getCameraId();
             Log.i(TAG, String.format("going to open Camera [%d]", cameraId));
@@ -365,7 +522,7 @@ public class VideoRecordDevice extends RecordDevices implements AutoFocusCallbac
      * 停止并释放摄像头
      */
     @Override
-    public void close() {
+    public synchronized void close() {
         if (null != mCamera) {
             stopCameraPreview();
             mCamera.release();
@@ -548,7 +705,8 @@ public class VideoRecordDevice extends RecordDevices implements AutoFocusCallbac
      */
     @Override
     public void release() {
-
+        // the feeder returns the queued frames on its way out
+        stopFeeder();
     }
 
     public void setVideoUtil(VideoUtil videoKit) {
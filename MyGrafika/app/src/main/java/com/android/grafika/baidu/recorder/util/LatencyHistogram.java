@@ -0,0 +1,98 @@
+package com.android.grafika.baidu.recorder.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in us, with buckets growing like floating point numbers.
+ * <p>
+ * Every power of two is split into 8 buckets, so a value is known within 12.5%. Values up to
+ * 7us get a bucket each, values past 16 minutes go to the last one. Recording and
+ * reading never allocate.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 28 * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        int bucket = ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + mantissa;
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    static long lowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long mantissa = bucket & (SUB_BUCKET_COUNT - 1);
+        return (SUB_BUCKET_COUNT + mantissa) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public void record(long valueUs) {
+        if (valueUs < 0) {
+            valueUs = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(valueUs));
+        mCount.incrementAndGet();
+        mSum.addAndGet(valueUs);
+        long max;
+        while (valueUs > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, valueUs)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMeanUs() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    public long getMaxUs() {
+        return mMax.get();
+    }
+
+    /**
+     * the highest value of the bucket holding the given percentile, in [0, 100].
+     */
+    public long getPercentileUs(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return i == BUCKET_COUNT - 1 ? mMax.get()
+                        : Math.min(lowestValueOf(i + 1) - 1, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+}
@@ -0,0 +1,146 @@
+package com.android.grafika.baidu.recorder.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/**
+ * Where the time of a video frame goes between the camera and the socket.
+ * <p>
+ * Each stage stamps the frame by its pts in ms, and the time since the camera captured the
+ * frame goes to the histogram of that stage. The capture time is known at the camera and
+ * remembered for the last few frames, so the later stages only need the pts.
+ */
+public class LatencyTracker {
+    private static final String TAG = "LatencyTracker";
+
+    public static final int STAGE_CAMERA_LATCH = 0;
+    public static final int STAGE_ENCODER_INPUT = 1;
+    public static final int STAGE_ENCODER_OUTPUT = 2;
+    public static final int STAGE_MUX = 3;
+    public static final int STAGE_SEND = 4;
+    public static final int STAGE_COUNT = 5;
+    private static final String[] STAGE_NAMES = {"latch", "input", "output", "mux", "send"};
+
+    // frames between the encoder input and the socket, a few seconds of buffering at most
+    private static final int FRAME_SLOTS = 128;
+    private static final long DUMP_INTERVAL_MS = 10 * 1000;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+    // every frame reaching a stage, found in the ring or not
+    private final StripedCounters mFrameCounts = new StripedCounters(STAGE_COUNT);
+    private final AtomicLongArray mFramePtsMs = new AtomicLongArray(FRAME_SLOTS);
+    private final AtomicLongArray mFrameCaptureNs = new AtomicLongArray(FRAME_SLOTS);
+    private int mNextSlot = 0;
+    private final StringBuilder mDump = new StringBuilder(256);
+    private long mLastDumpTimeMs = 0;
+
+    public LatencyTracker() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * the camera frame captured at captureNs, on the System.nanoTime() clock, was latched.
+     * @return the capture time to pass to onEncoderInput.
+     */
+    public long onCameraLatch(long captureNs) {
+        mFrameCounts.increment(STAGE_CAMERA_LATCH);
+        long now = System.nanoTime();
+        // some cameras stamp the frames on another clock
+        if (captureNs <= 0 || captureNs > now) {
+            captureNs = now;
+        }
+        mHistograms[STAGE_CAMERA_LATCH].record((now - captureNs) / 1000);
+        return captureNs;
+    }
+
+    /**
+     * the frame captured at captureNs was sent to the encoder with ptsMs. Call from one thread.
+     */
+    public void onEncoderInput(long ptsMs, long captureNs) {
+        mFrameCounts.increment(STAGE_ENCODER_INPUT);
+        int slot = mNextSlot;
+        mNextSlot = (slot + 1) % FRAME_SLOTS;
+        mFramePtsMs.set(slot, -1);
+        mFrameCaptureNs.set(slot, captureNs);
+        mFramePtsMs.set(slot, ptsMs);
+        mHistograms[STAGE_ENCODER_INPUT].record((System.nanoTime() - captureNs) / 1000);
+    }
+
+    /**
+     * the frame of ptsMs reached stage, after STAGE_ENCODER_INPUT.
+     */
+    public void mark(int stage, long ptsMs) {
+        mFrameCounts.increment(stage);
+        long captureNs = findCaptureNs(ptsMs);
+        if (captureNs != 0) {
+            mHistograms[stage].record((System.nanoTime() - captureNs) / 1000);
+        }
+        if (stage == STAGE_SEND) {
+            maybeDump();
+        }
+    }
+
+    private long findCaptureNs(long ptsMs) {
+        // newest first, the frame is usually one of the last ones
+        int slot = mNextSlot;
+        for (int i = 0; i < FRAME_SLOTS; i++) {
+            slot = slot == 0 ? FRAME_SLOTS - 1 : slot - 1;
+            if (mFramePtsMs.get(slot) == ptsMs) {
+                return mFrameCaptureNs.get(slot);
+            }
+        }
+        return 0;
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    /**
+     * frames which reached stage since the tracker was made or reset.
+     */
+    public long getFrameCount(int stage) {
+        return mFrameCounts.get(stage);
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mFrameCounts.reset();
+    }
+
+    /**
+     * appends "stage p50/p99/max" of every stage in ms to sb.
+     */
+    public void dump(StringBuilder sb) {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            sb.append(STAGE_NAMES[i]).append(' ')
+                    .append(histogram.getPercentileUs(50) / 1000).append('/')
+                    .append(histogram.getPercentileUs(99) / 1000).append('/')
+                    .append(histogram.getMaxUs() / 1000).append("ms");
+            if (i < STAGE_COUNT - 1) {
+                sb.append(", ");
+            }
+        }
+    }
+
+    private void maybeDump() {
+        long now = System.currentTimeMillis();
+        if (now - mLastDumpTimeMs < DUMP_INTERVAL_MS) {
+            return;
+        }
+        mLastDumpTimeMs = now;
+        mDump.setLength(0);
+        dump(mDump);
+        Log.d(TAG, mDump.toString());
+    }
+}
@@ -0,0 +1,56 @@
+package com.android.grafika.baidu.recorder.util;
+
+/**
+ * Turns a few ever growing totals into per second rates over about the last window.
+ * <p>
+ * Each sample is kept for a while, and a rate is measured against the newest sample at least
+ * a window old, so polling often doesn't make the rates jumpy.
+ */
+public class RateMeter {
+    private static final int SLOTS = 32;
+
+    private final long mWindowMs;
+    private final long[] mTimes = new long[SLOTS];
+    private final long[][] mTotals;
+    private final double[] mRates;
+    private int mSamples = 0;
+    private int mNext = 0;
+
+    public RateMeter(int counters, long windowMs) {
+        mWindowMs = windowMs;
+        mTotals = new long[SLOTS][counters];
+        mRates = new double[counters];
+    }
+
+    /**
+     * adds the totals at nowMs and updates the rates.
+     */
+    public synchronized void sample(long nowMs, long[] totals) {
+        int from = -1;
+        for (int i = 1; i <= mSamples; i++) {
+            int slot = (mNext - i + SLOTS) % SLOTS;
+            from = slot;
+            if (nowMs - mTimes[slot] >= mWindowMs) {
+                break;
+            }
+        }
+        if (from >= 0 && nowMs > mTimes[from]) {
+            double seconds = (nowMs - mTimes[from]) / 1000.0;
+            for (int i = 0; i < mRates.length; i++) {
+                mRates[i] = (totals[i] - mTotals[from][i]) / seconds;
+            }
+        }
+
+        mTimes[mNext] = nowMs;
+        System.arraycopy(totals, 0, mTotals[mNext], 0, mRates.length);
+        mNext = (mNext + 1) % SLOTS;
+        mSamples = Math.min(mSamples + 1, SLOTS);
+    }
+
+    /**
+     * per second, 0 until two samples were taken.
+     */
+    public synchronized double getRate(int counter) {
+        return mRates[counter];
+    }
+}
@@ -0,0 +1,36 @@
+package com.android.grafika.baidu.recorder.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A few counters bumped from different threads, each on its own cache line so that the
+ * threads don't slow each other down. Reading them is a plain volatile read.
+ */
+public class StripedCounters {
+    // longs in a 64 byte cache line
+    private static final int STRIPE = 8;
+
+    private final AtomicLongArray mValues;
+
+    public StripedCounters(int count) {
+        mValues = new AtomicLongArray((count + 1) * STRIPE);
+    }
+
+    public void add(int counter, long delta) {
+        mValues.addAndGet((counter + 1) * STRIPE, delta);
+    }
+
+    public void increment(int counter) {
+        mValues.incrementAndGet((counter + 1) * STRIPE);
+    }
+
+    public long get(int counter) {
+        return mValues.get((counter + 1) * STRIPE);
+    }
+
+    public void reset() {
+        for (int i = 0; i < mValues.length(); i++) {
+            mValues.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.android.grafika.baidu.recorder.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import android.util.Log;
+
+/**
+ * Runs a few slow setup steps at the same time, each one once the steps it depends on are done.
+ * <p>
+ * Every step gets its own thread. A step whose dependency failed is skipped and counts as
+ * failed too. Steps can only depend on steps added before them, so there are no cycles.
+ */
+public class TaskGraph {
+    private static final String TAG = "TaskGraph";
+
+    /**
+     * one setup step, returns whether it succeeded.
+     */
+    public interface Task {
+        boolean run();
+    }
+
+    private static class Node {
+        final String name;
+        final Task task;
+        final Node[] deps;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean isSucceeded = false;
+        volatile long costMs = -1;
+
+        Node(String name, Task task, Node[] deps) {
+            this.name = name;
+            this.task = task;
+            this.deps = deps;
+        }
+    }
+
+    private final String mName;
+    private final List<Node> mNodes = new ArrayList<Node>();
+
+    public TaskGraph(String name) {
+        mName = name;
+    }
+
+    /**
+     * adds a step running after all the steps named in dependsOn.
+     */
+    public TaskGraph add(String name, Task task, String... dependsOn) {
+        Node[] deps = new Node[dependsOn.length];
+        for (int i = 0; i < dependsOn.length; i++) {
+            deps[i] = find(dependsOn[i]);
+            if (deps[i] == null) {
+                throw new IllegalArgumentException(name + " depends on unknown step " + dependsOn[i]);
+            }
+        }
+        mNodes.add(new Node(name, task, deps));
+        return this;
+    }
+
+    private Node find(String name) {
+        for (Node node : mNodes) {
+            if (node.name.equals(name)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * runs all the steps and waits for them, returns whether all of them succeeded.
+     */
+    public boolean run() {
+        long start = System.currentTimeMillis();
+        for (final Node node : mNodes) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runNode(node);
+                }
+            }, mName + "-" + node.name).start();
+        }
+
+        boolean isSucceeded = true;
+        StringBuilder costs = new StringBuilder();
+        for (Node node : mNodes) {
+            await(node);
+            isSucceeded &= node.isSucceeded;
+            costs.append(' ').append(node.name).append('=')
+                    .append(node.isSucceeded ? node.costMs + "ms" : "failed");
+        }
+        Log.d(TAG, mName + " took " + (System.currentTimeMillis() - start) + "ms:" + costs);
+        return isSucceeded;
+    }
+
+    private static void runNode(Node node) {
+        try {
+            for (Node dep : node.deps) {
+                await(dep);
+                if (!dep.isSucceeded) {
+                    Log.w(TAG, "skip " + node.name + " for " + dep.name + " failed");
+                    return;
+                }
+            }
+            long start = System.currentTimeMillis();
+            node.isSucceeded = node.task.run();
+            node.costMs = System.currentTimeMillis() - start;
+        } catch (Exception e) {
+            Log.e(TAG, "step " + node.name + " failed", e);
+        } finally {
+            node.done.countDown();
+        }
+    }
+
+    private static void await(Node node) {
+        try {
+            node.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
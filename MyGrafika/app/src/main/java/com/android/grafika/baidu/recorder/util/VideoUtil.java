@@ -15,12 +15,25 @@ public class VideoUtil {
     private Size srcImageSize = null;
     // size of processed image
     private Size tagImageSize = null;
-    private byte[] mOutputBuffer = null;
-    private byte[] mCroppedBuffer = null;
-    private byte[] mRotatedBuffer = null;
     private boolean isNeedCrop = false;
     private boolean mCropSwitchFlag = false;
 
+    // clockwise rotation applied to every frame, worked out once from the session setup
+    private int mRotation = 0;
+    private int mOutputFormat = YuvFrame.FORMAT_NV21;
+    // processed frames are written round robin into these, so a frame stays valid while
+    // the next one is prepared
+    private static final int OUTPUT_FRAMES = 2;
+    private final YuvFrame[] mOutputFrames = new YuvFrame[OUTPUT_FRAMES];
+    private int mNextOutputFrame = 0;
+    // views of the camera buffers, cropped already. The camera hands out the same few
+    // buffers over and over, so after the first frames no view is allocated anymore.
+    private static final int MAX_SOURCE_FRAMES = 4;
+    private final YuvFrame[] mSourceFrames = new YuvFrame[MAX_SOURCE_FRAMES];
+    private int mNextSourceFrame = 0;
+    // shares the rows of each frame among several threads when set
+    private YuvWorkerPool mWorkerPool = null;
+
     private class Size {
         public int width;
         public int height;
@@ -34,9 +47,7 @@ public class VideoUtil {
     public void setVideoSize(int width, int height) {
         srcImageSize = new Size(width, height);
         calTargetImageSize();
-
-        mCroppedBuffer = new byte[tagImageSize.height * tagImageSize.width * 3 / 2];
-        mRotatedBuffer = new byte[tagImageSize.height * tagImageSize.width * 3 / 2];
+        allocOutputFrames();
     }
 
     private void calTargetImageSize() {
@@ -52,6 +63,25 @@ public class VideoUtil {
         }
     }
 
+    private void allocOutputFrames() {
+        if (tagImageSize == null) {
+            return;
+        }
+        for (int i = 0; i < mOutputFrames.length; i++) {
+            mOutputFrames[i] = YuvFrame.allocate(mOutputFormat, getTargetVideoWidth(), getTargetVideoHeight());
+        }
+        mNextOutputFrame = 0;
+        for (int i = 0; i < mSourceFrames.length; i++) {
+            mSourceFrames[i] = null;
+        }
+        mNextSourceFrame = 0;
+    }
+
+    private void calRotation() {
+        // back camera turns clockwise, front camera counterclockwise
+        mRotation = isOrientationPortrait ? (isCameraFront ? 270 : 90) : 0;
+    }
+
     public int getTargetVideoWidth() {
         return isOrientationPortrait ? tagImageSize.height : tagImageSize.width;
     }
@@ -64,115 +94,67 @@ public class VideoUtil {
 
     public void setIsOrientationPortrait(boolean r) {
         isOrientationPortrait = r;
+        calRotation();
+        allocOutputFrames();
     }
 
     private boolean isCameraFront = false;
 
     public void setIsCameraFront(boolean f) {
         isCameraFront = f;
+        calRotation();
     }
 
-    public byte[] dealVideoFrame(byte[] data) {
-        if (!isNeedCrop) {
-            mCroppedBuffer = data;
-            // saveRawData(data, data.length, "Test_"+System.nanoTime()+".raw");
-        } else {
-            cropYUVImage(data);
-        }
-        mOutputBuffer = mCroppedBuffer;
+    /**
+     * sets the layout of the processed frames, one of the YuvFrame.FORMAT_* values.
+     */
+    public void setOutputFormat(int format) {
+        mOutputFormat = format;
+        allocOutputFrames();
+    }
 
-        if (isOrientationPortrait || isCameraFront) {
-            rotateNV21(mCroppedBuffer, mRotatedBuffer, tagImageSize.width, tagImageSize.height);
-            mOutputBuffer = mRotatedBuffer;
-        }
-        return mOutputBuffer;
+    public int getOutputFormat() {
+        return mOutputFormat;
     }
 
-    private void cropYUVImage(byte[] src) {
-        if (tagImageSize.height != srcImageSize.height) {
-            int startRow = (srcImageSize.height - tagImageSize.height) / 4 * 2;
-            // Copying the Y-color
-            System.arraycopy(src, startRow * srcImageSize.width, mCroppedBuffer, 0,
-                    tagImageSize.width * tagImageSize.height);
-            // Copying the UV-color
-            System.arraycopy(src, (srcImageSize.height + startRow / 2) * srcImageSize.width, mCroppedBuffer,
-                    tagImageSize.width * tagImageSize.height, tagImageSize.height * tagImageSize.width / 2);
+    /**
+     * lets frames be processed by the threads of pool, null to process them on the calling thread.
+     */
+    public void setWorkerPool(YuvWorkerPool pool) {
+        mWorkerPool = pool;
+    }
+
+    /**
+     * crops, rotates and converts a NV21 camera frame in a single pass.
+     * @return the camera buffer itself when there is nothing to do, otherwise the next output
+     *         buffer, valid until OUTPUT_FRAMES newer frames have been processed.
+     */
+    public byte[] dealVideoFrame(byte[] data) {
+        if (!isNeedCrop && mRotation == 0 && mOutputFormat == YuvFrame.FORMAT_NV21) {
+            // saveRawData(data, data.length, "Test_"+System.nanoTime()+".raw");
+            return data;
         }
+        // the crop is only a view on the camera buffer, every output byte is written once
+        YuvFrame output = mOutputFrames[mNextOutputFrame];
+        mNextOutputFrame = (mNextOutputFrame + 1) % mOutputFrames.length;
+        getSourceFrame(data).rotateTo(output, mRotation, false, mWorkerPool);
+        return output.data;
     }
 
-    private byte[] rotateNV21(final byte[] yuv, byte[] output, final int width, final int height) {
-        final int frameSize = width * height;
-        final boolean swap = isOrientationPortrait;
-        final boolean xflip = !isCameraFront;
-        final boolean yflip = isCameraFront && isOrientationPortrait;
-
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                final int yIn = j * width + i;
-                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
-                final int vIn = uIn + 1;
-
-                final int wOut = swap ? height : width;
-                final int hOut = swap ? width : height;
-                final int iSwapped = swap ? j : i;
-                final int jSwapped = swap ? i : j;
-                final int iOut = xflip ? wOut - iSwapped - 1 : iSwapped;
-                final int jOut = yflip ? hOut - jSwapped - 1 : jSwapped;
-
-                final int yOut = jOut * wOut + iOut;
-                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
-                final int vOut = uOut + 1;
-
-                output[yOut] = (byte) (0xff & yuv[yIn]);
-                output[uOut] = (byte) (0xff & yuv[uIn]);
-                output[vOut] = (byte) (0xff & yuv[vIn]);
+    private YuvFrame getSourceFrame(byte[] data) {
+        for (YuvFrame frame : mSourceFrames) {
+            if (frame != null && frame.data == data) {
+                return frame;
             }
         }
-        return output;
-    }
-
-    private void decodeNV21(int[] rgb, byte[] yuv420sp, int width, int height) {
-        final int frameSize = width * height;
-
-        int yp = 0;
-        for (int j = 0; j < height; j++) {
-            int uvp = frameSize + (j >> 1) * width;
-            int u = 0;
-            int v = 0;
-            for (int i = 0; i < width; i++, yp++) {
-                int y = (0xff & ((int) yuv420sp[yp])) - 16;
-                if (y < 0) {
-                    y = 0;
-                }
-                if ((i & 1) == 0) {
-                    v = (0xff & yuv420sp[uvp++]) - 128;
-                    u = (0xff & yuv420sp[uvp++]) - 128;
-                }
-
-                int y1192 = 1192 * y;
-                int r = (y1192 + 1634 * v);
-                int g = (y1192 - 833 * v - 400 * u);
-                int b = (y1192 + 2066 * u);
-
-                if (r < 0) {
-                    r = 0;
-                } else if (r > 262143) {
-                    r = 262143;
-                }
-                if (g < 0) {
-                    g = 0;
-                } else if (g > 262143) {
-                    g = 262143;
-                }
-                if (b < 0) {
-                    b = 0;
-                } else if (b > 262143) {
-                    b = 262143;
-                }
-
-                rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-            }
+        YuvFrame frame = YuvFrame.wrap(data, YuvFrame.FORMAT_NV21, srcImageSize.width, srcImageSize.height);
+        if (isNeedCrop) {
+            int startRow = (srcImageSize.height - tagImageSize.height) / 4 * 2;
+            frame = frame.crop(0, startRow, tagImageSize.width, tagImageSize.height);
         }
+        mSourceFrames[mNextSourceFrame] = frame;
+        mNextSourceFrame = (mNextSourceFrame + 1) % mSourceFrames.length;
+        return frame;
     }
 
     private void saveBitmap(Bitmap bm, String name) {
@@ -7,6 +7,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Created by andy on 4/21/16.
@@ -17,32 +19,44 @@ public class YUVUtils {
     // https://developer.android.com/reference/android/hardware/Camera.Parameters.html#setPreviewFormat(int)
     // https://developer.android.com/reference/android/graphics/ImageFormat.html#YV12
     public static int getYuvBuffer(int width, int height) {
-        // stride = ALIGN(width, 16)
-        int stride = (int) Math.ceil(width / 16.0) * 16;
         // y_size = stride * height
-        int y_size = stride * height;
-        // c_stride = ALIGN(stride/2, 16)
-        int c_stride = (int) Math.ceil(width / 32.0) * 16;
+        int y_size = getYV12Stride(width) * height;
         // c_size = c_stride * height/2
-        int c_size = c_stride * height / 2;
+        int c_size = getYV12ChromaStride(width) * height / 2;
         // size = y_size + c_size * 2
         return y_size + c_size * 2;
     }
 
+    // stride = ALIGN(width, 16)
+    public static int getYV12Stride(int width) {
+        return (width + 15) & ~15;
+    }
+
+    // c_stride = ALIGN(stride/2, 16)
+    public static int getYV12ChromaStride(int width) {
+        return ((getYV12Stride(width) >> 1) + 15) & ~15;
+    }
+
     // the color transform, @see http://stackoverflow.com/questions/15739684/mediacodec-and-camera-color-space-incorrect
     public static byte[] YV12toYUV420PackedSemiPlanar(final byte[] input, final byte[] output, final int width, final int height) {
         /*
          * COLOR_TI_FormatYUV420PackedSemiPlanar is NV21
          * We convert by putting the corresponding U and V bytes together (interleaved).
+         * The input is the camera YV12 layout, so the planes may be padded to 16 bytes.
          */
         final int frameSize = width * height;
-        final int qFrameSize = frameSize / 4;
+        final int stride = getYV12Stride(width);
+        final int cStride = getYV12ChromaStride(width);
+        final int vOffset = stride * height;
+        final int uOffset = vOffset + cStride * (height / 2);
+        final ByteBuffer in = wrap(input);
+        final ByteBuffer out = wrap(output);
 
-        System.arraycopy(input, 0, output, 0, frameSize); // Y
+        copyPlane(input, 0, stride, output, 0, width, width, height); // Y
 
-        for (int i = 0; i < qFrameSize; i++) {
-            output[frameSize + i * 2 + 1] = input[frameSize + i + qFrameSize]; // Cb (U)
-            output[frameSize + i * 2] = input[frameSize + i]; // Cr (V)
+        for (int row = 0; row < height / 2; row++) {
+            // Cr (V) first, then Cb (U)
+            interleave(in, vOffset + row * cStride, uOffset + row * cStride, out, frameSize + row * width, width / 2);
         }
         return output;
     }
@@ -52,15 +66,21 @@ public class YUVUtils {
         /*
          * COLOR_FormatYUV420SemiPlanar is NV12
          * We convert by putting the corresponding U and V bytes together (interleaved).
+         * The input is the camera YV12 layout, so the planes may be padded to 16 bytes.
          */
         final int frameSize = width * height;
-        final int qFrameSize = frameSize / 4;
+        final int stride = getYV12Stride(width);
+        final int cStride = getYV12ChromaStride(width);
+        final int vOffset = stride * height;
+        final int uOffset = vOffset + cStride * (height / 2);
+        final ByteBuffer in = wrap(input);
+        final ByteBuffer out = wrap(output);
 
-        System.arraycopy(input, 0, output, 0, frameSize); // Y
+        copyPlane(input, 0, stride, output, 0, width, width, height); // Y
 
-        for (int i = 0; i < qFrameSize; i++) {
-            output[frameSize + i * 2] = input[frameSize + i + qFrameSize]; // Cb (U)
-            output[frameSize + i * 2 + 1] = input[frameSize + i]; // Cr (V)
+        for (int row = 0; row < height / 2; row++) {
+            // Cb (U) first, then Cr (V)
+            interleave(in, uOffset + row * cStride, vOffset + row * cStride, out, frameSize + row * width, width / 2);
         }
         return output;
     }
@@ -75,10 +95,8 @@ public class YUVUtils {
 
         System.arraycopy(input, 0, output, 0, frameSize); // Y
 
-        for (int i = 0; i < qFrameSize; i++) {
-            output[frameSize + i + qFrameSize] = input[frameSize + i * 2 + 1]; // Cb (U)
-            output[frameSize + i] = input[frameSize + i * 2]; // Cr (V)
-        }
+        // Cr (V) to the first plane, Cb (U) to the second one
+        deinterleave(wrap(input), frameSize, wrap(output), frameSize, frameSize + qFrameSize, qFrameSize);
 
         return output;
     }
@@ -94,10 +112,7 @@ public class YUVUtils {
 
         System.arraycopy(input, 0, output, 0, frameSize); // Y
 
-        for (int i = 0; i < qFrameSize; i++) {
-            output[frameSize + i * 2] = input[frameSize + i * 2 + 1]; // Cb (U)
-            output[frameSize + i * 2 + 1] = input[frameSize + i * 2]; // Cr (V)
-        }
+        swapPairs(wrap(input), frameSize, wrap(output), frameSize, qFrameSize);
         return output;
     }
 
@@ -111,10 +126,8 @@ public class YUVUtils {
 
         System.arraycopy(input, 0, output, 0, frameSize); // Y
 
-        for (int i = 0; i < qFrameSize; i++) {
-            output[frameSize + i] = input[frameSize + i * 2 + 1]; // Cb (U)
-            output[frameSize + i + qFrameSize] = input[frameSize + i * 2]; // Cr (V)
-        }
+        // Cr (V) to the second plane, Cb (U) to the first one
+        deinterleave(wrap(input), frameSize, wrap(output), frameSize + qFrameSize, frameSize, qFrameSize);
 
         return output;
     }
@@ -123,17 +136,109 @@ public class YUVUtils {
         /*
          * COLOR_FormatYUV420Planar is I420 which is like YV12, but with U and V reversed.
          * So we just have to reverse U and V.
+         * The input is the camera YV12 layout, so the planes may be padded to 16 bytes.
          */
         final int frameSize = width * height;
         final int qFrameSize = frameSize / 4;
+        final int stride = getYV12Stride(width);
+        final int cStride = getYV12ChromaStride(width);
+        final int vOffset = stride * height;
+        final int uOffset = vOffset + cStride * (height / 2);
 
-        System.arraycopy(input, 0, output, 0, frameSize); // Y
-        System.arraycopy(input, frameSize + qFrameSize, output, frameSize, qFrameSize); // Cb (U)
-        System.arraycopy(input, frameSize, output, frameSize + qFrameSize, qFrameSize); // Cr (V)
+        copyPlane(input, 0, stride, output, 0, width, width, height); // Y
+        copyPlane(input, uOffset, cStride, output, frameSize, width / 2, width / 2, height / 2); // Cb (U)
+        copyPlane(input, vOffset, cStride, output, frameSize + qFrameSize, width / 2, width / 2, height / 2); // Cr (V)
 
         return output;
     }
 
+    // The chroma kernels below move a machine word per iteration instead of a byte. The buffers
+    // are little endian, so the byte at the lowest address is the lowest byte of the word.
+    private static final long MASK_EVEN_BYTES = 0x00FF00FF00FF00FFL;
+    private static final long MASK_EVEN_SHORTS = 0x0000FFFF0000FFFFL;
+    private static final long MASK_LOW_INT = 0x00000000FFFFFFFFL;
+
+    static ByteBuffer wrap(byte[] data) {
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // copies a plane row by row, or in one go if both sides are tightly packed
+    static void copyPlane(byte[] src, int srcOffset, int srcStride,
+                                  byte[] dst, int dstOffset, int dstStride, int width, int height) {
+        if (srcStride == width && dstStride == width) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, width * height);
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(src, srcOffset + row * srcStride, dst, dstOffset + row * dstStride, width);
+        }
+    }
+
+    // b0 b1 b2 b3 -> b0 00 b1 00 b2 00 b3 00
+    private static long spreadBytes(long x) {
+        x = (x | (x << 16)) & MASK_EVEN_SHORTS;
+        return (x | (x << 8)) & MASK_EVEN_BYTES;
+    }
+
+    // b0 xx b1 xx b2 xx b3 xx -> b0 b1 b2 b3
+    private static int packEvenBytes(long x) {
+        x &= MASK_EVEN_BYTES;
+        x = (x | (x >>> 8)) & MASK_EVEN_SHORTS;
+        return (int) ((x | (x >>> 16)) & MASK_LOW_INT);
+    }
+
+    /**
+     * interleaves two planar chroma runs into a semi-planar one: f0 s0 f1 s1 ...
+     * @param count the number of chroma pairs to write.
+     */
+    static void interleave(ByteBuffer src, int firstOffset, int secondOffset,
+                                   ByteBuffer dst, int dstOffset, int count) {
+        int i = 0;
+        for (; i + 4 <= count; i += 4) {
+            long first = src.getInt(firstOffset + i) & MASK_LOW_INT;
+            long second = src.getInt(secondOffset + i) & MASK_LOW_INT;
+            dst.putLong(dstOffset + i * 2, spreadBytes(first) | (spreadBytes(second) << 8));
+        }
+        for (; i < count; i++) {
+            dst.put(dstOffset + i * 2, src.get(firstOffset + i));
+            dst.put(dstOffset + i * 2 + 1, src.get(secondOffset + i));
+        }
+    }
+
+    /**
+     * splits a semi-planar chroma run into two planes, the even bytes go to the first one.
+     * @param count the number of chroma pairs to read.
+     */
+    static void deinterleave(ByteBuffer src, int srcOffset,
+                                     ByteBuffer dst, int firstOffset, int secondOffset, int count) {
+        int i = 0;
+        for (; i + 4 <= count; i += 4) {
+            long pairs = src.getLong(srcOffset + i * 2);
+            dst.putInt(firstOffset + i, packEvenBytes(pairs));
+            dst.putInt(secondOffset + i, packEvenBytes(pairs >>> 8));
+        }
+        for (; i < count; i++) {
+            dst.put(firstOffset + i, src.get(srcOffset + i * 2));
+            dst.put(secondOffset + i, src.get(srcOffset + i * 2 + 1));
+        }
+    }
+
+    /**
+     * swaps the two bytes of each chroma pair, which converts between NV21 and NV12.
+     * @param count the number of chroma pairs to swap.
+     */
+    static void swapPairs(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int count) {
+        int i = 0;
+        for (; i + 4 <= count; i += 4) {
+            long pairs = src.getLong(srcOffset + i * 2);
+            dst.putLong(dstOffset + i * 2, ((pairs & MASK_EVEN_BYTES) << 8) | ((pairs >>> 8) & MASK_EVEN_BYTES));
+        }
+        for (; i < count; i++) {
+            dst.put(dstOffset + i * 2, src.get(srcOffset + i * 2 + 1));
+            dst.put(dstOffset + i * 2 + 1, src.get(srcOffset + i * 2));
+        }
+    }
+
     public void dumpYUVData(byte[] buffer, int len, String name) {
         File f = new File(Environment.getExternalStorageDirectory().getPath() + "/tmp/", name);
         if (f.exists()) {
@@ -0,0 +1,350 @@
+package com.android.grafika.baidu.recorder.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV 4:2:0 image inside a byte array, described by the offset and stride of each plane.
+ * <p>
+ * Camera buffers are wrapped as they are (including the padded YV12 layout), and crop only
+ * moves the plane offsets, so frames can be converted or rotated straight from the capture
+ * buffer without being repacked into a tight layout first.
+ */
+public class YuvFrame {
+    public static final int FORMAT_I420 = 0;
+    public static final int FORMAT_YV12 = 1;
+    public static final int FORMAT_NV12 = 2;
+    public static final int FORMAT_NV21 = 3;
+
+    public final byte[] data;
+    public final int format;
+    public final int width;
+    public final int height;
+
+    public final int yOffset;
+    public final int yStride;
+    public final int uOffset;
+    public final int vOffset;
+    public final int chromaStride;
+    // 1 for planar formats, 2 for semi-planar ones
+    public final int chromaPixelStride;
+
+    private YuvFrame(byte[] data, int format, int width, int height, int yOffset, int yStride,
+                     int uOffset, int vOffset, int chromaStride, int chromaPixelStride) {
+        this.data = data;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.yOffset = yOffset;
+        this.yStride = yStride;
+        this.uOffset = uOffset;
+        this.vOffset = vOffset;
+        this.chromaStride = chromaStride;
+        this.chromaPixelStride = chromaPixelStride;
+    }
+
+    /**
+     * size in bytes of a tightly packed frame.
+     */
+    public static int getTightSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * wraps a tightly packed frame, stride == width.
+     */
+    public static YuvFrame wrap(byte[] data, int format, int width, int height) {
+        final int frameSize = width * height;
+        final int qFrameSize = frameSize / 4;
+        switch (format) {
+            case FORMAT_I420:
+                return new YuvFrame(data, format, width, height, 0, width,
+                        frameSize, frameSize + qFrameSize, width / 2, 1);
+            case FORMAT_YV12:
+                return new YuvFrame(data, format, width, height, 0, width,
+                        frameSize + qFrameSize, frameSize, width / 2, 1);
+            case FORMAT_NV12:
+                return new YuvFrame(data, format, width, height, 0, width,
+                        frameSize, frameSize + 1, width, 2);
+            case FORMAT_NV21:
+                return new YuvFrame(data, format, width, height, 0, width,
+                        frameSize + 1, frameSize, width, 2);
+            default:
+                throw new IllegalArgumentException("unsupported yuv format " + format);
+        }
+    }
+
+    /**
+     * wraps a YV12 preview buffer in the camera layout, @see YUVUtils.getYuvBuffer
+     */
+    public static YuvFrame wrapCameraYV12(byte[] data, int width, int height) {
+        final int stride = YUVUtils.getYV12Stride(width);
+        final int cStride = YUVUtils.getYV12ChromaStride(width);
+        final int vOffset = stride * height;
+        final int uOffset = vOffset + cStride * (height / 2);
+        return new YuvFrame(data, FORMAT_YV12, width, height, 0, stride, uOffset, vOffset, cStride, 1);
+    }
+
+    /**
+     * allocates a tightly packed frame.
+     */
+    public static YuvFrame allocate(int format, int width, int height) {
+        return wrap(new byte[getTightSize(width, height)], format, width, height);
+    }
+
+    public boolean isSemiPlanar() {
+        return chromaPixelStride == 2;
+    }
+
+    public boolean isTight() {
+        return yOffset == 0 && yStride == width && chromaStride == width / 2 * chromaPixelStride
+                && Math.min(uOffset, vOffset) == width * height;
+    }
+
+    /**
+     * returns a view of the given rectangle, sharing the same data. x and y are rounded down
+     * to even values so that the chroma planes stay aligned with the luma plane.
+     */
+    public YuvFrame crop(int x, int y, int w, int h) {
+        x &= ~1;
+        y &= ~1;
+        if (w <= 0 || h <= 0 || x + w > width || y + h > height) {
+            throw new IllegalArgumentException(String.format("crop %dx%d@%d,%d out of %dx%d", w, h, x, y, width, height));
+        }
+        final int chromaDelta = (y / 2) * chromaStride + (x / 2) * chromaPixelStride;
+        return new YuvFrame(data, format, w, h, yOffset + y * yStride + x, yStride,
+                uOffset + chromaDelta, vOffset + chromaDelta, chromaStride, chromaPixelStride);
+    }
+
+    /**
+     * copies this frame into dst, converting the chroma layout if the formats differ.
+     * Both frames must have the same size.
+     */
+    public void convertTo(YuvFrame dst) {
+        convertTo(dst, null);
+    }
+
+    /**
+     * same as convertTo(dst), with the rows shared among the threads of pool if it is not null.
+     */
+    public void convertTo(final YuvFrame dst, YuvWorkerPool pool) {
+        if (dst.width != width || dst.height != height) {
+            throw new IllegalArgumentException("convert needs frames of the same size");
+        }
+        final int ch = height / 2;
+        if (pool == null) {
+            convertRows(dst, 0, ch);
+            return;
+        }
+        pool.runRows(ch, getBandRows(width * 2), new YuvWorkerPool.RowTask() {
+            @Override
+            public void run(int start, int end) {
+                convertRows(dst, start, end);
+            }
+        });
+    }
+
+    /**
+     * converts the chroma rows [start, end) and the luma rows they cover.
+     */
+    private void convertRows(YuvFrame dst, int start, int end) {
+        final int ch = height / 2;
+        final int yStart = start * 2;
+        final int yEnd = end == ch ? height : end * 2;
+        YUVUtils.copyPlane(data, yOffset + yStart * yStride, yStride, dst.data, dst.yOffset + yStart * dst.yStride,
+                dst.yStride, width, yEnd - yStart);
+
+        final int cw = width / 2;
+        if (!isSemiPlanar() && !dst.isSemiPlanar()) {
+            YUVUtils.copyPlane(data, uOffset + start * chromaStride, chromaStride,
+                    dst.data, dst.uOffset + start * dst.chromaStride, dst.chromaStride, cw, end - start);
+            YUVUtils.copyPlane(data, vOffset + start * chromaStride, chromaStride,
+                    dst.data, dst.vOffset + start * dst.chromaStride, dst.chromaStride, cw, end - start);
+            return;
+        }
+
+        final ByteBuffer in = YUVUtils.wrap(data);
+        final ByteBuffer out = YUVUtils.wrap(dst.data);
+        // when both chroma planes have no row padding they can be handled as a single row
+        final boolean contiguous = chromaStride == cw * chromaPixelStride
+                && dst.chromaStride == cw * dst.chromaPixelStride;
+        final int rows = contiguous ? 1 : end - start;
+        final int count = contiguous ? cw * (end - start) : cw;
+        final int srcFirst = Math.min(uOffset, vOffset);
+        final int dstFirst = Math.min(dst.uOffset, dst.vOffset);
+        for (int row = start; row < start + rows; row++) {
+            final int srcRow = row * chromaStride;
+            final int dstRow = row * dst.chromaStride;
+            if (isSemiPlanar() && dst.isSemiPlanar()) {
+                if ((uOffset < vOffset) == (dst.uOffset < dst.vOffset)) {
+                    System.arraycopy(data, srcFirst + srcRow, dst.data, dstFirst + dstRow, count * 2);
+                } else {
+                    YUVUtils.swapPairs(in, srcFirst + srcRow, out, dstFirst + dstRow, count);
+                }
+            } else if (dst.isSemiPlanar()) {
+                if (dst.uOffset < dst.vOffset) {
+                    YUVUtils.interleave(in, uOffset + srcRow, vOffset + srcRow, out, dstFirst + dstRow, count);
+                } else {
+                    YUVUtils.interleave(in, vOffset + srcRow, uOffset + srcRow, out, dstFirst + dstRow, count);
+                }
+            } else {
+                if (uOffset < vOffset) {
+                    YUVUtils.deinterleave(in, srcFirst + srcRow, out, dst.uOffset + dstRow, dst.vOffset + dstRow, count);
+                } else {
+                    YUVUtils.deinterleave(in, srcFirst + srcRow, out, dst.vOffset + dstRow, dst.uOffset + dstRow, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * rotates this frame clockwise into dst, converting the chroma layout if the formats differ.
+     * @param degrees 0, 90, 180 or 270. For 90 and 270 dst must have width and height swapped.
+     * @param mirror whether to flip the rotated image horizontally.
+     */
+    public void rotateTo(YuvFrame dst, int degrees, boolean mirror) {
+        rotateTo(dst, degrees, mirror, null);
+    }
+
+    /**
+     * same as rotateTo(dst, degrees, mirror), with the rows shared among the threads of pool
+     * if it is not null.
+     */
+    public void rotateTo(final YuvFrame dst, final int degrees, final boolean mirror, YuvWorkerPool pool) {
+        final boolean swap = degrees == 90 || degrees == 270;
+        if (degrees != 0 && !swap && degrees != 180) {
+            throw new IllegalArgumentException("unsupported rotation " + degrees);
+        }
+        if ((swap ? dst.width != height || dst.height != width : dst.width != width || dst.height != height)) {
+            throw new IllegalArgumentException("rotate needs a destination of the rotated size");
+        }
+        if (degrees == 0 && !mirror) {
+            convertTo(dst, pool);
+            return;
+        }
+        final int ch = height / 2;
+        if (pool == null) {
+            rotateRows(dst, degrees, mirror, 0, ch);
+            return;
+        }
+        // for 90 and 270 a band is a whole row of chroma tiles, i.e. two rows of luma tiles
+        final int bandRows = swap ? ROTATE_TILE_SIZE : getBandRows(width * 2);
+        pool.runRows(ch, bandRows, new YuvWorkerPool.RowTask() {
+            @Override
+            public void run(int start, int end) {
+                rotateRows(dst, degrees, mirror, start, end);
+            }
+        });
+    }
+
+    /**
+     * rotates the chroma rows [start, end) and the luma rows they cover.
+     */
+    private void rotateRows(YuvFrame dst, int degrees, boolean mirror, int start, int end) {
+        final int ch = height / 2;
+        rotatePlane(data, yOffset, yStride, 1, dst.data, dst.yOffset, dst.yStride, 1,
+                width, height, start * 2, end == ch ? height : end * 2, degrees, mirror, false);
+        if (isSemiPlanar() && dst.isSemiPlanar()) {
+            // move each chroma pair as one sample, a single pass over the chroma plane
+            rotatePlane(data, Math.min(uOffset, vOffset), chromaStride, 2,
+                    dst.data, Math.min(dst.uOffset, dst.vOffset), dst.chromaStride, 2,
+                    width / 2, ch, start, end, degrees, mirror, (uOffset < vOffset) != (dst.uOffset < dst.vOffset));
+        } else {
+            rotatePlane(data, uOffset, chromaStride, chromaPixelStride, dst.data, dst.uOffset, dst.chromaStride,
+                    dst.chromaPixelStride, width / 2, ch, start, end, degrees, mirror, false);
+            rotatePlane(data, vOffset, chromaStride, chromaPixelStride, dst.data, dst.vOffset, dst.chromaStride,
+                    dst.chromaPixelStride, width / 2, ch, start, end, degrees, mirror, false);
+        }
+    }
+
+    // bytes of source rows in one band handed to a worker thread
+    private static final int BAND_SIZE = 32 * 1024;
+
+    /**
+     * number of rows of rowBytes bytes that fit in one band, at least one.
+     */
+    static int getBandRows(int rowBytes) {
+        return Math.max(1, BAND_SIZE / Math.max(1, rowBytes));
+    }
+
+    // edge of the square blocks used for 90 and 270 degree rotations, in samples.
+    // 32 rows of 32 samples on each side stay well inside the L1 cache.
+    private static final int ROTATE_TILE_SIZE = 32;
+
+    /**
+     * rotates one sample plane, the samples are pixelStride bytes apart on each side.
+     * <p>
+     * The destination of source sample (i, j) is an affine function of i and j, so the
+     * index steps are worked out once and the inner loop is just two additions.
+     * For 90 and 270 degrees each source row turns into a destination column, so the plane
+     * is walked in square tiles to keep the written cache lines hot while they fill up.
+     * Only the source rows [rowStart, rowEnd) are moved, so bands of rows can be rotated apart.
+     * @param swapPair for pairs of interleaved chroma (pixel stride 2 on both sides), whether
+     *                 to swap the two bytes of each pair, i.e. NV21 to NV12 and back.
+     */
+    static void rotatePlane(byte[] src, int srcOffset, int srcStride, int srcPixelStride,
+                            byte[] dst, int dstOffset, int dstStride, int dstPixelStride,
+                            int width, int height, int rowStart, int rowEnd,
+                            int degrees, boolean mirror, boolean swapPair) {
+        // dst (x, y) = (ax * i + bx * j + cx, ay * i + by * j + cy)
+        int ax, bx, cx, ay, by, cy;
+        int dstWidth = width;
+        switch (degrees) {
+            case 90:
+                ax = 0; bx = -1; cx = height - 1;
+                ay = 1; by = 0; cy = 0;
+                dstWidth = height;
+                break;
+            case 180:
+                ax = -1; bx = 0; cx = width - 1;
+                ay = 0; by = -1; cy = height - 1;
+                break;
+            case 270:
+                ax = 0; bx = 1; cx = 0;
+                ay = -1; by = 0; cy = width - 1;
+                dstWidth = height;
+                break;
+            default:
+                ax = 1; bx = 0; cx = 0;
+                ay = 0; by = 1; cy = 0;
+                break;
+        }
+        if (mirror) {
+            ax = -ax;
+            bx = -bx;
+            cx = dstWidth - 1 - cx;
+        }
+        final int colStep = ax * dstPixelStride + ay * dstStride;
+        final int rowStep = bx * dstPixelStride + by * dstStride;
+        final int base = dstOffset + cx * dstPixelStride + cy * dstStride;
+
+        final boolean pair = srcPixelStride == 2 && dstPixelStride == 2;
+        final int first = swapPair ? 1 : 0;
+        final int second = swapPair ? 0 : 1;
+        final int tile = (degrees == 90 || degrees == 270) ? ROTATE_TILE_SIZE : width;
+
+        for (int tj = rowStart; tj < rowEnd; tj += tile) {
+            final int jEnd = Math.min(tj + tile, rowEnd);
+            for (int ti = 0; ti < width; ti += tile) {
+                final int count = Math.min(tile, width - ti);
+                for (int j = tj; j < jEnd; j++) {
+                    int s = srcOffset + j * srcStride + ti * srcPixelStride;
+                    int d = base + j * rowStep + ti * colStep;
+                    if (pair) {
+                        for (int i = 0; i < count; i++) {
+                            dst[d] = src[s + first];
+                            dst[d + 1] = src[s + second];
+                            s += 2;
+                            d += colStep;
+                        }
+                    } else {
+                        for (int i = 0; i < count; i++) {
+                            dst[d] = src[s];
+                            s += srcPixelStride;
+                            d += colStep;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
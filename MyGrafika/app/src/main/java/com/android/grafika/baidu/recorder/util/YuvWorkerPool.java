@@ -0,0 +1,189 @@
+package com.android.grafika.baidu.recorder.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * A few persistent threads that share the rows of one frame.
+ * <p>
+ * The rows are cut into small bands which every thread, the calling one included, takes in
+ * turn until none are left, and runRows returns once all bands are done. Bands are kept
+ * small enough for a band of source and destination rows to stay in the cache of one core.
+ */
+public class YuvWorkerPool {
+    private static final String TAG = "YuvWorkerPool";
+
+    /**
+     * processes the rows [start, end) of a frame.
+     */
+    public interface RowTask {
+        void run(int start, int end);
+    }
+
+    private final Thread[] mWorkers;
+    private final LinkedBlockingQueue<Runnable> mJobs = new LinkedBlockingQueue<Runnable>();
+    private volatile boolean isReleased = false;
+
+    // the frame being worked on, set by runRows before it queues the job. One frame at a
+    // time, so the job and the state below are reused for every frame.
+    private final Object mLock = new Object();
+    private RowTask mTask = null;
+    private int mRows;
+    private int mBandRows;
+    private int mBands;
+    private final AtomicInteger mNextBand = new AtomicInteger();
+    // helpers which have not finished the frame yet, guarded by mLock
+    private int mPendingHelpers = 0;
+    private Throwable mFailure = null;
+
+    private final Runnable mHelperJob = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                runBands();
+            } catch (Throwable t) {
+                synchronized (mLock) {
+                    mFailure = t;
+                }
+            } finally {
+                onHelperDone();
+            }
+        }
+    };
+
+    /**
+     * @param threadCount number of threads working on a frame, including the caller of runRows.
+     */
+    public YuvWorkerPool(int threadCount) {
+        mWorkers = new Thread[Math.max(0, threadCount - 1)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!isReleased) {
+                        try {
+                            mJobs.take().run();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            }, TAG + "-" + i);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * a pool using the cores of this device, at most maxThreads of them.
+     */
+    public static YuvWorkerPool create(int maxThreads) {
+        return new YuvWorkerPool(Math.min(maxThreads, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getThreadCount() {
+        return mWorkers.length + 1;
+    }
+
+    /**
+     * runs task over [0, rows) in bands of bandRows rows and waits for all of them.
+     * Calls from several threads are run one after the other.
+     */
+    public synchronized void runRows(int rows, int bandRows, RowTask task) {
+        final int bands = (rows + bandRows - 1) / bandRows;
+        final int helpers = Math.min(mWorkers.length, bands - 1);
+        final boolean isAlone;
+        synchronized (mLock) {
+            // checked under the lock release() drains the jobs with, so a queued job is
+            // either taken by a worker or counted down by release()
+            isAlone = helpers <= 0 || isReleased;
+            if (!isAlone) {
+                queueHelpers(task, rows, bandRows, bands, helpers);
+            }
+        }
+        if (isAlone) {
+            task.run(0, rows);
+            return;
+        }
+
+        Throwable failure = null;
+        try {
+            runBands();
+        } catch (Throwable t) {
+            failure = t;
+        }
+
+        boolean interrupted = false;
+        synchronized (mLock) {
+            // the helpers share the state of this frame, so wait for them even if interrupted
+            while (mPendingHelpers > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (failure == null) {
+                failure = mFailure;
+            }
+            mTask = null;
+            mFailure = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw new RuntimeException("row task failed", failure);
+        }
+    }
+
+    // with mLock held
+    private void queueHelpers(RowTask task, int rows, int bandRows, int bands, int helpers) {
+        mTask = task;
+        mRows = rows;
+        mBandRows = bandRows;
+        mBands = bands;
+        mNextBand.set(0);
+        mFailure = null;
+        mPendingHelpers = helpers;
+        for (int i = 0; i < helpers; i++) {
+            mJobs.add(mHelperJob);
+        }
+    }
+
+    private void runBands() {
+        int band;
+        while ((band = mNextBand.getAndIncrement()) < mBands) {
+            int start = band * mBandRows;
+            mTask.run(start, Math.min(start + mBandRows, mRows));
+        }
+    }
+
+    private void onHelperDone() {
+        synchronized (mLock) {
+            if (--mPendingHelpers == 0) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    public void release() {
+        synchronized (mLock) {
+            if (isReleased) {
+                return;
+            }
+            isReleased = true;
+            // the caller of runRows takes every band itself, a job nobody will run now
+            // only has to be counted as done
+            while (mJobs.poll() != null) {
+                onHelperDone();
+            }
+        }
+        for (Thread worker : mWorkers) {
+            worker.interrupt();
+        }
+        Log.d(TAG, "released " + getThreadCount() + " threads");
+    }
+}
@@ -0,0 +1,225 @@
+package com.android.grafika.baidu.recorder.hw.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlvTagWriterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    private static final byte[] AUD = {0x09, (byte) 0xf0};
+    private static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x21, 0x7f};
+    private static final byte[] SLICE_1 = {0x41, (byte) 0x9a, 0x22};
+    private static final byte[] SLICE_2 = {0x41, (byte) 0x9b, 0x11, 0x05};
+
+    /**
+     * a copy of a tag, the pooled buffers are reused.
+     */
+    private static class Tag {
+        int type;
+        int dts;
+        int frameType;
+        int packetType;
+        byte[] body;
+    }
+
+    private final ArrayList<Tag> mTags = new ArrayList<Tag>();
+    private FlvTagWriter mWriter;
+
+    @Before
+    public void setUp() {
+        mTags.clear();
+        mWriter = new FlvTagWriter(new FlvTagWriter.TagSink() {
+            private final ByteBuffer mBuffer = ByteBuffer.allocate(1024);
+
+            @Override
+            public ByteBuffer obtainTagBuffer(int size) {
+                mBuffer.clear();
+                return mBuffer;
+            }
+
+            @Override
+            public void onTag(int type, int dts, int frameType, int packetType, ByteBuffer tag, int size,
+                              boolean pooled) {
+                Tag copy = new Tag();
+                copy.type = type;
+                copy.dts = dts;
+                copy.frameType = frameType;
+                copy.packetType = packetType;
+                copy.body = new byte[size];
+                System.arraycopy(tag.array(), 0, copy.body, 0, size);
+                mTags.add(copy);
+            }
+        });
+        mWriter.setAudioParams(2, 44100);
+    }
+
+    private static byte[] annexb(boolean shortStartCode, byte[]... nalus) {
+        ByteBuffer bb = ByteBuffer.allocate(256);
+        for (byte[] nalu : nalus) {
+            if (!shortStartCode) {
+                bb.put((byte) 0);
+            }
+            bb.put(new byte[] {0, 0, 1});
+            bb.put(nalu);
+        }
+        byte[] data = new byte[bb.position()];
+        System.arraycopy(bb.array(), 0, data, 0, data.length);
+        return data;
+    }
+
+    private void writeVideo(byte[] data, long ptsMs) throws Exception {
+        FlvTagWriter.SampleInfo info = new FlvTagWriter.SampleInfo();
+        info.set(data.length, ptsMs * 1000);
+        mWriter.writeVideoSample(ByteBuffer.wrap(data), info);
+    }
+
+    private void writeAudio(byte[] data, long ptsMs) {
+        FlvTagWriter.SampleInfo info = new FlvTagWriter.SampleInfo();
+        info.set(data.length, ptsMs * 1000);
+        mWriter.writeAudioSample(ByteBuffer.wrap(data), info);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer bb = ByteBuffer.allocate(256);
+        for (byte[] part : parts) {
+            bb.put(part);
+        }
+        byte[] data = new byte[bb.position()];
+        System.arraycopy(bb.array(), 0, data, 0, data.length);
+        return data;
+    }
+
+    private static byte[] length(byte[] nalu) {
+        return ByteBuffer.allocate(4).putInt(nalu.length).array();
+    }
+
+    private void assertTag(Tag tag, int type, int dts, int frameType, int packetType, byte[] body) {
+        assertEquals(type, tag.type);
+        assertEquals(dts, tag.dts);
+        assertEquals(frameType, tag.frameType);
+        assertEquals(packetType, tag.packetType);
+        assertArrayEquals(body, tag.body);
+    }
+
+    @Test
+    public void videoWaitsForTheParameterSets() throws Exception {
+        writeVideo(annexb(false, SLICE_1), 40);
+        writeVideo(annexb(false, IDR), 80);
+        assertEquals(0, mTags.size());
+    }
+
+    @Test
+    public void keyFrameGoesAfterTheSequenceHeader() throws Exception {
+        writeVideo(annexb(false, AUD, SPS, PPS, IDR), 100);
+
+        assertEquals(2, mTags.size());
+        byte[] header = concat(new byte[] {0x17, 0, 0, 0, 5},
+                new byte[] {1, SPS[1], SPS[2], SPS[3], (byte) 0xff, (byte) 0xe1, 0, (byte) SPS.length}, SPS,
+                new byte[] {1, 0, (byte) PPS.length}, PPS);
+        assertTag(mTags.get(0), FlvTagWriter.TAG_VIDEO, 95, FlvTagWriter.FRAME_KEY,
+                FlvTagWriter.PACKET_SEQUENCE_HEADER, header);
+        assertTag(mTags.get(1), FlvTagWriter.TAG_VIDEO, 95, FlvTagWriter.FRAME_KEY,
+                FlvTagWriter.PACKET_NALU, concat(new byte[] {0x17, 1, 0, 0, 5}, length(IDR), IDR));
+    }
+
+    @Test
+    public void interFrameKeepsEverySlice() throws Exception {
+        writeVideo(annexb(false, SPS, PPS, IDR), 0);
+        mTags.clear();
+        writeVideo(annexb(true, AUD, SLICE_1, SLICE_2), 2);
+
+        assertEquals(1, mTags.size());
+        // the dts can't go below zero, the cts takes the rest
+        assertTag(mTags.get(0), FlvTagWriter.TAG_VIDEO, 0, FlvTagWriter.FRAME_INTER, FlvTagWriter.PACKET_NALU,
+                concat(new byte[] {0x27, 1, 0, 0, 2}, length(SLICE_1), SLICE_1, length(SLICE_2), SLICE_2));
+    }
+
+    @Test
+    public void sequenceHeaderOnlyWhenChanged() throws Exception {
+        writeVideo(annexb(false, SPS, PPS, IDR), 100);
+        writeVideo(annexb(false, SPS, PPS, IDR), 200);
+        assertEquals(3, mTags.size());
+        assertEquals(FlvTagWriter.PACKET_NALU, mTags.get(2).packetType);
+
+        byte[] pps = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+        writeVideo(annexb(false, SPS, pps, IDR), 300);
+        assertEquals(5, mTags.size());
+        assertEquals(FlvTagWriter.PACKET_SEQUENCE_HEADER, mTags.get(3).packetType);
+        byte[] body = mTags.get(3).body;
+        assertEquals(pps[2], body[body.length - 2]);
+    }
+
+    @Test
+    public void resetWaitsForNewParameterSets() throws Exception {
+        writeVideo(annexb(false, SPS, PPS, IDR), 100);
+        mTags.clear();
+        mWriter.resetSeenParameterSets();
+        writeVideo(annexb(false, SLICE_1), 140);
+        assertEquals(0, mTags.size());
+
+        // the same sets again, the header was sent already
+        writeVideo(annexb(false, SPS, PPS, IDR), 180);
+        assertEquals(1, mTags.size());
+        assertEquals(FlvTagWriter.PACKET_NALU, mTags.get(0).packetType);
+    }
+
+    @Test
+    public void missingStartCodeThrows() throws Exception {
+        try {
+            writeVideo(SLICE_1, 40);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage().startsWith("annexb not match"));
+        }
+    }
+
+    @Test
+    public void audioStartsWithTheSpecificConfig() {
+        byte[] first = {0x21, 0x10, 0x05};
+        byte[] second = {0x21, 0x1a, 0x44, 0x02};
+        writeAudio(first, 23);
+        writeAudio(second, 46);
+
+        assertEquals(2, mTags.size());
+        // AAC, 44100, stereo, the first frame only made the config
+        assertTag(mTags.get(0), FlvTagWriter.TAG_AUDIO, 18, 0, FlvTagWriter.PACKET_SEQUENCE_HEADER,
+                new byte[] {(byte) 0xad, 0, 0x12, 0x10});
+        assertTag(mTags.get(1), FlvTagWriter.TAG_AUDIO, 41, 0, FlvTagWriter.PACKET_NALU,
+                concat(new byte[] {(byte) 0xad, 1}, second));
+    }
+
+    @Test
+    public void audioHeaderFollowsTheParams() {
+        mWriter.setAudioParams(1, 22050);
+        writeAudio(new byte[] {0x21}, 0);
+        assertEquals((byte) 0xa8, mTags.get(0).body[0]);
+    }
+
+    @Test
+    public void metaDataIsAnOnMetaDataObject() throws Exception {
+        ByteBuffer meta = mWriter.makeMetaData(640, 360, 25, 800000, 44100, 64000);
+        byte[] data = new byte[meta.remaining()];
+        meta.get(data);
+
+        byte[] start = concat(new byte[] {2, 0, 13}, "@setDataFrame".getBytes(),
+                new byte[] {2, 0, 10}, "onMetaData".getBytes(), new byte[] {3});
+        for (int i = 0; i < start.length; i++) {
+            assertEquals("byte " + i, start[i], data[i]);
+        }
+        assertArrayEquals(new byte[] {0, 0, 9}, new byte[] {data[data.length - 3], data[data.length - 2],
+                data[data.length - 1]});
+        // the width, a big endian double after its name
+        String text = new String(data, "ISO-8859-1");
+        int width = text.indexOf("width") + "width".length();
+        assertEquals(0, data[width]);
+        assertEquals(640.0, ByteBuffer.wrap(data, width + 1, 8).getDouble(), 0);
+    }
+}
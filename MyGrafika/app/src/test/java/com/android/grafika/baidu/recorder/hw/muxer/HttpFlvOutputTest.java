@@ -0,0 +1,213 @@
+package com.android.grafika.baidu.recorder.hw.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpFlvOutputTest {
+    private static final int TYPE_AUDIO = 8;
+    private static final int TYPE_VIDEO = 9;
+
+    private ServerSocket mServer;
+    private Thread mServerThread;
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+    private final List<byte[]> mBodies = Collections.synchronizedList(new ArrayList<byte[]>());
+    private volatile int mConnections = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        if (mServerThread != null) {
+            mServerThread.interrupt();
+            mServerThread.join(5000);
+        }
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + mServer.getLocalPort() + path;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * answers every chunked POST with an empty 200 and keeps the connection.
+     */
+    private void serveChunkedPosts() {
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = mServer.accept();
+                        mConnections++;
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        OutputStream out = socket.getOutputStream();
+                        String request;
+                        while ((request = readLine(in)) != null) {
+                            boolean isChunked = false;
+                            String header;
+                            while ((header = readLine(in)) != null && header.length() > 0) {
+                                isChunked |= header.equalsIgnoreCase("Transfer-Encoding: chunked");
+                            }
+                            mRequests.add(request + (isChunked ? " chunked" : ""));
+                            mBodies.add(readChunkedBody(in));
+                            out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+                            out.flush();
+                        }
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // the server socket was closed
+                }
+            }
+        });
+        mServerThread.start();
+    }
+
+    private static byte[] readChunkedBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataInputStream data = new DataInputStream(in);
+        while (true) {
+            int size = Integer.parseInt(readLine(in).trim(), 16);
+            if (size == 0) {
+                readLine(in);
+                return body.toByteArray();
+            }
+            byte[] chunk = new byte[size];
+            data.readFully(chunk);
+            body.write(chunk);
+            assertEquals("", readLine(in));
+        }
+    }
+
+    private static int be24(byte[] b, int p) {
+        return ((b[p] & 0xff) << 16) | ((b[p + 1] & 0xff) << 8) | (b[p + 2] & 0xff);
+    }
+
+    private static byte[] tag(int size, int fill) {
+        byte[] tag = new byte[size];
+        for (int i = 0; i < size; i++) {
+            tag[i] = (byte) (fill + i);
+        }
+        return tag;
+    }
+
+    private void assertFlvBody(byte[] body, int[] types, byte[][] tags, long[] dts) {
+        assertArrayEquals(FlvFileOutput.makeFileHeader(true, true), Arrays.copyOf(body, 13));
+        int p = 13;
+        for (int i = 0; i < tags.length; i++) {
+            int size = be24(body, p + 1);
+            assertEquals(types[i], body[p]);
+            assertEquals(tags[i].length, size);
+            assertEquals(dts[i], be24(body, p + 4) | ((body[p + 7] & 0xff) << 24));
+            assertArrayEquals(tags[i], Arrays.copyOfRange(body, p + 11, p + 11 + size));
+            int previousTagSize = ((body[p + 11 + size] & 0xff) << 24) | be24(body, p + 12 + size);
+            assertEquals("previous tag size of tag " + i, size + 11, previousTagSize);
+            p += 11 + size + 4;
+        }
+        assertEquals(body.length, p);
+    }
+
+    @Test
+    public void postsTheTagsAsAChunkedFlv() throws Exception {
+        serveChunkedPosts();
+        HttpFlvOutput output = new HttpFlvOutput(true, true);
+        int[] types = {TYPE_VIDEO, TYPE_AUDIO, TYPE_VIDEO};
+        byte[][] tags = {tag(30000, 1), tag(17, 2), tag(600, 3)};
+        long[] dts = {0, 23, 0x1000040L};
+
+        for (int round = 0; round < 2; round++) {
+            assertEquals(0, output.connect(url("/live/s" + round + ".flv?k=1")));
+            assertTrue(output.isConnected());
+            for (int i = 0; i < tags.length; i++) {
+                assertEquals(tags[i].length, output.writeTag(tags[i], tags[i].length, dts[i], types[i]));
+            }
+            assertEquals(200, output.finish());
+            assertFalse(output.isConnected());
+        }
+        output.release();
+
+        assertEquals(2, mBodies.size());
+        assertEquals("POST /live/s0.flv?k=1 HTTP/1.1 chunked", mRequests.get(0));
+        assertEquals("POST /live/s1.flv?k=1 HTTP/1.1 chunked", mRequests.get(1));
+        for (byte[] body : mBodies) {
+            assertFlvBody(body, types, tags, dts);
+        }
+        // the server kept the connection for the second stream
+        assertEquals(1, mConnections);
+    }
+
+    @Test(timeout = 10000)
+    public void interruptEndsAWriteToAStalledServer() throws Exception {
+        final Socket[] accepted = new Socket[1];
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // never reads, the socket buffers fill up
+                    accepted[0] = mServer.accept();
+                } catch (IOException e) {
+                    // the server socket was closed
+                }
+            }
+        });
+        mServerThread.start();
+
+        final HttpFlvOutput output = new HttpFlvOutput(true, true);
+        assertEquals(0, output.connect(url("/live/stalled.flv")));
+        final int[] result = {0};
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] frame = tag(256 * 1024, 0);
+                while ((result[0] = output.writeTag(frame, frame.length, 0, TYPE_VIDEO)) > 0) {
+                    // until it blocks
+                }
+            }
+        });
+        writer.start();
+        writer.join(1000);
+        assertTrue("the write didn't block", writer.isAlive());
+
+        writer.interrupt();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertEquals(-1, result[0]);
+        assertFalse(output.isConnected());
+        assertEquals(-1, output.finish());
+        mServerThread.join();
+        accepted[0].close();
+    }
+}
@@ -0,0 +1,91 @@
+package com.android.grafika.baidu.recorder.hw.rtmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DeliveryEstimatorTest {
+    private static final long MS = 1000000;
+
+    /**
+     * a socket send buffer drained at a fixed rate, a write blocks until it fits in.
+     */
+    private static class SimulatedLink {
+        final DeliveryEstimator estimator = new DeliveryEstimator();
+        final long bufferBytes;
+        final long bytesPerSecond;
+        double buffered = 0;
+        long sentBytes = 0;
+        long nowNs = 0;
+
+        SimulatedLink(long bufferBytes, long bytesPerSecond) {
+            this.bufferBytes = bufferBytes;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * writes bytes now, the write takes at least stallNs, then waits until intervalNs passed.
+         */
+        void write(int bytes, long intervalNs, long stallNs) {
+            long startNs = nowNs;
+            long endNs = startNs + stallNs;
+            drain(endNs - startNs);
+            double room = bufferBytes - buffered;
+            if (room < bytes) {
+                long waitNs = (long) ((bytes - room) * 1e9 / bytesPerSecond);
+                endNs += waitNs;
+                drain(waitNs);
+            }
+            buffered += bytes;
+            sentBytes += bytes;
+            estimator.onWrite(bytes, startNs, endNs);
+            nowNs = Math.max(endNs, startNs + intervalNs);
+            drain(nowNs - endNs);
+        }
+
+        private void drain(long ns) {
+            buffered = Math.max(0, buffered - ns * (double) bytesPerSecond / 1e9);
+        }
+
+        long deliveredBytes() {
+            return sentBytes - (long) buffered;
+        }
+    }
+
+    @Test
+    public void measuresASaturatedLink() {
+        // 500KB/s into a 256KB buffer drained at 250KB/s
+        SimulatedLink link = new SimulatedLink(256 * 1024, 250 * 1024);
+        for (int i = 0; i < 500; i++) {
+            link.write(10 * 1024, 20 * MS, 0);
+        }
+
+        assertEquals(250 * 1024 * 8, link.estimator.getLinkRateBps(), 250 * 1024 * 8 / 50);
+        assertEquals(link.bufferBytes, link.estimator.getInFlightBytes(), 16 * 1024);
+        assertEquals(link.deliveredBytes(), link.estimator.getDeliveredBytes(), 16 * 1024);
+    }
+
+    @Test
+    public void aSingleSlowWriteIsNotALimitedLink() {
+        // 100KB/s on a link of 1MB/s, the buffer never fills up
+        SimulatedLink link = new SimulatedLink(256 * 1024, 1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            link.write(2 * 1024, 20 * MS, 0);
+        }
+        int rateBps = link.estimator.getLinkRateBps();
+        assertTrue(rateBps >= 90 * 1024 * 8);
+
+        // a quiet second, the writing thread stalls once
+        for (int i = 0; i < 50; i++) {
+            link.write(600, 20 * MS, i == 25 ? 3 * MS : 0);
+        }
+        for (int i = 0; i < 50; i++) {
+            link.write(2 * 1024, 20 * MS, 0);
+            assertTrue("in flight " + link.estimator.getInFlightBytes(),
+                    link.estimator.getInFlightBytes() < 4 * 1024);
+        }
+        assertTrue(link.estimator.getLinkRateBps() >= rateBps);
+        assertEquals(link.deliveredBytes(), link.estimator.getDeliveredBytes(), 4 * 1024);
+    }
+}
@@ -0,0 +1,89 @@
+package com.android.grafika.baidu.recorder.sw.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AudioBatcherTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME_BYTES = 4;
+    // 4 AAC frames per read, the AudioRecord buffer holds 2 reads
+    private static final int READ_SAMPLES = 4 * AudioBatcher.SAMPLES_PER_FRAME;
+    private static final int BUFFER_BYTES = 2 * READ_SAMPLES * FRAME_BYTES;
+    private static final long START_US = 5000000;
+
+    private final List<Long> mTimestamps = new ArrayList<Long>();
+    private final List<Byte> mFirstBytes = new ArrayList<Byte>();
+    private AudioBatcher mBatcher;
+    private IRecorder mRecorder;
+
+    @Before
+    public void setUp() {
+        mBatcher = new AudioBatcher(SAMPLE_RATE, 2, 2, BUFFER_BYTES);
+        mRecorder = new JavaFlvRecorder(null) {
+            @Override
+            public int feedingAudioFrame(byte[] samples, long numSamples, long timestamp) {
+                assertEquals(AudioBatcher.SAMPLES_PER_FRAME * FRAME_BYTES, numSamples);
+                mTimestamps.add(timestamp);
+                mFirstBytes.add(samples[0]);
+                return 0;
+            }
+        };
+    }
+
+    private static long samplesToUs(long samples) {
+        return samples * 1000000L / SAMPLE_RATE;
+    }
+
+    /**
+     * feeds samples [first, first + count) as read at readUs, each sample's bytes hold its index.
+     */
+    private void feed(long first, int count, long readUs) {
+        byte[] pcm = new byte[count * FRAME_BYTES];
+        for (int i = 0; i < count; i++) {
+            pcm[i * FRAME_BYTES] = (byte) (first + i);
+        }
+        mBatcher.feed(mRecorder, pcm, pcm.length, readUs);
+    }
+
+    @Test
+    public void aLateReadKeepsTheSampleClock() {
+        long samples = 0;
+        for (int read = 0; read < 6; read++) {
+            // the third read comes 150ms late, the buffer held the samples meanwhile
+            long lateUs = read == 2 ? 150000 : 0;
+            feed(samples, READ_SAMPLES, START_US + samplesToUs(samples + READ_SAMPLES) + lateUs);
+            samples += READ_SAMPLES;
+        }
+
+        assertEquals(24, mTimestamps.size());
+        for (int i = 0; i < mTimestamps.size(); i++) {
+            assertEquals(START_US + samplesToUs(i * AudioBatcher.SAMPLES_PER_FRAME), (long) mTimestamps.get(i));
+        }
+    }
+
+    @Test
+    public void lostSamplesMoveTheClockAndKeepThePartialBlock() {
+        // a block and a half
+        int first = AudioBatcher.SAMPLES_PER_FRAME * 3 / 2;
+        feed(0, first, START_US + samplesToUs(first));
+        assertEquals(1, mTimestamps.size());
+
+        // a second later, far more than the buffer holds
+        long gapUs = 1000000;
+        long resumeUs = START_US + samplesToUs(first) + gapUs;
+        feed(first, READ_SAMPLES, resumeUs + samplesToUs(READ_SAMPLES));
+
+        assertEquals(5, mTimestamps.size());
+        // the partial block was kept, the block goes on with the new samples
+        assertEquals((byte) AudioBatcher.SAMPLES_PER_FRAME, (byte) mFirstBytes.get(1));
+        long partialUs = samplesToUs(first - AudioBatcher.SAMPLES_PER_FRAME);
+        assertEquals(resumeUs - partialUs, (long) mTimestamps.get(1));
+        assertEquals(resumeUs - partialUs + samplesToUs(AudioBatcher.SAMPLES_PER_FRAME),
+                (long) mTimestamps.get(2));
+    }
+}
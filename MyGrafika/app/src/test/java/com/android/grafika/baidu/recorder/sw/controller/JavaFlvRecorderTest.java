@@ -0,0 +1,211 @@
+package com.android.grafika.baidu.recorder.sw.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.android.grafika.baidu.recorder.api.SessionStateListener;
+import com.android.grafika.baidu.recorder.hw.muxer.FlvFileOutput;
+import com.android.grafika.baidu.recorder.hw.muxer.FlvOutput;
+
+public class JavaFlvRecorderTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final int FPS = 25;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int PCM_BYTES = 4096;
+    private static final long START_US = 1000000;
+
+    private static int be24(byte[] f, int p) {
+        return ((f[p] & 0xff) << 16) | ((f[p + 1] & 0xff) << 8) | (f[p + 2] & 0xff);
+    }
+
+    /**
+     * the amf0 number named name in the size bytes of the script tag body at p.
+     */
+    private static double metaDataNumber(byte[] f, int p, int size, String name) throws Exception {
+        byte[] key = name.getBytes("US-ASCII");
+        for (int i = p; i + 2 + key.length + 9 <= p + size; i++) {
+            if (((f[i] & 0xff) << 8 | (f[i + 1] & 0xff)) == key.length
+                    && new String(f, i + 2, key.length, "US-ASCII").equals(name)) {
+                int value = i + 2 + key.length;
+                assertEquals(name + " is a number", 0, f[value]);
+                return ByteBuffer.wrap(f, value + 1, 8).getDouble();
+            }
+        }
+        throw new AssertionError("no " + name + " in the metadata");
+    }
+
+    /**
+     * feeds 25fps video and the audio of durationUs, a little slower than realtime.
+     */
+    private static void feed(JavaFlvRecorder recorder, long durationUs) throws InterruptedException {
+        byte[] yuv = new byte[WIDTH * HEIGHT * 3 / 2];
+        new Random(1).nextBytes(yuv);
+        byte[] pcm = new byte[PCM_BYTES];
+        int videoFrames = 0;
+        int audioFrames = 0;
+        for (long us = 0; us < durationUs; us += 1000) {
+            if (us >= audioFrames * 1024L * 1000000 / SAMPLE_RATE) {
+                recorder.feedingAudioFrame(pcm, PCM_BYTES, START_US + us);
+                audioFrames++;
+            }
+            if (us >= videoFrames * 40000L) {
+                recorder.feedingVideoFrame(yuv, yuv.length, START_US + us);
+                videoFrames++;
+                Thread.sleep(2);
+            }
+        }
+        // let the encoder thread take the last frames
+        Thread.sleep(200);
+    }
+
+    @Test
+    public void recordsAPlayableFlv() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JavaFlvRecorder recorder = new JavaFlvRecorder(new FlvFileOutput(bytes, true, true));
+        recorder.setVideoParams(0, WIDTH, HEIGHT, FPS, 800000);
+        recorder.setAudioParams(0, 2, SAMPLE_RATE, 64000);
+        assertEquals(0, recorder.open("file://test"));
+        feed(recorder, 5000000);
+        assertEquals(0, recorder.close());
+
+        byte[] f = bytes.toByteArray();
+        assertEquals('F', f[0]);
+        assertEquals('L', f[1]);
+        assertEquals('V', f[2]);
+        // audio and video
+        assertEquals(5, f[4]);
+
+        int p = 13;
+        int tags = 0;
+        int video = 0;
+        int keyFrames = 0;
+        int audio = 0;
+        int lastVideoDts = -1;
+        int lastAudioDts = -1;
+        while (p < f.length) {
+            int type = f[p] & 0xff;
+            int size = be24(f, p + 1);
+            int dts = be24(f, p + 4) | ((f[p + 7] & 0xff) << 24);
+            int body = p + 11;
+            assertEquals("previous tag size of tag " + tags, size + 11,
+                    ((f[body + size] & 0xff) << 24) | be24(f, body + size + 1));
+
+            if (tags == 0) {
+                // onMetaData without the @setDataFrame
+                assertEquals(18, type);
+                assertEquals(2, f[body]);
+                assertEquals("onMetaData", new String(f, body + 3, 10, "US-ASCII"));
+                assertEquals(WIDTH, metaDataNumber(f, body, size, "width"), 0);
+                assertEquals(HEIGHT, metaDataNumber(f, body, size, "height"), 0);
+                assertEquals(FPS, metaDataNumber(f, body, size, "framerate"), 0);
+                // kbps
+                assertEquals(800, metaDataNumber(f, body, size, "videodatarate"), 0);
+                assertEquals(SAMPLE_RATE, metaDataNumber(f, body, size, "audiosamplerate"), 0);
+                assertEquals(64, metaDataNumber(f, body, size, "audiodatarate"), 0);
+            } else if (type == 9) {
+                if (video == 0) {
+                    // the sequence header of a key frame
+                    assertEquals(0x17, f[body]);
+                    assertEquals(0, f[body + 1]);
+                } else {
+                    assertEquals(1, f[body + 1]);
+                    assertTrue(dts >= lastVideoDts);
+                    if (f[body] == 0x17) {
+                        keyFrames++;
+                    } else {
+                        assertEquals(0x27, f[body]);
+                    }
+                }
+                lastVideoDts = dts;
+                video++;
+            } else if (type == 8) {
+                assertEquals((byte) 0xad, f[body]);
+                // the specific config first
+                assertEquals(audio == 0 ? 0 : 1, f[body + 1]);
+                assertTrue(dts >= lastAudioDts);
+                lastAudioDts = dts;
+                audio++;
+            } else {
+                throw new AssertionError("unexpected tag type " + type);
+            }
+            p = body + size + 4;
+            tags++;
+        }
+        assertEquals(f.length, p);
+
+        // the config took the place of the first audio frame
+        assertEquals(recorder.getEncodedVideoFrameCount() + 1, video);
+        assertEquals(recorder.getEncodedAudioFrameCount(), audio);
+        assertTrue(recorder.getEncodedVideoFrameCount() > 100);
+        // a key frame every 2s
+        assertEquals(3, keyFrames);
+    }
+
+    @Test
+    public void framesFedAfterCloseAreNotQueued() throws Exception {
+        JavaFlvRecorder recorder = new JavaFlvRecorder(new FlvFileOutput(new ByteArrayOutputStream(), true, true));
+        recorder.setVideoParams(0, WIDTH, HEIGHT, FPS, 800000);
+        recorder.setAudioParams(0, 2, SAMPLE_RATE, 64000);
+        assertEquals(0, recorder.open("file://test"));
+        feed(recorder, 200000);
+        assertEquals(0, recorder.close());
+
+        byte[] yuv = new byte[WIDTH * HEIGHT * 3 / 2];
+        assertEquals(-1, recorder.feedingVideoFrame(yuv, yuv.length, START_US + 300000));
+        assertEquals(-1, recorder.feedingAudioFrame(new byte[PCM_BYTES], PCM_BYTES, START_US + 300000));
+        assertEquals(0, recorder.getPendingFrameCount());
+    }
+
+    @Test
+    public void reportsTheFirstWriteError() throws Exception {
+        final int[] errors = new int[2];
+        FlvOutput output = new FlvOutput() {
+            private int mTags = 0;
+
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public int writeTag(byte[] buf, int len, long dts, int type) {
+                return ++mTags > 20 ? SessionStateListener.ERROR_CODE_OF_WEAK_CONNECTION : len;
+            }
+        };
+        JavaFlvRecorder recorder = new JavaFlvRecorder(output);
+        recorder.setVideoParams(0, WIDTH, HEIGHT, FPS, 800000);
+        recorder.setAudioParams(0, 2, SAMPLE_RATE, 64000);
+        recorder.setStateListener(new SessionStateListener() {
+            @Override
+            public void onSessionPrepared(int code) {
+            }
+
+            @Override
+            public void onSessionStarted(int code) {
+            }
+
+            @Override
+            public void onSessionStopped(int code) {
+            }
+
+            @Override
+            public void onSessionError(int code) {
+                errors[0]++;
+                errors[1] = code;
+            }
+        });
+        assertEquals(0, recorder.open("file://test"));
+        feed(recorder, 2000000);
+        recorder.close();
+
+        assertEquals(1, errors[0]);
+        assertEquals(SessionStateListener.ERROR_CODE_OF_WEAK_CONNECTION, errors[1]);
+    }
+}
@@ -0,0 +1,46 @@
+package com.android.grafika.baidu.recorder.util;
+
+/**
+ * A small timing loop for the yuv benchmarks, which run from their main() on a desktop JVM
+ * and are not part of the unit tests.
+ * <p>
+ * Each case is warmed up first so the JIT has compiled it, then timed over several rounds,
+ * and the fastest round is reported: the others only add scheduling and GC noise.
+ */
+class MicroBenchmark {
+    private static final int WARMUP_RUNS = 200;
+    private static final int ROUNDS = 10;
+    private static final int RUNS_PER_ROUND = 50;
+
+    interface Case {
+        void run();
+    }
+
+    /**
+     * @return the fastest time of one run in ms.
+     */
+    static double measure(Case c) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            c.run();
+        }
+        long bestNs = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startNs = System.nanoTime();
+            for (int i = 0; i < RUNS_PER_ROUND; i++) {
+                c.run();
+            }
+            bestNs = Math.min(bestNs, (System.nanoTime() - startNs) / RUNS_PER_ROUND);
+        }
+        return bestNs / 1e6;
+    }
+
+    /**
+     * prints the time of the new code next to the one of the reference it replaced.
+     */
+    static void compare(String name, Case reference, Case actual) {
+        double referenceMs = measure(reference);
+        double actualMs = measure(actual);
+        System.out.println(String.format("%-40s %8.3f ms  reference %8.3f ms  x%.2f", name, actualMs,
+                referenceMs, referenceMs / actualMs));
+    }
+}
@@ -0,0 +1,82 @@
+package com.android.grafika.baidu.recorder.util;
+
+import java.util.Random;
+
+/**
+ * Times the word-at-a-time YUVUtils conversions against the per-byte loops they replaced, for
+ * a 720p camera frame. Run main() on a desktop JVM; YUVUtilsTest checks the output is the same.
+ */
+public class YUVUtilsBenchmark {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    public static void main(String[] args) {
+        Random random = new Random(20160421);
+        final byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        random.nextBytes(nv21);
+        final byte[] yv12 = new byte[YUVUtils.getYuvBuffer(WIDTH, HEIGHT)];
+        random.nextBytes(yv12);
+        final byte[] output = new byte[WIDTH * HEIGHT * 3 / 2];
+
+        MicroBenchmark.compare("NV21toYUV420SemiPlanar", new MicroBenchmark.Case() {
+            @Override
+            public void run() {
+                int frameSize = WIDTH * HEIGHT;
+                System.arraycopy(nv21, 0, output, 0, frameSize);
+                for (int i = 0; i < frameSize / 4; i++) {
+                    output[frameSize + i * 2] = nv21[frameSize + i * 2 + 1];
+                    output[frameSize + i * 2 + 1] = nv21[frameSize + i * 2];
+                }
+            }
+        }, new MicroBenchmark.Case() {
+            @Override
+            public void run() {
+                YUVUtils.NV21toYUV420SemiPlanar(nv21, output, WIDTH, HEIGHT);
+            }
+        });
+        MicroBenchmark.compare("NV21toYUV420Planar", new MicroBenchmark.Case() {
+            @Override
+            public void run() {
+                int frameSize = WIDTH * HEIGHT;
+                int qFrameSize = frameSize / 4;
+                System.arraycopy(nv21, 0, output, 0, frameSize);
+                for (int i = 0; i < qFrameSize; i++) {
+                    output[frameSize + i] = nv21[frameSize + i * 2 + 1];
+                    output[frameSize + i + qFrameSize] = nv21[frameSize + i * 2];
+                }
+            }
+        }, new MicroBenchmark.Case() {
+            @Override
+            public void run() {
+                YUVUtils.NV21toYUV420Planar(nv21, output, WIDTH, HEIGHT);
+            }
+        });
+        compareYV12("YV12toYUV420PackedSemiPlanar", yv12, output, YUVUtilsTest.OUT_NV21);
+        compareYV12("YV12toYUV420SemiPlanar", yv12, output, YUVUtilsTest.OUT_NV12);
+        compareYV12("YV12toYUV420Planar", yv12, output, YUVUtilsTest.OUT_I420);
+    }
+
+    private static void compareYV12(String name, final byte[] input, final byte[] output, final int layout) {
+        MicroBenchmark.compare(name, new MicroBenchmark.Case() {
+            @Override
+            public void run() {
+                YUVUtilsTest.yv12PerByte(input, output, WIDTH, HEIGHT, layout);
+            }
+        }, new MicroBenchmark.Case() {
+            @Override
+            public void run() {
+                switch (layout) {
+                    case YUVUtilsTest.OUT_NV21:
+                        YUVUtils.YV12toYUV420PackedSemiPlanar(input, output, WIDTH, HEIGHT);
+                        break;
+                    case YUVUtilsTest.OUT_NV12:
+                        YUVUtils.YV12toYUV420SemiPlanar(input, output, WIDTH, HEIGHT);
+                        break;
+                    default:
+                        YUVUtils.YV12toYUV420Planar(input, output, WIDTH, HEIGHT);
+                        break;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,204 @@
+package com.android.grafika.baidu.recorder.util;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the word-at-a-time conversions against the per-byte loops they replaced.
+ * <p>
+ * The sizes are picked so that the chroma runs end in the byte-wise tail of the kernels, and
+ * so that the YV12 planes of the camera layout are padded on the right.
+ */
+public class YUVUtilsTest {
+    // width, height. Half widths of 1, 3, 5, 17, 45 and 7 leave a tail after the words.
+    private static final int[][] SIZES = {
+            {2, 2}, {6, 4}, {10, 6}, {34, 8}, {64, 16}, {90, 6}, {176, 144}, {14, 10},
+    };
+
+    private final Random mRandom = new Random(20160421);
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        mRandom.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void nv21ToPackedPlanarMatchesPerByte() {
+        for (int[] size : SIZES) {
+            int w = size[0];
+            int h = size[1];
+            byte[] input = randomBytes(w * h * 3 / 2);
+            byte[] output = randomBytes(input.length);
+            byte[] expected = output.clone();
+
+            int frameSize = w * h;
+            int qFrameSize = frameSize / 4;
+            System.arraycopy(input, 0, expected, 0, frameSize);
+            for (int i = 0; i < qFrameSize; i++) {
+                expected[frameSize + i + qFrameSize] = input[frameSize + i * 2 + 1];
+                expected[frameSize + i] = input[frameSize + i * 2];
+            }
+
+            YUVUtils.NV21toYUV420PackedPlanar(input, output, w, h);
+            assertArrayEquals(w + "x" + h, expected, output);
+        }
+    }
+
+    @Test
+    public void nv21ToSemiPlanarMatchesPerByte() {
+        for (int[] size : SIZES) {
+            int w = size[0];
+            int h = size[1];
+            byte[] input = randomBytes(w * h * 3 / 2);
+            byte[] output = randomBytes(input.length);
+            byte[] expected = output.clone();
+
+            int frameSize = w * h;
+            int qFrameSize = frameSize / 4;
+            System.arraycopy(input, 0, expected, 0, frameSize);
+            for (int i = 0; i < qFrameSize; i++) {
+                expected[frameSize + i * 2] = input[frameSize + i * 2 + 1];
+                expected[frameSize + i * 2 + 1] = input[frameSize + i * 2];
+            }
+
+            YUVUtils.NV21toYUV420SemiPlanar(input, output, w, h);
+            assertArrayEquals(w + "x" + h, expected, output);
+        }
+    }
+
+    @Test
+    public void nv21ToPlanarMatchesPerByte() {
+        for (int[] size : SIZES) {
+            int w = size[0];
+            int h = size[1];
+            byte[] input = randomBytes(w * h * 3 / 2);
+            byte[] output = randomBytes(input.length);
+            byte[] expected = output.clone();
+
+            int frameSize = w * h;
+            int qFrameSize = frameSize / 4;
+            System.arraycopy(input, 0, expected, 0, frameSize);
+            for (int i = 0; i < qFrameSize; i++) {
+                expected[frameSize + i] = input[frameSize + i * 2 + 1];
+                expected[frameSize + i + qFrameSize] = input[frameSize + i * 2];
+            }
+
+            YUVUtils.NV21toYUV420Planar(input, output, w, h);
+            assertArrayEquals(w + "x" + h, expected, output);
+        }
+    }
+
+    // the three chroma layouts written from a camera YV12 buffer
+    static final int OUT_NV21 = 0;
+    static final int OUT_NV12 = 1;
+    static final int OUT_I420 = 2;
+
+    /**
+     * the conversion done one byte at a time, reading the planes of the padded camera layout.
+     */
+    static void yv12PerByte(byte[] input, byte[] output, int w, int h, int layout) {
+        int stride = YUVUtils.getYV12Stride(w);
+        int cStride = YUVUtils.getYV12ChromaStride(w);
+        int vOffset = stride * h;
+        int uOffset = vOffset + cStride * (h / 2);
+        int frameSize = w * h;
+        int cw = w / 2;
+        int qFrameSize = frameSize / 4;
+
+        for (int row = 0; row < h; row++) {
+            for (int col = 0; col < w; col++) {
+                output[row * w + col] = input[row * stride + col];
+            }
+        }
+        for (int row = 0; row < h / 2; row++) {
+            for (int col = 0; col < cw; col++) {
+                byte u = input[uOffset + row * cStride + col];
+                byte v = input[vOffset + row * cStride + col];
+                switch (layout) {
+                    case OUT_NV21:
+                        output[frameSize + row * w + col * 2] = v;
+                        output[frameSize + row * w + col * 2 + 1] = u;
+                        break;
+                    case OUT_NV12:
+                        output[frameSize + row * w + col * 2] = u;
+                        output[frameSize + row * w + col * 2 + 1] = v;
+                        break;
+                    default:
+                        output[frameSize + row * cw + col] = u;
+                        output[frameSize + qFrameSize + row * cw + col] = v;
+                        break;
+                }
+            }
+        }
+    }
+
+    private void checkYV12(int layout) {
+        for (int[] size : SIZES) {
+            int w = size[0];
+            int h = size[1];
+            byte[] input = randomBytes(YUVUtils.getYuvBuffer(w, h));
+            byte[] output = randomBytes(w * h * 3 / 2);
+            byte[] expected = output.clone();
+
+            yv12PerByte(input, expected, w, h, layout);
+            switch (layout) {
+                case OUT_NV21:
+                    YUVUtils.YV12toYUV420PackedSemiPlanar(input, output, w, h);
+                    break;
+                case OUT_NV12:
+                    YUVUtils.YV12toYUV420SemiPlanar(input, output, w, h);
+                    break;
+                default:
+                    YUVUtils.YV12toYUV420Planar(input, output, w, h);
+                    break;
+            }
+            assertArrayEquals(w + "x" + h, expected, output);
+        }
+    }
+
+    @Test
+    public void yv12ToPackedSemiPlanarMatchesPerByte() {
+        checkYV12(OUT_NV21);
+    }
+
+    @Test
+    public void yv12ToSemiPlanarMatchesPerByte() {
+        checkYV12(OUT_NV12);
+    }
+
+    @Test
+    public void yv12ToPlanarMatchesPerByte() {
+        checkYV12(OUT_I420);
+    }
+
+    @Test
+    public void yv12WithoutPaddingMatchesTightLoops() {
+        // a width which is a multiple of 32 has no row padding, so the old loops on the tight layout apply
+        int w = 64;
+        int h = 16;
+        int frameSize = w * h;
+        int qFrameSize = frameSize / 4;
+        byte[] input = randomBytes(YUVUtils.getYuvBuffer(w, h));
+        byte[] output = new byte[frameSize * 3 / 2];
+        byte[] expected = new byte[output.length];
+
+        System.arraycopy(input, 0, expected, 0, frameSize);
+        for (int i = 0; i < qFrameSize; i++) {
+            expected[frameSize + i * 2 + 1] = input[frameSize + i + qFrameSize];
+            expected[frameSize + i * 2] = input[frameSize + i];
+        }
+        YUVUtils.YV12toYUV420PackedSemiPlanar(input, output, w, h);
+        assertArrayEquals(expected, output);
+
+        for (int i = 0; i < qFrameSize; i++) {
+            expected[frameSize + i * 2] = input[frameSize + i + qFrameSize];
+            expected[frameSize + i * 2 + 1] = input[frameSize + i];
+        }
+        YUVUtils.YV12toYUV420SemiPlanar(input, output, w, h);
+        assertArrayEquals(expected, output);
+    }
+}
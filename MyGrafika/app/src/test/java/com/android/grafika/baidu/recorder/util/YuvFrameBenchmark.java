@@ -0,0 +1,46 @@
+package com.android.grafika.baidu.recorder.util;
+
+import java.util.Random;
+
+/**
+ * Times the tiled rotateTo against the per-byte NV21 rotation the recorder used before, for
+ * a 720p portrait frame, on the calling thread and with a worker pool. Run main() on a
+ * desktop JVM; YuvFrameTest checks the output is the same.
+ */
+public class YuvFrameBenchmark {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int POOL_THREADS = 3;
+
+    public static void main(String[] args) {
+        final YuvFrame src = YuvFrame.allocate(YuvFrame.FORMAT_NV21, WIDTH, HEIGHT);
+        new Random(20160422).nextBytes(src.data);
+        final YuvFrame dst = YuvFrame.allocate(YuvFrame.FORMAT_NV21, HEIGHT, WIDTH);
+        final YuvWorkerPool pool = new YuvWorkerPool(POOL_THREADS);
+
+        for (final boolean front : new boolean[] {false, true}) {
+            MicroBenchmark.Case reference = new MicroBenchmark.Case() {
+                @Override
+                public void run() {
+                    YuvFrameTest.rotateNV21PerByte(src.data, dst.data, WIDTH, HEIGHT, front);
+                }
+            };
+            // back camera turns clockwise, front camera counterclockwise, @see VideoUtil
+            final int degrees = front ? 270 : 90;
+            MicroBenchmark.compare("rotateTo " + degrees, reference, new MicroBenchmark.Case() {
+                @Override
+                public void run() {
+                    src.rotateTo(dst, degrees, false);
+                }
+            });
+            MicroBenchmark.compare("rotateTo " + degrees + " pool of " + POOL_THREADS, reference,
+                    new MicroBenchmark.Case() {
+                        @Override
+                        public void run() {
+                            src.rotateTo(dst, degrees, false, pool);
+                        }
+                    });
+        }
+        pool.release();
+    }
+}
@@ -0,0 +1,221 @@
+package com.android.grafika.baidu.recorder.util;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks convertTo and rotateTo against per-sample references, and against the per-byte
+ * NV21 rotation the recorder used before the frames were rotated in tiles.
+ */
+public class YuvFrameTest {
+    private static final int[] FORMATS = {
+            YuvFrame.FORMAT_I420, YuvFrame.FORMAT_YV12, YuvFrame.FORMAT_NV12, YuvFrame.FORMAT_NV21,
+    };
+    // half widths of 17 and 45 end in the tail of the chroma kernels, 90 is padded in YV12
+    private static final int[][] SIZES = {{34, 18}, {90, 40}, {176, 144}};
+
+    private final Random mRandom = new Random(20160422);
+    private YuvWorkerPool mPool;
+
+    @Before
+    public void setUp() {
+        mPool = new YuvWorkerPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.release();
+    }
+
+    private YuvFrame randomFrame(int format, int width, int height) {
+        YuvFrame frame = YuvFrame.allocate(format, width, height);
+        mRandom.nextBytes(frame.data);
+        return frame;
+    }
+
+    private YuvFrame randomCameraYV12(int width, int height) {
+        byte[] data = new byte[YUVUtils.getYuvBuffer(width, height)];
+        mRandom.nextBytes(data);
+        return YuvFrame.wrapCameraYV12(data, width, height);
+    }
+
+    private static int lumaIndex(YuvFrame frame, int x, int y) {
+        return frame.yOffset + y * frame.yStride + x;
+    }
+
+    private static int uIndex(YuvFrame frame, int x, int y) {
+        return frame.uOffset + y * frame.chromaStride + x * frame.chromaPixelStride;
+    }
+
+    private static int vIndex(YuvFrame frame, int x, int y) {
+        return frame.vOffset + y * frame.chromaStride + x * frame.chromaPixelStride;
+    }
+
+    /**
+     * rotates one sample at a time, dst must start as a copy of the actual destination so
+     * that bytes outside the image are compared too.
+     */
+    private static void rotatePerSample(YuvFrame src, YuvFrame dst, int degrees, boolean mirror) {
+        for (int plane = 0; plane < 3; plane++) {
+            int w = plane == 0 ? src.width : src.width / 2;
+            int h = plane == 0 ? src.height : src.height / 2;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int dx;
+                    int dy;
+                    int dstWidth = w;
+                    switch (degrees) {
+                        case 90:
+                            dx = h - 1 - y;
+                            dy = x;
+                            dstWidth = h;
+                            break;
+                        case 180:
+                            dx = w - 1 - x;
+                            dy = h - 1 - y;
+                            break;
+                        case 270:
+                            dx = y;
+                            dy = w - 1 - x;
+                            dstWidth = h;
+                            break;
+                        default:
+                            dx = x;
+                            dy = y;
+                            break;
+                    }
+                    if (mirror) {
+                        dx = dstWidth - 1 - dx;
+                    }
+                    if (plane == 0) {
+                        dst.data[lumaIndex(dst, dx, dy)] = src.data[lumaIndex(src, x, y)];
+                    } else if (plane == 1) {
+                        dst.data[uIndex(dst, dx, dy)] = src.data[uIndex(src, x, y)];
+                    } else {
+                        dst.data[vIndex(dst, dx, dy)] = src.data[vIndex(src, x, y)];
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkRotation(YuvFrame src, int dstFormat, int degrees, boolean mirror, YuvWorkerPool pool) {
+        boolean swap = degrees == 90 || degrees == 270;
+        YuvFrame actual = randomFrame(dstFormat, swap ? src.height : src.width, swap ? src.width : src.height);
+        YuvFrame expected = YuvFrame.wrap(actual.data.clone(), dstFormat, actual.width, actual.height);
+
+        rotatePerSample(src, expected, degrees, mirror);
+        src.rotateTo(actual, degrees, mirror, pool);
+        assertArrayEquals(String.format("%dx%d format %d to %d, %d degrees, mirror %b, pool %b",
+                src.width, src.height, src.format, dstFormat, degrees, mirror, pool != null),
+                expected.data, actual.data);
+    }
+
+    @Test
+    public void convertMatchesPerSample() {
+        for (int[] size : SIZES) {
+            for (int srcFormat : FORMATS) {
+                YuvFrame src = randomFrame(srcFormat, size[0], size[1]);
+                for (int dstFormat : FORMATS) {
+                    checkRotation(src, dstFormat, 0, false, null);
+                    checkRotation(src, dstFormat, 0, false, mPool);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rotateMatchesPerSample() {
+        int[] rotations = {0, 90, 180, 270};
+        for (int[] size : SIZES) {
+            for (int srcFormat : FORMATS) {
+                YuvFrame src = randomFrame(srcFormat, size[0], size[1]);
+                for (int dstFormat : FORMATS) {
+                    for (int degrees : rotations) {
+                        checkRotation(src, dstFormat, degrees, false, null);
+                        checkRotation(src, dstFormat, degrees, true, mPool);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void paddedCameraYV12MatchesPerSample() {
+        for (int[] size : SIZES) {
+            YuvFrame src = randomCameraYV12(size[0], size[1]);
+            for (int dstFormat : FORMATS) {
+                checkRotation(src, dstFormat, 0, false, null);
+                checkRotation(src, dstFormat, 90, false, mPool);
+                checkRotation(src, dstFormat, 270, true, null);
+            }
+        }
+    }
+
+    @Test
+    public void croppedFrameMatchesPerSample() {
+        YuvFrame camera = randomCameraYV12(176, 144);
+        YuvFrame nv21 = randomFrame(YuvFrame.FORMAT_NV21, 176, 144);
+        for (YuvFrame frame : new YuvFrame[] {camera, nv21}) {
+            YuvFrame src = frame.crop(6, 20, 90, 98);
+            for (int dstFormat : FORMATS) {
+                checkRotation(src, dstFormat, 0, false, mPool);
+                checkRotation(src, dstFormat, 90, false, null);
+                checkRotation(src, dstFormat, 180, true, mPool);
+            }
+        }
+    }
+
+    /**
+     * the per-byte NV21 rotation of the old VideoUtil.dealVideoFrame, for a portrait session.
+     */
+    static void rotateNV21PerByte(byte[] yuv, byte[] output, int width, int height, boolean isCameraFront) {
+        final int frameSize = width * height;
+        final boolean xflip = !isCameraFront;
+        final boolean yflip = isCameraFront;
+
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                final int yIn = j * width + i;
+                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
+                final int vIn = uIn + 1;
+
+                final int wOut = height;
+                final int hOut = width;
+                final int iOut = xflip ? wOut - j - 1 : j;
+                final int jOut = yflip ? hOut - i - 1 : i;
+
+                final int yOut = jOut * wOut + iOut;
+                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
+                final int vOut = uOut + 1;
+
+                output[yOut] = yuv[yIn];
+                output[uOut] = yuv[uIn];
+                output[vOut] = yuv[vIn];
+            }
+        }
+    }
+
+    @Test
+    public void portraitRotationMatchesOldVideoUtil() {
+        for (int[] size : SIZES) {
+            int w = size[0];
+            int h = size[1];
+            YuvFrame src = randomFrame(YuvFrame.FORMAT_NV21, w, h);
+            for (boolean front : new boolean[] {false, true}) {
+                byte[] expected = new byte[src.data.length];
+                rotateNV21PerByte(src.data, expected, w, h, front);
+
+                YuvFrame actual = YuvFrame.allocate(YuvFrame.FORMAT_NV21, h, w);
+                // back camera turns clockwise, front camera counterclockwise, @see VideoUtil
+                src.rotateTo(actual, front ? 270 : 90, false, mPool);
+                assertArrayEquals(w + "x" + h + " front " + front, expected, actual.data);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.android.grafika.baidu.recorder.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class YuvWorkerPoolTest {
+    private static final int ROWS = 72;
+
+    /**
+     * marks every row it is run on.
+     */
+    private static class CountingTask implements YuvWorkerPool.RowTask {
+        final AtomicIntegerArray runs = new AtomicIntegerArray(ROWS);
+
+        @Override
+        public void run(int start, int end) {
+            for (int row = start; row < end; row++) {
+                runs.incrementAndGet(row);
+            }
+        }
+    }
+
+    @Test
+    public void everyRowRunsOnce() {
+        YuvWorkerPool pool = new YuvWorkerPool(4);
+        try {
+            for (int frame = 0; frame < 200; frame++) {
+                CountingTask task = new CountingTask();
+                pool.runRows(ROWS, 1 + frame % 5, task);
+                for (int row = 0; row < ROWS; row++) {
+                    assertEquals("frame " + frame + " row " + row, 1, task.runs.get(row));
+                }
+            }
+        } finally {
+            pool.release();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void releaseDuringFramesDoesNotHang() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            final YuvWorkerPool pool = new YuvWorkerPool(4);
+            final boolean[] complete = {true};
+            Thread feeder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int frame = 0; frame < 100; frame++) {
+                        CountingTask task = new CountingTask();
+                        pool.runRows(ROWS, 2, task);
+                        for (int row = 0; row < ROWS; row++) {
+                            if (task.runs.get(row) != 1) {
+                                complete[0] = false;
+                            }
+                        }
+                    }
+                }
+            });
+            feeder.start();
+            Thread.sleep(round % 3);
+            pool.release();
+            feeder.join();
+            assertTrue("round " + round, complete[0]);
+        }
+    }
+}